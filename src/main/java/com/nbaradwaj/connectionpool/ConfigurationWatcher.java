@@ -0,0 +1,145 @@
+package com.nbaradwaj.connectionpool;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the property file of a running pool and applies changes to the pool size, minimum
+ * idle, timeouts and leak detection threshold without a restart. A changed file is validated
+ * as a whole before anything is applied, so an invalid edit leaves the live pool untouched.
+ */
+public class ConfigurationWatcher implements Runnable {
+
+	protected static final Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
+
+	/**
+	 * Editors often write a file in several steps; wait this long for the writes to settle
+	 */
+	private static final long SETTLE_TIME = 100L;
+
+	private final ConnectionConfig config;
+	private final ConnectionPoolImpl pool;
+	private final Path file;
+	private final WatchService watchService;
+	private final Thread thread;
+
+	/**
+	 * Construct a watcher for the property file the configuration was loaded from.
+	 *
+	 * @param config the live configuration of the pool
+	 * @param pool the pool to notify when the configuration changes
+	 * @throws IOException if the file system cannot be watched
+	 */
+	public ConfigurationWatcher(ConnectionConfig config, ConnectionPoolImpl pool) throws IOException {
+		if (config.getConfigurationFile() == null) {
+			throw new IllegalStateException("configuration was not loaded from a file and cannot be watched");
+		}
+		this.config = config;
+		this.pool = pool;
+		this.file = Paths.get(config.getConfigurationFile()).toAbsolutePath();
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		this.thread = ConnectionPoolHelper.newThread(config, this, "configuration watcher");
+	}
+
+	/**
+	 * Start watching the file.
+	 */
+	public void start() {
+		thread.start();
+		LOGGER.info("Watching {} for configuration changes to pool {}", file, config.getPoolName());
+	}
+
+	/**
+	 * Stop watching the file.
+	 */
+	public void stop() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			LOGGER.debug("Exception closing configuration watcher of pool {}", config.getPoolName(), e);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				boolean changed = pollChanged(key);
+				if (changed) {
+					// Let the writer finish, then fold any further events into this reload
+					Thread.sleep(SETTLE_TIME);
+					while ((key = watchService.poll()) != null) {
+						pollChanged(key);
+					}
+					reload();
+				}
+			}
+		}
+		catch (ClosedWatchServiceException e) {
+			// stopped
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Drain the events of a watch key and re-arm it.
+	 *
+	 * @return true if one of the events was for the watched file
+	 */
+	private boolean pollChanged(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			if (context instanceof Path && file.getFileName().equals(context)) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Re-read and validate the property file and apply it to the running pool.
+	 *
+	 * @return true if the new configuration was applied, false if it was rejected
+	 */
+	public boolean reload() {
+		final ConnectionConfig candidate;
+		try {
+			candidate = new ConnectionConfig(file.toString());
+			// Settings that cannot be expressed in a property file carry over from the live pool
+			if (candidate.getDataSource() == null) {
+				candidate.setDataSource(config.getDataSource());
+			}
+			candidate.setPoolName(config.getPoolName());
+			candidate.validate();
+		}
+		catch (RuntimeException e) {
+			pool.getMetrics().configurationReloadFailed();
+			LOGGER.error("Rejected invalid configuration change to {} for pool {}: {}", file, config.getPoolName(), e.getMessage());
+			return false;
+		}
+
+		config.applyReloadableSettings(candidate);
+		LOGGER.info("Reloaded configuration of pool {} from {} (maximumPoolSize={}, minimumIdle={}, connectionTimeout={}, validationTimeout={}, leakDetectionThreshold={}, maxLifetime={}, idleTimeout={})",
+				config.getPoolName(), file, config.getMaximumPoolSize(), config.getMinimumIdleConnections(), config.getConnectionTimeout(),
+				config.getValidationTimeout(), config.getLeakDetectionThreshold(), config.getMaxLifetime(), config.getIdleTimeout());
+		pool.configurationChanged();
+		pool.getMetrics().configurationReloaded();
+		return true;
+	}
+}
@@ -0,0 +1,49 @@
+package com.nbaradwaj.connectionpool;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event emitted for every attempt to borrow a connection from the pool.
+ * The duration of the event is the time the borrower spent waiting for a connection.
+ */
+@Name("com.nbaradwaj.connectionpool.ConnectionAcquire")
+@Label("Connection Acquire")
+@Category("Connection Pool")
+@Description("A borrower waiting for a connection from the pool")
+@StackTrace(false)
+final class ConnectionAcquireEvent extends jdk.jfr.Event {
+
+	/**
+	 * Event type handle, used to check cheaply whether the event is recorded before allocating it
+	 */
+	static final EventType TYPE = EventType.getEventType(ConnectionAcquireEvent.class);
+
+	@Label("Pool Name")
+	String poolName;
+
+	@Label("Total Connections At Start")
+	int totalAtStart;
+
+	@Label("Idle Connections At Start")
+	int idleAtStart;
+
+	@Label("Active Connections At Start")
+	int activeAtStart;
+
+	@Label("Total Connections At End")
+	int totalAtEnd;
+
+	@Label("Idle Connections At End")
+	int idleAtEnd;
+
+	@Label("Active Connections At End")
+	int activeAtEnd;
+
+	@Label("Timed Out")
+	boolean timedOut;
+}
@@ -0,0 +1,20 @@
+package com.nbaradwaj.connectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Work done with a connection lent by {@link ConnectionPool#withConnection(ConnectionCallback)}.
+ * The connection is only lent for the duration of the call and must not be kept afterwards.
+ *
+ * @param <T> the type of the result of the work
+ */
+public interface ConnectionCallback<T> {
+
+	/**
+	 * @param connection the lent connection
+	 * @return the result of the work
+	 * @throws SQLException thrown by the driver
+	 */
+	T doInConnection(Connection connection) throws SQLException;
+}
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.util.Enumeration;
+import java.util.Locale;
 import java.util.Properties;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -25,19 +26,37 @@ public class ConnectionConfig {
 	private static final long CONNECTION_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
 	private static final long VALIDATION_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
 	private static final long MAX_LIFETIME = TimeUnit.MINUTES.toMillis(30);
+	private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+	private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+	private static final long ALIVE_BYPASS_WINDOW = 0L;
 	private static final int MAX_POOL_SIZE = 10;
 	private static final int MAX_POOL_CONSUMERS = 1000;
+	private static final int STANDBY_MINIMUM_IDLE = 1;
+	private static final int FAILOVER_THRESHOLD = 3;
+	private static final long FAILBACK_DELAY = TimeUnit.MINUTES.toMillis(1);
 	
 	/**
-	 * Timeout and size parameters of the connection pool
+	 * Timeout and size parameters of the connection pool. Those a running pool reloads are
+	 * published together, so a reader never sees half of a reload.
 	 */
-	private volatile long connectionTimeout;
-    private volatile long validationTimeout;
-    private volatile long leakDetectionThreshold;
-    private volatile long maxLifetime;
-    private volatile int maxPoolSize;
-    private volatile int minIdleConnections;
+	private volatile ReloadableSettings settings;
+    private volatile long shutdownTimeout;
+    private volatile long aliveBypassWindow;
+    private volatile long keepaliveTime;
     private volatile int maxPoolConsumers;
+    private volatile int connectionCreationRate;
+    private int hostConnectionLimit;
+    private String hostConnectionLimitFile;
+    private ConnectionLimiter connectionLimiter;
+    private String warmStartFile;
+    private SQLExceptionClassifier exceptionClassifier;
+    private PoolRegistry poolRegistry;
+    private QueryResultCache resultCache;
+    private DataSource standbyDataSource;
+    private int standbyMinimumIdle;
+    private int failoverThreshold;
+    private FailoverConnectionPool.FailbackPolicy failbackPolicy;
+    private long failbackDelay;
 
     /**
      * Properties of the data source and connection
@@ -58,6 +77,29 @@ public class ConnectionConfig {
     public boolean useJdbcValidation;
     private Properties dataSourceProperties;
     private ThreadFactory threadFactory; 
+    
+    /**
+     * The property file this configuration was loaded from, and whether a running pool
+     * should watch it for changes
+     */
+    private String configurationFile;
+    private boolean watchConfigurationFile;
+    
+    /**
+     * Whether a connection-fatal SQLState on any connection evicts every connection in the pool
+     */
+    private boolean softEvictOnFatalError;
+
+    /**
+     * Whether the most recently returned idle connection is borrowed first
+     */
+    private boolean lifo;
+
+    /**
+     * Whether getConnection() defers borrowing a pooled connection until it is used
+     */
+    private boolean lazyConnection;
+    private boolean lazyReleaseOnCommit;
 
 	   /**
 	    * Default constructor
@@ -66,14 +108,16 @@ public class ConnectionConfig {
 	   {
 	      dataSourceProperties = new Properties();
 	      
-	      connectionTimeout = CONNECTION_TIMEOUT;
-	      validationTimeout = VALIDATION_TIMEOUT;
+	      settings = new ReloadableSettings(MAX_POOL_SIZE, -1, CONNECTION_TIMEOUT, VALIDATION_TIMEOUT, 0L, MAX_LIFETIME, IDLE_TIMEOUT);
 	      isAutoCommit = true;
-	      minIdleConnections = -1;
 	      useJdbcValidation = false;
-	      maxPoolSize = MAX_POOL_SIZE;
-	      maxLifetime = MAX_LIFETIME;
+	      shutdownTimeout = SHUTDOWN_TIMEOUT;
+	      aliveBypassWindow = ALIVE_BYPASS_WINDOW;
 	      maxPoolConsumers = MAX_POOL_CONSUMERS;
+	      standbyMinimumIdle = STANDBY_MINIMUM_IDLE;
+	      failoverThreshold = FAILOVER_THRESHOLD;
+	      failbackPolicy = FailoverConnectionPool.FailbackPolicy.MANUAL;
+	      failbackDelay = FAILBACK_DELAY;
 	      
 	      String systemProp = System.getProperty("connectionPool.configurationFile");
 	      if ( systemProp != null) {
@@ -139,7 +183,7 @@ public class ConnectionConfig {
 	   
 	   public long getConnectionTimeout()
 	   {
-	      return connectionTimeout;
+	      return settings.connectionTimeout;
 	   }
 	   
 	   public int getMaximumPoolConsumers() {
@@ -148,20 +192,20 @@ public class ConnectionConfig {
 	   
 	   public void setConnectionTimeout(long connectionTimeoutMs)
 	   {
-	      if (connectionTimeoutMs == 0) {
-	         this.connectionTimeout = Integer.MAX_VALUE;
-	      }
-	      else if (connectionTimeoutMs < 1000) {
+	      if (connectionTimeoutMs != 0 && connectionTimeoutMs < 1000) {
 	         throw new IllegalArgumentException("connectionTimeout cannot be less than 1000ms");
 	      }
-	      else {
-	         this.connectionTimeout = connectionTimeoutMs;
+	      final long connectionTimeout = connectionTimeoutMs == 0 ? Integer.MAX_VALUE : connectionTimeoutMs;
+	      synchronized (this) {
+	         final ReloadableSettings current = settings;
+	         settings = new ReloadableSettings(current.maxPoolSize, current.minIdleConnections, connectionTimeout, current.validationTimeout,
+	               current.leakDetectionThreshold, current.maxLifetime, current.idleTimeout);
 	      }
 	   }
 
 	   public long getValidationTimeout()
 	   {
-	      return validationTimeout;
+	      return settings.validationTimeout;
 	   }
 
 	   public void setValidationTimeout(long validationTimeoutMs)
@@ -169,8 +213,10 @@ public class ConnectionConfig {
 	      if (validationTimeoutMs < 1000) {
 	         throw new IllegalArgumentException("validationTimeout cannot be less than 1000ms");
 	      }
-	      else {
-	         this.validationTimeout = validationTimeoutMs;
+	      synchronized (this) {
+	         final ReloadableSettings current = settings;
+	         settings = new ReloadableSettings(current.maxPoolSize, current.minIdleConnections, current.connectionTimeout, validationTimeoutMs,
+	               current.leakDetectionThreshold, current.maxLifetime, current.idleTimeout);
 	      }
 	   }
 
@@ -235,7 +281,7 @@ public class ConnectionConfig {
 	   {
 	      try {
 	         Class<?> driverClass = this.getClass().getClassLoader().loadClass(driverClassName);
-	         driverClass.newInstance();
+	         driverClass.getDeclaredConstructor().newInstance();
 	         this.driverClassName = driverClassName;
 	      }
 	      catch (Exception e) {
@@ -275,27 +321,196 @@ public class ConnectionConfig {
 	   
 	   public long getLeakDetectionThreshold()
 	   {
-	      return leakDetectionThreshold;
+	      return settings.leakDetectionThreshold;
 	   }
 
-	   public void setLeakDetectionThreshold(long leakDetectionThresholdMs)
+	   public synchronized void setLeakDetectionThreshold(long leakDetectionThresholdMs)
 	   {
-	      this.leakDetectionThreshold = leakDetectionThresholdMs;
+	      final ReloadableSettings current = settings;
+	      settings = new ReloadableSettings(current.maxPoolSize, current.minIdleConnections, current.connectionTimeout, current.validationTimeout,
+	            leakDetectionThresholdMs, current.maxLifetime, current.idleTimeout);
 	   }
 
 	   public long getMaxLifetime()
 	   {
-	      return maxLifetime;
+	      return settings.maxLifetime;
+	   }
+
+	   public synchronized void setMaxLifetime(long maxLifetimeMs)
+	   {
+	      final ReloadableSettings current = settings;
+	      settings = new ReloadableSettings(current.maxPoolSize, current.minIdleConnections, current.connectionTimeout, current.validationTimeout,
+	            current.leakDetectionThreshold, maxLifetimeMs, current.idleTimeout);
+	   }
+
+	   public long getIdleTimeout()
+	   {
+	      return settings.idleTimeout;
+	   }
+
+	   /**
+	    * Set how long a connection may sit idle before it is closed, as long as the pool keeps its
+	    * minimum number of idle connections.
+	    *
+	    * @param idleTimeoutMs the idle timeout in milliseconds, 0 to never close idle connections
+	    */
+	   public synchronized void setIdleTimeout(long idleTimeoutMs)
+	   {
+	      final ReloadableSettings current = settings;
+	      settings = new ReloadableSettings(current.maxPoolSize, current.minIdleConnections, current.connectionTimeout, current.validationTimeout,
+	            current.leakDetectionThreshold, current.maxLifetime, idleTimeoutMs);
+	   }
+
+	   public long getAliveBypassWindow()
+	   {
+	      return aliveBypassWindow;
+	   }
+
+	   /**
+	    * Set how recently a connection must have been returned to the pool to be handed out
+	    * again without validating it first. Off by default: a connection that died while idle is
+	    * then only noticed by the borrower it is handed to.
+	    *
+	    * @param aliveBypassWindowMs the window in milliseconds, 0 (the default) to validate on every checkout
+	    */
+	   public void setAliveBypassWindow(long aliveBypassWindowMs)
+	   {
+	      if (aliveBypassWindowMs < 0) {
+	         throw new IllegalArgumentException("aliveBypassWindow cannot be negative");
+	      }
+	      this.aliveBypassWindow = aliveBypassWindowMs;
+	   }
+
+	   public long getKeepaliveTime()
+	   {
+	      return keepaliveTime;
+	   }
+
+	   /**
+	    * Set how long a connection may sit idle before housekeeping validates it where it lies in
+	    * the idle queue, so a connection the database or a firewall dropped is found before a
+	    * borrower gets it.
+	    *
+	    * @param keepaliveTimeMs the time in milliseconds, 0 to only validate connections on checkout
+	    */
+	   public void setKeepaliveTime(long keepaliveTimeMs)
+	   {
+	      if (keepaliveTimeMs < 0) {
+	         throw new IllegalArgumentException("keepaliveTime cannot be negative");
+	      }
+	      this.keepaliveTime = keepaliveTimeMs;
+	   }
+
+	   public long getShutdownTimeout()
+	   {
+	      return shutdownTimeout;
+	   }
+
+	   /**
+	    * Set how long shutting the pool down waits for connections in use to be released before
+	    * closing them anyway.
+	    *
+	    * @param shutdownTimeoutMs the drain timeout in milliseconds, 0 to close them at once
+	    */
+	   public void setShutdownTimeout(long shutdownTimeoutMs)
+	   {
+	      if (shutdownTimeoutMs < 0) {
+	         throw new IllegalArgumentException("shutdownTimeout cannot be negative");
+	      }
+	      this.shutdownTimeout = shutdownTimeoutMs;
+	   }
+
+	   public int getHostConnectionLimit()
+	   {
+	      return hostConnectionLimit;
+	   }
+
+	   /**
+	    * Set the maximum number of connections opened by all the processes on this host that share
+	    * the {@link #setHostConnectionLimitFile(String) host connection limit file}.
+	    *
+	    * @param hostConnectionLimit the connections per host, or 0 for no limit
+	    */
+	   public void setHostConnectionLimit(int hostConnectionLimit)
+	   {
+	      if (hostConnectionLimit < 0) {
+	         throw new IllegalArgumentException("hostConnectionLimit cannot be negative");
+	      }
+	      this.hostConnectionLimit = hostConnectionLimit;
+	   }
+
+	   public String getHostConnectionLimitFile()
+	   {
+	      return hostConnectionLimitFile;
+	   }
+
+	   /**
+	    * Set the file through which the processes on this host share the host connection limit.
+	    *
+	    * @param hostConnectionLimitFile the path of the file, created if it does not exist
+	    */
+	   public void setHostConnectionLimitFile(String hostConnectionLimitFile)
+	   {
+	      this.hostConnectionLimitFile = hostConnectionLimitFile;
+	   }
+
+	   public ConnectionLimiter getConnectionLimiter()
+	   {
+	      return connectionLimiter;
+	   }
+
+	   /**
+	    * Set a limiter the pool must take a permit from before opening a connection, to share a
+	    * connection limit with other pools. Takes precedence over the host connection limit.
+	    *
+	    * @param connectionLimiter the limiter, or null
+	    */
+	   public void setConnectionLimiter(ConnectionLimiter connectionLimiter)
+	   {
+	      this.connectionLimiter = connectionLimiter;
+	   }
+
+	   public String getWarmStartFile()
+	   {
+	      return warmStartFile;
 	   }
 
-	   public void setMaxLifetime(long maxLifetimeMs)
+	   /**
+	    * Set the file in which the pool keeps what it learns about its load, so it can open the
+	    * connections it is going to need when it next starts. The file is written periodically and
+	    * on shutdown.
+	    *
+	    * @param warmStartFile the path of the file, or null to start from the minimum idle every time
+	    */
+	   public void setWarmStartFile(String warmStartFile)
 	   {
-	      this.maxLifetime = maxLifetimeMs;
+	      this.warmStartFile = warmStartFile;
+	   }
+
+	   public int getConnectionCreationRate()
+	   {
+	      return connectionCreationRate;
+	   }
+
+	   /**
+	    * Set the maximum number of connections the pool opens per second, shared by the initial
+	    * fill, refills and growth on demand. This keeps a restart or mass eviction from turning
+	    * into a login storm against the database. The constructor of a pool waits, up to the
+	    * connection timeout, for its initial fill to get through the limit.
+	    *
+	    * @param connectionCreationRate connections per second, or 0 for no limit
+	    */
+	   public void setConnectionCreationRate(int connectionCreationRate)
+	   {
+	      if (connectionCreationRate < 0) {
+	         throw new IllegalArgumentException("connectionCreationRate cannot be negative");
+	      }
+	      this.connectionCreationRate = connectionCreationRate;
 	   }
 
 	   public int getMaximumPoolSize()
 	   {
-	      return maxPoolSize;
+	      return settings.maxPoolSize;
 	   }
 
 	   public void setMaximumPoolSize(int maxPoolSize)
@@ -303,20 +518,41 @@ public class ConnectionConfig {
 	      if (maxPoolSize < 1) {
 	         throw new IllegalArgumentException("maxPoolSize cannot be less than 1");
 	      }
-	      this.maxPoolSize = maxPoolSize;
+	      synchronized (this) {
+	         final ReloadableSettings current = settings;
+	         settings = new ReloadableSettings(maxPoolSize, current.minIdleConnections, current.connectionTimeout, current.validationTimeout,
+	               current.leakDetectionThreshold, current.maxLifetime, current.idleTimeout);
+	      }
 	   }
 
 	   public int getMinimumIdleConnections()
 	   {
-	      return minIdleConnections;
+	      return settings.minIdleConnections;
 	   }
 
 	   public void getMinimumIdleConnections(int minIdleConnections)
+	   {
+	      setMinimumIdle(minIdleConnections);
+	   }
+
+	   public void setMinimumIdle(int minIdleConnections)
 	   {
 	      if (minIdleConnections < 0) {
 	         throw new IllegalArgumentException("minimumIdle cannot be negative");
 	      }
-	      this.minIdleConnections = minIdleConnections;
+	      synchronized (this) {
+	         final ReloadableSettings current = settings;
+	         settings = new ReloadableSettings(current.maxPoolSize, minIdleConnections, current.connectionTimeout, current.validationTimeout,
+	               current.leakDetectionThreshold, current.maxLifetime, current.idleTimeout);
+	      }
+	   }
+
+	   /**
+	    * @return the settings a running pool reloads, read together
+	    */
+	   ReloadableSettings getReloadableSettings()
+	   {
+	      return settings;
 	   }
 
 	   /**
@@ -374,6 +610,194 @@ public class ConnectionConfig {
 	      this.username = username;
 	   }
 
+	   public SQLExceptionClassifier getExceptionClassifier()
+	   {
+	      return exceptionClassifier;
+	   }
+
+	   /**
+	    * Set the classifier deciding which exceptions mean a connection is broken and must be evicted.
+	    *
+	    * @param exceptionClassifier the classifier (setting to null causes the SQLState classifier to be used)
+	    */
+	   public void setExceptionClassifier(SQLExceptionClassifier exceptionClassifier)
+	   {
+	      this.exceptionClassifier = exceptionClassifier;
+	   }
+
+	   public boolean isLifo()
+	   {
+	      return lifo;
+	   }
+
+	   /**
+	    * Set the order in which idle connections are borrowed. First in, first out, the default,
+	    * spreads the load over every idle connection. Last in, first out reuses the connection
+	    * returned most recently, keeping a few connections busy and warm while the rest sit idle
+	    * long enough for the idle timeout to close them when the load drops.
+	    *
+	    * @param lifo true to borrow the most recently returned connection first
+	    */
+	   public void setLifo(boolean lifo)
+	   {
+	      this.lifo = lifo;
+	   }
+
+	   public boolean isLazyConnection()
+	   {
+	      return lazyConnection;
+	   }
+
+	   /**
+	    * Set whether getConnection() returns a {@link LazyConnection}, which borrows a pooled
+	    * connection only on the first call that needs the database, instead of a pooled connection.
+	    *
+	    * @param lazyConnection true to hand out lazy connections
+	    */
+	   public void setLazyConnection(boolean lazyConnection)
+	   {
+	      this.lazyConnection = lazyConnection;
+	   }
+
+	   public boolean isLazyReleaseOnCommit()
+	   {
+	      return lazyReleaseOnCommit;
+	   }
+
+	   /**
+	    * Set whether a lazy connection gives its pooled connection back as soon as a transaction
+	    * is committed or rolled back, rather than when it is closed.
+	    *
+	    * @param lazyReleaseOnCommit true to release the pooled connection at the end of every transaction
+	    */
+	   public void setLazyReleaseOnCommit(boolean lazyReleaseOnCommit)
+	   {
+	      this.lazyReleaseOnCommit = lazyReleaseOnCommit;
+	   }
+
+	   public PoolRegistry getPoolRegistry()
+	   {
+	      return poolRegistry;
+	   }
+
+	   /**
+	    * Set the registry the pool registers with under its name. A pool with a registry runs its
+	    * housekeeping and creates its connections on the registry's threads instead of its own;
+	    * the configured thread factory is then only used for closing connections.
+	    *
+	    * @param poolRegistry the registry, usually {@link PoolRegistry#getDefault()} (null for a pool with threads of its own)
+	    */
+	   public void setPoolRegistry(PoolRegistry poolRegistry)
+	   {
+	      this.poolRegistry = poolRegistry;
+	   }
+
+	   public QueryResultCache getResultCache()
+	   {
+	      return resultCache;
+	   }
+
+	   /**
+	    * Set the cache serving the results of allow-listed queries prepared on the pool's connections.
+	    * A cache may be shared by several pools, so only allow-list queries whose results do not
+	    * depend on the user connected.
+	    *
+	    * @param resultCache the cache (null to always query the database)
+	    */
+	   public void setResultCache(QueryResultCache resultCache)
+	   {
+	      this.resultCache = resultCache;
+	   }
+
+	   public DataSource getStandbyDataSource()
+	   {
+	      return standbyDataSource;
+	   }
+
+	   /**
+	    * Set the data source a {@link FailoverConnectionPool} fails over to when the primary stops
+	    * handing out connections. It is opened with the same credentials as the primary.
+	    *
+	    * @param standbyDataSource the standby data source
+	    */
+	   public void setStandbyDataSource(DataSource standbyDataSource)
+	   {
+	      this.standbyDataSource = standbyDataSource;
+	   }
+
+	   public int getStandbyMinimumIdle()
+	   {
+	      return standbyMinimumIdle;
+	   }
+
+	   /**
+	    * Set how many validated connections to the standby are kept open while the primary is
+	    * healthy. The standby grows to the primary's minimum idle when the pool fails over.
+	    *
+	    * @param standbyMinimumIdle the number of warm standby connections
+	    */
+	   public void setStandbyMinimumIdle(int standbyMinimumIdle)
+	   {
+	      if (standbyMinimumIdle < 1) {
+	         throw new IllegalArgumentException("standbyMinimumIdle must be at least 1");
+	      }
+	      this.standbyMinimumIdle = standbyMinimumIdle;
+	   }
+
+	   public int getFailoverThreshold()
+	   {
+	      return failoverThreshold;
+	   }
+
+	   /**
+	    * Set how many borrows in a row may fail on the primary, by timing out or with a
+	    * connection-fatal error, before the pool fails over to the standby.
+	    *
+	    * @param failoverThreshold the number of consecutive failures
+	    */
+	   public void setFailoverThreshold(int failoverThreshold)
+	   {
+	      if (failoverThreshold < 1) {
+	         throw new IllegalArgumentException("failoverThreshold must be at least 1");
+	      }
+	      this.failoverThreshold = failoverThreshold;
+	   }
+
+	   public FailoverConnectionPool.FailbackPolicy getFailbackPolicy()
+	   {
+	      return failbackPolicy;
+	   }
+
+	   /**
+	    * Set how a pool that failed over to the standby goes back to the primary.
+	    *
+	    * @param failbackPolicy {@link FailoverConnectionPool.FailbackPolicy#MANUAL} to wait for a call to
+	    *        {@link FailoverConnectionPool#failback()}, {@link FailoverConnectionPool.FailbackPolicy#AUTOMATIC}
+	    *        to go back once the primary has been healthy for the failback delay
+	    */
+	   public void setFailbackPolicy(FailoverConnectionPool.FailbackPolicy failbackPolicy)
+	   {
+	      this.failbackPolicy = failbackPolicy;
+	   }
+
+	   public long getFailbackDelay()
+	   {
+	      return failbackDelay;
+	   }
+
+	   /**
+	    * Set how long the primary must hand out connections again before an automatic failback.
+	    *
+	    * @param failbackDelayMs the delay in milliseconds
+	    */
+	   public void setFailbackDelay(long failbackDelayMs)
+	   {
+	      if (failbackDelayMs < 0) {
+	         throw new IllegalArgumentException("failbackDelay cannot be negative");
+	      }
+	      this.failbackDelay = failbackDelayMs;
+	   }
+
 	   /**
 	    * Get the thread factory used to create threads.
 	    *
@@ -394,6 +818,115 @@ public class ConnectionConfig {
 	      this.threadFactory = threadFactory;
 	   }
 
+	   /**
+	    * Get the property file this configuration was loaded from.
+	    *
+	    * @return the property file name, or null if the configuration was built programmatically
+	    */
+	   public String getConfigurationFile()
+	   {
+	      return configurationFile;
+	   }
+
+	   public boolean isWatchConfigurationFile()
+	   {
+	      return watchConfigurationFile;
+	   }
+
+	   /**
+	    * Set whether a running pool should watch its property file and apply changes to the
+	    * pool size, minimum idle, timeouts and leak detection threshold without a restart.
+	    *
+	    * @param watchConfigurationFile true to reload the property file when it changes
+	    */
+	   public void setWatchConfigurationFile(boolean watchConfigurationFile)
+	   {
+	      this.watchConfigurationFile = watchConfigurationFile;
+	   }
+
+	   public boolean isSoftEvictOnFatalError()
+	   {
+	      return softEvictOnFatalError;
+	   }
+
+	   /**
+	    * Set whether a connection-fatal SQLState (class 08, or an administrator shutdown) seen on
+	    * any connection evicts every connection in the pool. After a database failover this
+	    * replaces one validation timeout per stale connection with a single bulk refill.
+	    *
+	    * @param softEvictOnFatalError true to soft evict the pool on fatal errors
+	    */
+	   public void setSoftEvictOnFatalError(boolean softEvictOnFatalError)
+	   {
+	      this.softEvictOnFatalError = softEvictOnFatalError;
+	   }
+
+	   /**
+	    * Take the settings that can be changed on a running pool from another, already
+	    * validated, configuration. They are published with a single write, so readers see
+	    * either all of the old settings or all of the new ones.
+	    *
+	    * @param other the configuration to copy from
+	    */
+	   synchronized void applyReloadableSettings(ConnectionConfig other)
+	   {
+	      this.settings = other.settings;
+	   }
+
+	   /**
+	    * Copy every setting of this configuration to another one, for a pool created from it.
+	    * The data source properties are copied. The collaborators are shared: the data sources,
+	    * the connection limiter, so one limit covers both pools, the registry, the exception
+	    * classifier and thread factory, which hold no state of a pool, and the result cache,
+	    * whose results are kept apart per pool and user.
+	    *
+	    * @param other the configuration to copy to
+	    */
+	   public void copyStateTo(ConnectionConfig other)
+	   {
+	      other.settings = this.settings;
+	      other.shutdownTimeout = this.shutdownTimeout;
+	      other.aliveBypassWindow = this.aliveBypassWindow;
+	      other.keepaliveTime = this.keepaliveTime;
+	      other.maxPoolConsumers = this.maxPoolConsumers;
+	      other.connectionCreationRate = this.connectionCreationRate;
+	      other.hostConnectionLimit = this.hostConnectionLimit;
+	      other.hostConnectionLimitFile = this.hostConnectionLimitFile;
+	      other.connectionLimiter = this.connectionLimiter;
+	      other.warmStartFile = this.warmStartFile;
+	      other.exceptionClassifier = this.exceptionClassifier;
+	      other.poolRegistry = this.poolRegistry;
+	      other.resultCache = this.resultCache;
+	      other.standbyDataSource = this.standbyDataSource;
+	      other.standbyMinimumIdle = this.standbyMinimumIdle;
+	      other.failoverThreshold = this.failoverThreshold;
+	      other.failbackPolicy = this.failbackPolicy;
+	      other.failbackDelay = this.failbackDelay;
+
+	      other.catalog = this.catalog;
+	      other.connectionTestQuery = this.connectionTestQuery;
+	      other.dataSourceClassName = this.dataSourceClassName;
+	      other.dataSourceJndiName = this.dataSourceJndiName;
+	      other.driverClassName = this.driverClassName;
+	      other.jdbcUrl = this.jdbcUrl;
+	      other.password = this.password;
+	      other.dataSource = this.dataSource;
+	      other.username = this.username;
+	      other.isAutoCommit = this.isAutoCommit;
+	      other.poolName = this.poolName;
+	      other.useJdbcValidation = this.useJdbcValidation;
+	      other.dataSourceProperties = new Properties();
+	      other.dataSourceProperties.putAll(this.dataSourceProperties);
+	      other.threadFactory = this.threadFactory;
+
+	      other.configurationFile = this.configurationFile;
+	      other.watchConfigurationFile = this.watchConfigurationFile;
+	      other.softEvictOnFatalError = this.softEvictOnFatalError;
+	      other.lifo = this.lifo;
+	      other.lazyConnection = this.lazyConnection;
+	      other.lazyReleaseOnCommit = this.lazyReleaseOnCommit;
+	   }
+
 	   public void validate()
 	   {
 	      Logger logger = LoggerFactory.getLogger(getClass());
@@ -418,22 +951,31 @@ public class ConnectionConfig {
 	      else if (dataSource != null && dataSourceClassName != null) {
 	         logger.warn("both dataSource and dataSourceClassName are specified, ignoring dataSourceClassName");
 	      }	      
+	      if (hostConnectionLimit > 0 && hostConnectionLimitFile == null && connectionLimiter == null) {
+	         logger.error("when specifying hostConnectionLimit, hostConnectionLimitFile must also be specified");
+	         throw new IllegalStateException("when specifying hostConnectionLimit, hostConnectionLimitFile must also be specified");
+	      }
 	      if (poolName == null) {
 	         poolName = "ConnecitonPool";
 	      }	      
 	   }
 
-	   private void validateNumerics()
+	   private synchronized void validateNumerics()
 	   {
 	      Logger logger = LoggerFactory.getLogger(getClass());
+	      final ReloadableSettings current = settings;
+	      long validationTimeout = current.validationTimeout;
+	      int minIdleConnections = current.minIdleConnections;
+	      long maxLifetime = current.maxLifetime;
+	      long leakDetectionThreshold = current.leakDetectionThreshold;
 
-	      if (validationTimeout > connectionTimeout && connectionTimeout != 0) {
+	      if (validationTimeout > current.connectionTimeout && current.connectionTimeout != 0) {
 	         logger.warn("validationTimeout is greater than connectionTimeout, setting validationTimeout to connectionTimeout.");
-	         validationTimeout = connectionTimeout;
+	         validationTimeout = current.connectionTimeout;
 	      }
 
-	      if (minIdleConnections < 0 || minIdleConnections > maxPoolSize) {
-	         minIdleConnections = maxPoolSize;
+	      if (minIdleConnections < 0 || minIdleConnections > current.maxPoolSize) {
+	         minIdleConnections = current.maxPoolSize;
 	      }
 
 	      if (maxLifetime < 0) {
@@ -445,22 +987,28 @@ public class ConnectionConfig {
 	         maxLifetime = MAX_LIFETIME;
 	      }
 	      
+	      if (current.idleTimeout < 0) {
+	         logger.error("idleTimeout cannot be negative.");
+	         throw new IllegalArgumentException("idleTimeout cannot be negative.");
+	      }
+
 	      if (leakDetectionThreshold != 0 && leakDetectionThreshold < TimeUnit.SECONDS.toMillis(2)) {
 	         logger.warn("leakDetectionThreshold is less than 2000ms, setting to minimum 2000ms.");
 	         leakDetectionThreshold = 2000L;
 	      }
+
+	      settings = new ReloadableSettings(current.maxPoolSize, minIdleConnections, current.connectionTimeout, validationTimeout,
+	            leakDetectionThreshold, maxLifetime, current.idleTimeout);
 	   }
-	   
+
 	   protected void loadProperties(String propertyFileName)
 	   {
 	      final File propFile = new File(propertyFileName);
-	      try {
-		      final InputStream stream = new FileInputStream(propFile);
-		      if (stream != null) {
-	            Properties props = new Properties();
-	            props.load(stream);
-	            this.setProperties(props);
-	         }
+	      try (final InputStream stream = new FileInputStream(propFile)) {
+	         Properties props = new Properties();
+	         props.load(stream);
+	         this.setProperties(props);
+	         this.configurationFile = propertyFileName;
 	      }   
 	      catch (IOException io) {
 	         throw new RuntimeException("Error loading properties file", io);
@@ -491,6 +1039,12 @@ public class ConnectionConfig {
 	      }
 	   }
 	   
+	   @SuppressWarnings({ "unchecked", "rawtypes" })
+	   private static Object enumValue(Class<?> enumClass, String name)
+	   {
+	      return Enum.valueOf((Class<? extends Enum>) enumClass, name.trim().toUpperCase(Locale.ROOT));
+	   }
+
 	   private void setProperty(String propName, Object propValue)
 	   {
 		  Logger logger = LoggerFactory.getLogger(getClass());
@@ -526,6 +1080,9 @@ public class ConnectionConfig {
 	         else if (paramClass == String.class) {
 	            writeMethod.invoke(this, propValue.toString());
 	         }
+	         else if (paramClass.isEnum()) {
+	            writeMethod.invoke(this, enumValue(paramClass, propValue.toString()));
+	         }
 	         else {
 	            writeMethod.invoke(this, propValue);
 	         }
@@ -535,4 +1092,30 @@ public class ConnectionConfig {
 	         throw new RuntimeException(e);
 	      }
 	   }
+
+	   /**
+	    * The settings of a pool that a configuration reload can change, as one immutable snapshot
+	    */
+	   static final class ReloadableSettings
+	   {
+	      final int maxPoolSize;
+	      final int minIdleConnections;
+	      final long connectionTimeout;
+	      final long validationTimeout;
+	      final long leakDetectionThreshold;
+	      final long maxLifetime;
+	      final long idleTimeout;
+
+	      ReloadableSettings(int maxPoolSize, int minIdleConnections, long connectionTimeout, long validationTimeout,
+	            long leakDetectionThreshold, long maxLifetime, long idleTimeout)
+	      {
+	         this.maxPoolSize = maxPoolSize;
+	         this.minIdleConnections = minIdleConnections;
+	         this.connectionTimeout = connectionTimeout;
+	         this.validationTimeout = validationTimeout;
+	         this.leakDetectionThreshold = leakDetectionThreshold;
+	         this.maxLifetime = maxLifetime;
+	         this.idleTimeout = idleTimeout;
+	      }
+	   }
 }
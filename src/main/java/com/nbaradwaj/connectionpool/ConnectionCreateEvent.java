@@ -0,0 +1,31 @@
+package com.nbaradwaj.connectionpool;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event emitted when the pool manager opens a new physical connection.
+ * The duration of the event is the connect latency, including the initial validation.
+ */
+@Name("com.nbaradwaj.connectionpool.ConnectionCreate")
+@Label("Connection Create")
+@Category("Connection Pool")
+@Description("A physical connection opened by the pool manager")
+@StackTrace(false)
+final class ConnectionCreateEvent extends jdk.jfr.Event {
+
+	static final EventType TYPE = EventType.getEventType(ConnectionCreateEvent.class);
+
+	@Label("Pool Name")
+	String poolName;
+
+	@Label("Connection Id")
+	long connectionId;
+
+	@Label("Success")
+	boolean success;
+}
@@ -0,0 +1,43 @@
+package com.nbaradwaj.connectionpool;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event emitted when a connection is closed and removed from the pool.
+ */
+@Name("com.nbaradwaj.connectionpool.ConnectionEvict")
+@Label("Connection Evict")
+@Category("Connection Pool")
+@Description("A connection closed and removed from the pool")
+@StackTrace(false)
+final class ConnectionEvictEvent extends jdk.jfr.Event {
+
+	static final EventType TYPE = EventType.getEventType(ConnectionEvictEvent.class);
+
+	@Label("Pool Name")
+	String poolName;
+
+	@Label("Connection Id")
+	long connectionId;
+
+	@Label("Reason")
+	String reason;
+
+	/**
+	 * Record an eviction if a recording is listening for it.
+	 */
+	static void emit(String poolName, long connectionId, String reason) {
+		if (TYPE.isEnabled()) {
+			final ConnectionEvictEvent event = new ConnectionEvictEvent();
+			event.poolName = poolName;
+			event.connectionId = connectionId;
+			event.reason = reason;
+			event.commit();
+		}
+	}
+}
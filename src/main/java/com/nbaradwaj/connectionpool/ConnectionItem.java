@@ -1,14 +1,41 @@
 package com.nbaradwaj.connectionpool;
 
 import java.sql.Connection;
-import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A pooled connection and its place in the pool's state machine. Every transition is made by
+ * compare-and-set, so borrowers and background work agree on who owns an idle connection
+ * without taking a lock:
+ * <pre>
+ * NOT_IN_USE -&gt; RESERVED -&gt; IN_USE -&gt; NOT_IN_USE
+ *                        \-&gt; NOT_IN_USE
+ * any state  -&gt; EVICTED
+ * </pre>
+ * A connection is reserved by whoever is about to inspect it, a borrower validating it before
+ * handing it out or housekeeping validating it out of the idle queue. Only the reserver moves it
+ * on, and an eviction while it is reserved is seen when the reserver tries to.
+ */
 public interface ConnectionItem {
 	int STATE_NOT_IN_USE = 0;
 	int STATE_IN_USE = 1;
 	int STATE_EVICTED = 2;
+	int STATE_RESERVED = 3;
 
-	AtomicInteger state();
+	int getState();
+	
+	boolean compareAndSetState(int expect, int update);
+	
+	/**
+	 * Evict the connection from whatever state it is in.
+	 * @return true if this call evicted it, false if it already was
+	 */
+	boolean evict();
+	
+	long getId();
+	
+	long getLastAccessed();
+	
+	void setLastAccessed(long lastAccessed);
 	
 	Connection getConnection();
 }
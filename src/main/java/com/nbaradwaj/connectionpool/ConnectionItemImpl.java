@@ -1,5 +1,9 @@
 package com.nbaradwaj.connectionpool;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -8,27 +12,76 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.NClob;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLClientInfoException;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.SQLWarning;
 import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class ConnectionItemImpl implements ConnectionItem, Connection {
 	
-	private AtomicInteger state;
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+	
+	/**
+	 * How long a rollback started after the deadline may take, so the transaction is still undone
+	 */
+	static final int ROLLBACK_GRACE_MS = 1000;
+	
+	/**
+	 * Runs the driver's network timeout work on the calling thread
+	 */
+	private static final Executor DIRECT_EXECUTOR = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
 	private Connection connection;
 	private ConnectionPool pool;
 	private long id;
+	
+	/**
+	 * The state and timestamps of the connection live in the pool's table, at this slot and generation
+	 */
+	private final ConnectionTable table;
+	private final long handle;
+	
+	/**
+	 * The System.nanoTime() by which the borrower's work has to be done, if it gave one
+	 */
+	private long deadline;
+	private boolean hasDeadline;
+	
+	/**
+	 * The catalog and schema set through this connection, null while it is on the defaults of its pool.
+	 * The physical connection keeps them from one borrower to the next.
+	 */
+	private String catalog;
+	private String schema;
 
 	@Override
-	public AtomicInteger state() {
-		return this.state;
+	public int getState() {
+		return table.getState(handle);
+	}
+	
+	@Override
+	public boolean compareAndSetState(int expect, int update) {
+		return table.compareAndSetState(handle, expect, update);
+	}
+	
+	@Override
+	public boolean evict() {
+		return table.evict(handle);
 	}
 	
 	@Override
@@ -36,11 +89,231 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		return connection;
 	}
 	
-	public ConnectionItemImpl(Connection connection, ConnectionPool pool, long id) {
+	@Override
+	public long getId() {
+		return id;
+	}
+	
+	/**
+	 * @return the System.nanoTime() at which the connection was created or last returned to the pool
+	 */
+	@Override
+	public long getLastAccessed() {
+		return table.getLastAccessed(getSlot());
+	}
+	
+	@Override
+	public void setLastAccessed(long lastAccessed) {
+		table.setLastAccessed(getSlot(), lastAccessed);
+	}
+	
+	/**
+	 * @return the slot of the connection in the pool's {@link ConnectionTable}
+	 */
+	public int getSlot() {
+		return (int) handle;
+	}
+	
+	/**
+	 * Record a checkout of the connection.
+	 */
+	void borrowed(long now) {
+		table.borrowed(getSlot(), now);
+		hasDeadline = false;
+	}
+	
+	/**
+	 * Give the statements of this checkout the time left before the deadline as their query timeout,
+	 * and its commits and rollbacks the time left as their network timeout.
+	 */
+	void setDeadline(long deadline) {
+		this.deadline = deadline;
+		this.hasDeadline = true;
+	}
+	
+	/**
+	 * @return the query timeout in seconds that keeps a statement within the deadline, rounded
+	 *         up, or 0 if the borrower gave no deadline
+	 * @throws SQLTimeoutException if the deadline has passed
+	 */
+	private int queryTimeout() throws SQLTimeoutException {
+		if (!hasDeadline) {
+			return 0;
+		}
+		final long remaining = deadline - System.nanoTime();
+		if (remaining <= 0) {
+			throw new SQLTimeoutException("Deadline passed " + TimeUnit.NANOSECONDS.toMillis(-remaining) + "ms ago, not starting another statement");
+		}
+		return (int) Math.min(Integer.MAX_VALUE, (remaining + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND);
+	}
+	
+	/**
+	 * @param graceMs the time to allow once the deadline has passed, 0 to fail instead
+	 * @return the network timeout in milliseconds that keeps a commit or rollback within the
+	 *         deadline, or 0 if the borrower gave no deadline
+	 * @throws SQLTimeoutException if the deadline has passed and no grace is allowed
+	 */
+	private int networkTimeout(int graceMs) throws SQLTimeoutException {
+		if (!hasDeadline) {
+			return 0;
+		}
+		final long remaining = deadline - System.nanoTime();
+		if (remaining <= 0 && graceMs == 0) {
+			throw new SQLTimeoutException("Deadline passed " + TimeUnit.NANOSECONDS.toMillis(-remaining) + "ms ago, not starting the transaction end");
+		}
+		final long remainingMs = TimeUnit.NANOSECONDS.toMillis(remaining + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(graceMs, remainingMs));
+	}
+	
+	/**
+	 * Bound the calls on the physical connection by a network timeout, unless it already has a shorter one.
+	 * @return the network timeout to restore, or -1 if it was left alone
+	 */
+	private int setNetworkTimeout(int networkTimeout) throws SQLException {
+		if (networkTimeout == 0) {
+			return -1;
+		}
+		final int previous = this.connection.getNetworkTimeout();
+		if (previous > 0 && previous <= networkTimeout) {
+			return -1;
+		}
+		this.connection.setNetworkTimeout(DIRECT_EXECUTOR, networkTimeout);
+		return previous;
+	}
+	
+	private void restoreNetworkTimeout(int previous) throws SQLException {
+		if (previous >= 0) {
+			this.connection.setNetworkTimeout(DIRECT_EXECUTOR, previous);
+		}
+	}
+	
+	private static <T extends Statement> T withQueryTimeout(T statement, int queryTimeout) throws SQLException {
+		if (queryTimeout > 0) {
+			try {
+				statement.setQueryTimeout(queryTimeout);
+			} catch (SQLException e) {
+				statement.close();
+				throw e;
+			}
+		}
+		return statement;
+	}
+	
+	/**
+	 * Wrap a statement of this connection, so that the exceptions thrown by it and by its result
+	 * sets go through {@link #checkException(SQLException)} like those of the connection, and a
+	 * broken connection is noticed whichever object the driver reports it on.
+	 */
+	private <T extends Statement> T wrap(T statement, Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new StatementHandler(statement, null)));
+	}
+	
+	/**
+	 * Forwards the calls on a statement or a result set of this connection to the driver's object.
+	 * Each execution of a statement gets the time then left before the deadline as its query timeout.
+	 */
+	private final class StatementHandler implements InvocationHandler {
+		private final Object target;
+		
+		/**
+		 * The statement a result set came from, null for a statement
+		 */
+		private final Object statement;
+		
+		/**
+		 * True while the query timeout of the statement comes from a deadline
+		 */
+		private boolean deadlineApplied;
+		
+		StatementHandler(Object target, Object statement) {
+			this.target = target;
+			this.statement = statement;
+			this.deadlineApplied = statement == null && hasDeadline;
+		}
+		
+		private void applyDeadline() throws SQLException {
+			final int queryTimeout = queryTimeout();
+			if (queryTimeout == 0 && !deadlineApplied) {
+				return;
+			}
+			try {
+				((Statement) target).setQueryTimeout(queryTimeout);
+			} catch (SQLException e) {
+				throw checkException(e);
+			}
+			deadlineApplied = queryTimeout > 0;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			if (name.equals("equals") && method.getDeclaringClass() == Object.class) {
+				return proxy == args[0];
+			}
+			else if (name.equals("hashCode") && method.getDeclaringClass() == Object.class) {
+				return System.identityHashCode(proxy);
+			}
+			else if (name.equals("getConnection") && statement == null) {
+				return ConnectionItemImpl.this;
+			}
+			else if (name.equals("getStatement") && statement != null) {
+				return statement;
+			}
+			else if (name.startsWith("execute") && statement == null) {
+				applyDeadline();
+			}
+			final Object result;
+			try {
+				result = method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof SQLException) {
+					throw checkException((SQLException) e.getCause());
+				}
+				throw e.getCause();
+			}
+			if (statement == null && result instanceof ResultSet && method.getReturnType() == ResultSet.class) {
+				return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new StatementHandler(result, proxy));
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * Record a successful validation of the connection.
+	 */
+	void validated(long now) {
+		table.setLastValidated(getSlot(), now);
+	}
+	
+	/**
+	 * Give the slot of a removed connection back to the table. The connection reads as evicted from then on.
+	 * @return false if the slot had already been freed
+	 */
+	boolean freeSlot() {
+		return table.free(handle);
+	}
+	
+	public ConnectionItemImpl(Connection connection, ConnectionPool pool, long id, ConnectionTable table) {
 		this.connection = connection;
 		this.pool = pool;
-		this.state = new AtomicInteger(ConnectionItem.STATE_NOT_IN_USE);
 		this.id = id;
+		this.table = table;
+		this.handle = table.allocate(System.nanoTime());
+		table.attach(handle, this);
+	}
+
+	/**
+	 * Inspect an exception on its way from the driver to the caller, so the pool can react
+	 * to errors that mean the database connection is broken.
+	 *
+	 * @param e the exception thrown by the driver
+	 * @return the same exception, to be rethrown
+	 */
+	private <T extends SQLException> T checkException(T e) {
+		if (this.pool instanceof ConnectionPoolImpl) {
+			((ConnectionPoolImpl) this.pool).connectionFailed(this, e);
+		}
+		return e;
 	}
 
 	@Override
@@ -48,7 +321,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.isWrapperFor(arg0);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -57,7 +330,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.unwrap(arg0);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -66,7 +339,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			this.connection.clearWarnings();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -77,16 +350,22 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 			//TODO - close any open statements and rollback if required.
 			this.pool.releaseConnection(this);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public void commit() throws SQLException {
+		final int networkTimeout = networkTimeout(0);
 		try {
-			this.connection.commit();
+			final int previous = setNetworkTimeout(networkTimeout);
+			try {
+				this.connection.commit();
+			} finally {
+				restoreNetworkTimeout(previous);
+			}
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -96,7 +375,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.createArrayOf(typeName, elements);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -105,7 +384,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.createBlob();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -114,7 +393,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.createClob();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -123,7 +402,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.createNClob();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -132,26 +411,28 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.createSQLXML();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public Statement createStatement() throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.createStatement();
+			return wrap(withQueryTimeout(this.connection.createStatement(), queryTimeout), Statement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public Statement createStatement(int resultSetType, int resultSetConcurrency)
 			throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.createStatement(resultSetType, resultSetConcurrency);
+			return wrap(withQueryTimeout(this.connection.createStatement(resultSetType, resultSetConcurrency), queryTimeout), Statement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -159,10 +440,11 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 	public Statement createStatement(int resultSetType,
 			int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+			return wrap(withQueryTimeout(this.connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability), queryTimeout), Statement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -172,7 +454,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.createStruct(typeName, attributes);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -181,7 +463,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.getAutoCommit();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -190,7 +472,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.getCatalog();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -199,7 +481,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.getClientInfo();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -208,7 +490,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.getClientInfo(name);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -217,7 +499,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.getHoldability();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -226,7 +508,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.getMetaData();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -235,7 +517,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.getTransactionIsolation();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -244,7 +526,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.getTypeMap();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -253,7 +535,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.getWarnings();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -262,7 +544,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.isClosed();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -271,7 +553,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.isReadOnly();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -280,7 +562,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.isValid(timeout);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -289,26 +571,28 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.nativeSQL(sql);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public CallableStatement prepareCall(String sql) throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.prepareCall(sql);
+			return wrap(withQueryTimeout(this.connection.prepareCall(sql), queryTimeout), CallableStatement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public CallableStatement prepareCall(String sql, int resultSetType,
 			int resultSetConcurrency) throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.prepareCall(sql);
+			return wrap(withQueryTimeout(this.connection.prepareCall(sql, resultSetType, resultSetConcurrency), queryTimeout), CallableStatement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -316,59 +600,91 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 	public CallableStatement prepareCall(String sql, int resultSetType,
 			int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.prepareCall(sql, resultSetType, resultSetConcurrency);
+			return wrap(withQueryTimeout(this.connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability), queryTimeout), CallableStatement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
-	public PreparedStatement prepareStatement(String sql) throws SQLException {
+	public PreparedStatement prepareStatement(final String sql) throws SQLException {
+		final QueryResultCache cache = this.pool instanceof ConnectionPoolImpl ? ((ConnectionPoolImpl) this.pool).getResultCache() : null;
+		if (cache != null && cache.isCacheable(sql)) {
+			return cache.prepare(this, sql, new QueryResultCache.StatementFactory() {
+				@Override
+				public PreparedStatement prepare() throws SQLException {
+					return prepareUncached(sql);
+				}
+			});
+		}
+		return prepareUncached(sql);
+	}
+
+	/**
+	 * @return the pool, user, catalog and schema the queries of this connection run as, for the result cache
+	 */
+	Object cacheScope() {
+		if (this.pool instanceof ConnectionPoolImpl) {
+			return ((ConnectionPoolImpl) this.pool).cacheScope(this.catalog, this.schema);
+		}
+		return Arrays.asList(this.pool, this.catalog, this.schema);
+	}
+
+	/**
+	 * Prepare a statement on the physical connection, bypassing the result cache.
+	 */
+	PreparedStatement prepareUncached(String sql) throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.prepareStatement(sql);
+			return wrap(withQueryTimeout(this.connection.prepareStatement(sql), queryTimeout), PreparedStatement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
 			throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.prepareStatement(sql, autoGeneratedKeys);
+			return wrap(withQueryTimeout(this.connection.prepareStatement(sql, autoGeneratedKeys), queryTimeout), PreparedStatement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
 			throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.prepareStatement(sql, columnIndexes);
+			return wrap(withQueryTimeout(this.connection.prepareStatement(sql, columnIndexes), queryTimeout), PreparedStatement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, String[] columnNames)
 			throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.prepareStatement(sql, columnNames);
+			return wrap(withQueryTimeout(this.connection.prepareStatement(sql, columnNames), queryTimeout), PreparedStatement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public PreparedStatement prepareStatement(String sql, int resultSetType,
 			int resultSetConcurrency) throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+			return wrap(withQueryTimeout(this.connection.prepareStatement(sql, resultSetType, resultSetConcurrency), queryTimeout), PreparedStatement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -376,10 +692,11 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 	public PreparedStatement prepareStatement(String sql, int resultSetType,
 			int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
+		final int queryTimeout = queryTimeout();
 		try {
-			return this.connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+			return wrap(withQueryTimeout(this.connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), queryTimeout), PreparedStatement.class);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -388,25 +705,37 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 		    this.connection.releaseSavepoint(savepoint);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public void rollback() throws SQLException {
+		final int networkTimeout = networkTimeout(ROLLBACK_GRACE_MS);
 		try {
-			this.connection.rollback();
+			final int previous = setNetworkTimeout(networkTimeout);
+			try {
+				this.connection.rollback();
+			} finally {
+				restoreNetworkTimeout(previous);
+			}
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
 	@Override
 	public void rollback(Savepoint savepoint) throws SQLException {
+		final int networkTimeout = networkTimeout(ROLLBACK_GRACE_MS);
 		try {
-			this.connection.rollback(savepoint);
+			final int previous = setNetworkTimeout(networkTimeout);
+			try {
+				this.connection.rollback(savepoint);
+			} finally {
+				restoreNetworkTimeout(previous);
+			}
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -415,7 +744,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			this.connection.setAutoCommit(autoCommit);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -423,8 +752,9 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 	public void setCatalog(String catalog) throws SQLException {
 		try {
 			this.connection.setCatalog(catalog);
+			this.catalog = catalog;
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -434,7 +764,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			this.connection.setClientInfo(properties);
 		} catch (SQLClientInfoException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -444,7 +774,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			this.connection.setClientInfo(name, value);
 		} catch (SQLClientInfoException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -453,7 +783,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			this.connection.setHoldability(holdability);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -462,7 +792,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			this.connection.setReadOnly(readOnly);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -471,7 +801,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.setSavepoint();
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -480,7 +810,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			return this.connection.setSavepoint(name);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -489,7 +819,7 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			this.connection.setTransactionIsolation(level);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
 		}
 	}
 
@@ -498,7 +828,53 @@ public class ConnectionItemImpl implements ConnectionItem, Connection {
 		try {
 			this.connection.setTypeMap(map);
 		} catch (SQLException e) {
-			throw e;
+			throw checkException(e);
+		}
+	}
+
+	@Override
+	public void setSchema(String schema) throws SQLException {
+		try {
+			this.connection.setSchema(schema);
+			this.schema = schema;
+		} catch (SQLException e) {
+			throw checkException(e);
+		}
+	}
+
+	@Override
+	public String getSchema() throws SQLException {
+		try {
+			return this.connection.getSchema();
+		} catch (SQLException e) {
+			throw checkException(e);
+		}
+	}
+
+	@Override
+	public void abort(Executor executor) throws SQLException {
+		try {
+			this.connection.abort(executor);
+		} catch (SQLException e) {
+			throw checkException(e);
+		}
+	}
+
+	@Override
+	public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+		try {
+			this.connection.setNetworkTimeout(executor, milliseconds);
+		} catch (SQLException e) {
+			throw checkException(e);
+		}
+	}
+
+	@Override
+	public int getNetworkTimeout() throws SQLException {
+		try {
+			return this.connection.getNetworkTimeout();
+		} catch (SQLException e) {
+			throw checkException(e);
 		}
 	}
 
@@ -0,0 +1,51 @@
+package com.nbaradwaj.connectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection handed out by a {@link ConnectionPublisher}. The subscriber gives the connection
+ * back by releasing the lease, once; releasing it again does nothing.
+ */
+public class ConnectionLease implements AutoCloseable {
+
+	private final Connection connection;
+	private final ConnectionPoolImpl pool;
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	ConnectionLease(Connection connection, ConnectionPoolImpl pool) {
+		this.connection = connection;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return the leased connection
+	 */
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Give the connection back to the pool.
+	 *
+	 * @throws SQLException if the pool fails to take the connection back
+	 */
+	public void release() throws SQLException {
+		if (released.compareAndSet(false, true)) {
+			pool.releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * @return true once the connection has been given back
+	 */
+	public boolean isReleased() {
+		return released.get();
+	}
+
+	@Override
+	public void close() throws SQLException {
+		release();
+	}
+}
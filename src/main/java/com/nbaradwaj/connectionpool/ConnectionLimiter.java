@@ -0,0 +1,20 @@
+package com.nbaradwaj.connectionpool;
+
+/**
+ * A limit on open connections shared beyond a single pool. The pool manager takes a permit
+ * before opening a connection and gives it back when the connection is closed.
+ */
+public interface ConnectionLimiter {
+
+	/**
+	 * Take a permit for a new connection if the limit allows it, without waiting.
+	 *
+	 * @return true if the connection may be opened
+	 */
+	boolean tryAcquire();
+
+	/**
+	 * Give back the permit of a closed connection, or of a connection that could not be opened.
+	 */
+	void release();
+}
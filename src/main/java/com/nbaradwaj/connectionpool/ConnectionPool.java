@@ -22,4 +22,52 @@ public interface ConnectionPool {
      * @throws java.sql.SQLException
      */
     void releaseConnection(Connection connection) throws SQLException;
+
+    /**
+     * Borrows a connection, runs the work with it and always releases it, so the connection
+     * cannot leak. If the work fails with a connection-fatal SQLException the connection is
+     * evicted instead of being returned to the pool, and a transaction left open by failed
+     * work is rolled back.
+     *
+     * @param callback the work to do
+     * @return the result of the work
+     * @throws SQLException thrown by the work, or if no connection could be borrowed
+     */
+    <T> T withConnection(ConnectionCallback<T> callback) throws SQLException;
+
+    /**
+     * Like {@link #withConnection(ConnectionCallback)}, but retries, backing off between
+     * attempts, as long as the retry timeout has not run out: borrowing a connection is retried
+     * whatever the failure, and the work only when it fails with a {@link java.sql.SQLTransientException}
+     * that is not connection-fatal. Work that broke its connection may have partly run, so it
+     * is not retried; the connection is evicted. The retry timeout bounds the whole call,
+     * waiting for connections included.
+     *
+     * @param callback the work to do
+     * @param retryTimeoutMs the time allowed for the call and its retries, in milliseconds
+     * @return the result of the work
+     * @throws SQLException the last failure of the work, or if no connection could be borrowed
+     */
+    <T> T withConnection(ConnectionCallback<T> callback, long retryTimeoutMs) throws SQLException;
+
+    /**
+     * Evicts every connection in the pool, for example after a database failover. Idle
+     * connections are closed immediately, connections in use are closed when they are
+     * released, and the pool is refilled with new connections in the background.
+     */
+    void softEvictConnections();
+
+    /**
+     * Shuts the pool down. New borrowers are rejected immediately, connections in use are
+     * given until the configured shutdown timeout to be released, and then every connection
+     * is closed and the threads of the pool are stopped.
+     *
+     * @throws InterruptedException if interrupted while waiting for the pool to drain
+     */
+    void shutdown() throws InterruptedException;
+
+    /**
+     * @return true once {@link #shutdown()} has been called
+     */
+    boolean isShutdown();
 }
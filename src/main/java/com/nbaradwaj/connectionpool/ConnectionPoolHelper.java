@@ -1,6 +1,8 @@
 package com.nbaradwaj.connectionpool;
 
 import java.sql.Connection;
+import java.util.concurrent.ThreadFactory;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,6 +10,25 @@ public final class ConnectionPoolHelper {
 	
 	 private static final Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
 
+	/**
+	 * Create a pool thread, using the configured thread factory if there is one.
+	 *
+	 * @param config the pool configuration
+	 * @param runnable the work of the thread
+	 * @param name the name given to threads created without a configured factory
+	 * @return a new, unstarted thread
+	 */
+	public static Thread newThread(final ConnectionConfig config, final Runnable runnable, final String name)
+	{
+		final ThreadFactory threadFactory = config.getThreadFactory();
+		if (threadFactory != null) {
+			return threadFactory.newThread(runnable);
+		}
+		final Thread thread = new Thread(runnable, config.getPoolName() + " " + name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
 	/**
      * Close connection and eat any exception.
      *
@@ -1,11 +1,22 @@
 package com.nbaradwaj.connectionpool;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,12 +47,27 @@ public class ConnectionPoolImpl implements ConnectionPool {
 	/**
 	 * This is the list that holds all the open idle connections
 	 */
-	private LinkedBlockingQueue<ConnectionItem> idleConnections;
+	private ConnectionQueue idleConnections;
 	
 	/**
 	 * This is the list that holds all the active connections currently in use
 	 */
-	private LinkedBlockingQueue<ConnectionItem> activeConnections;
+	private ConnectionQueue activeConnections;
+	
+	/**
+	 * The state and timestamps of every connection in the pool, indexed by connection slot
+	 */
+	private final ConnectionTable connectionTable;
+	
+	/**
+	 * Learns the peak use of the pool for the next start, or null if the pool keeps no profile
+	 */
+	private final WarmStartProfile warmStart;
+	
+	/**
+	 * Decides which exceptions thrown through a connection mean it must be evicted
+	 */
+	private final SQLExceptionClassifier exceptionClassifier;
 	
 	/**
 	 * The pool manager instance manages the house keeping of the connections in the pool
@@ -50,6 +76,47 @@ public class ConnectionPoolImpl implements ConnectionPool {
 	 */
 	private PoolManager poolManager;
 	
+	/**
+	 * Counters describing the life of the pool
+	 */
+	private final PoolMetrics metrics = new PoolMetrics();
+	
+	/**
+	 * Applies changes to the configuration file while the pool is running, if enabled
+	 */
+	private ConfigurationWatcher configurationWatcher;
+	
+	/**
+	 * Set once the pool is shutting down. Waiting borrowers are woken with the marker item,
+	 * and connections released during shutdown are closed on the closer executor.
+	 */
+	private volatile boolean shutdown;
+	private final ConnectionItemImpl shutdownMarker;
+	private volatile ExecutorService shutdownCloser;
+	
+	/**
+	 * Notified when the last connection in use comes back during shutdown
+	 */
+	private final Object drained = new Object();
+	private static final int MAX_CLOSE_THREADS = 64;
+	
+	/**
+	 * Bounds of the backoff between attempts of {@link #withConnection(ConnectionCallback, long)}
+	 */
+	private static final long MIN_RETRY_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long MAX_RETRY_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+	
+	/**
+	 * Held by a batch borrower while it gathers its connections, so batch borrowers reserve in turn
+	 */
+	private final ReentrantLock batchLock = new ReentrantLock(true);
+	
+	/**
+	 * Told whenever a connection becomes idle, by borrowers that do not block waiting for one
+	 */
+	private static final Runnable[] NO_LISTENERS = new Runnable[0];
+	private volatile Runnable[] availabilityListeners = NO_LISTENERS;
+	
 	/**
      * Construct with the specified configuration.
      *
@@ -58,28 +125,181 @@ public class ConnectionPoolImpl implements ConnectionPool {
 	public ConnectionPoolImpl(ConnectionConfig config) {
 		//Read the configuration for the connection pool
 		this.config = config;
+		this.config.validate();
+		if (this.config.getPoolRegistry() != null) {
+			this.config.getPoolRegistry().register(this.config.getPoolName(), this);
+		}
+		try {
+			this.exceptionClassifier = this.config.getExceptionClassifier() != null ? this.config.getExceptionClassifier() : new SQLStateExceptionClassifier();
+		
+			// Set the maximum number of consumers for the connection pool
+			this.poolLock = new Semaphore(this.config.getMaximumPoolConsumers());
 		
-		// Set the maximum number of consumers for the connection pool
-		this.poolLock = new Semaphore(this.config.getMaximumPoolConsumers());
+			//initialize the data structures that hold the connections in the pool.
+			//They are sized for the whole pool up front so that moving connections between them never allocates.
+			idleConnections = new ConnectionQueue(this.config.getMaximumPoolSize(), this.config.isLifo());
+			activeConnections = new ConnectionQueue(this.config.getMaximumPoolSize());
+			connectionTable = new ConnectionTable(this.config.getMaximumPoolSize() + 1);
+			shutdownMarker = new ConnectionItemImpl(null, this, -1, connectionTable);
+			shutdownMarker.evict(); // It holds no connection, so sweeps of the table must leave it alone
 		
-		//initialize the data structures that hold the connections in the pool.
-		idleConnections = new LinkedBlockingQueue<ConnectionItem>();
-		activeConnections = new LinkedBlockingQueue<ConnectionItem>();
+			//Create a pool manager and initialize the connection pool
+			this.getPoolManager().addInitialConnections();
+			this.warmStart = this.getPoolManager().getWarmStartProfile();
+			this.getPoolManager().prefill();
+			this.getPoolManager().startHousekeeping();
 		
-		//Create a pool manager and initialize the connection pool
-		this.getPoolManager().addConnections();
+			if (this.config.isWatchConfigurationFile() && this.config.getConfigurationFile() != null) {
+				try {
+					this.configurationWatcher = new ConfigurationWatcher(this.config, this);
+					this.configurationWatcher.start();
+				} catch (IOException e) {
+					LOGGER.error("Unable to watch configuration file {} of pool {}", this.config.getConfigurationFile(), this.config.getPoolName(), e);
+				}
+			}
+		} catch (RuntimeException e) {
+			// Give the name back, so that a pool created again under it can register
+			if (this.poolManager != null) {
+				this.poolManager.shutdown();
+			}
+			if (this.config.getPoolRegistry() != null) {
+				this.config.getPoolRegistry().unregister(this.config.getPoolName(), this);
+			}
+			throw e;
+		}
 	}
 
+	/**
+	 * Get a connection from the pool. A pool configured for lazy connections returns a
+	 * {@link LazyConnection} at once, which borrows a pooled connection only when it is used.
+	 */
 	@Override
 	public Connection getConnection() throws SQLException {
+		if (this.config.isLazyConnection()) {
+			if (shutdown) {
+				throw new SQLException("Pool " + this.config.getPoolName() + " has been shut down");
+			}
+			return new LazyConnection(this, this.config.getConnectionTimeout(), this.config.isLazyReleaseOnCommit());
+		}
 		return this.getConnection(this.config.getConnectionTimeout());
 	}
 
 	@Override
 	public void releaseConnection(Connection connection) throws SQLException {
+		if (connection instanceof LazyConnection) {
+			connection.close();
+			return;
+		}
 		this.releaseConnection((ConnectionItem) connection);
 	}
 	
+	@Override
+	public <T> T withConnection(final ConnectionCallback<T> callback) throws SQLException {
+		final Connection connection = this.getConnection(this.config.getConnectionTimeout());
+		return lend(connection, callback);
+	}
+
+	@Override
+	public <T> T withConnection(final ConnectionCallback<T> callback, final long retryTimeoutMs) throws SQLException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryTimeoutMs);
+		long backoff = MIN_RETRY_BACKOFF_NANOS;
+		while (true) {
+			final long remaining = deadline - System.nanoTime();
+			final long connectionTimeout = Math.min(this.config.getConnectionTimeout(), Math.max(1L, TimeUnit.NANOSECONDS.toMillis(remaining)));
+			final Connection connection;
+			try {
+				connection = this.getConnection(connectionTimeout);
+			}
+			catch (SQLException e) {
+				// The work has not run, so borrowing again is safe
+				if (shutdown || deadline - System.nanoTime() <= backoff) {
+					throw e;
+				}
+				backoff = backOff(backoff, e);
+				continue;
+			}
+			try {
+				return lend(connection, callback);
+			}
+			catch (SQLException e) {
+				// The work may have done some of its writes: only retry failures the database
+				// reports as transient, and never one that broke the connection, which lend evicted
+				if (!(e instanceof SQLTransientException) || exceptionClassifier.isConnectionFatal(e)
+						|| deadline - System.nanoTime() <= backoff) {
+					throw e;
+				}
+				backoff = backOff(backoff, e);
+			}
+		}
+	}
+
+	/**
+	 * Wait before the next attempt of {@link #withConnection(ConnectionCallback, long)}.
+	 *
+	 * @return the wait before the attempt after it
+	 * @throws SQLException the failure, if interrupted while waiting
+	 */
+	private long backOff(final long backoff, final SQLException e) throws SQLException {
+		LOGGER.debug("Retrying work on pool {} in {}ms after {}", this.config.getPoolName(), TimeUnit.NANOSECONDS.toMillis(backoff), e.toString());
+		try {
+			TimeUnit.NANOSECONDS.sleep(backoff);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			e.addSuppressed(ie);
+			throw e;
+		}
+		return Math.min(backoff * 2, MAX_RETRY_BACKOFF_NANOS);
+	}
+
+	/**
+	 * Run the work with a borrowed connection and release it whatever happens. A connection the
+	 * work found broken is evicted, and a transaction left open by failed work is rolled back.
+	 */
+	private <T> T lend(final Connection connection, final ConnectionCallback<T> callback) throws SQLException {
+		final ConnectionItem connectionItem = (ConnectionItem) connection;
+		try {
+			final T result = callback.doInConnection(connection);
+			releaseConnection(connectionItem);
+			return result;
+		}
+		catch (SQLException e) {
+			if (exceptionClassifier.isConnectionFatal(e)) {
+				// Thrown by the work itself, or already seen on its way through the connection
+				if (connectionItem.getState() != ConnectionItem.STATE_EVICTED) {
+					connectionFailed(connectionItem, e);
+				}
+			}
+			else {
+				rollbackQuietly(connectionItem, e);
+			}
+			releaseConnection(connectionItem);
+			throw e;
+		}
+		catch (RuntimeException | Error e) {
+			rollbackQuietly(connectionItem, e);
+			releaseConnection(connectionItem);
+			throw e;
+		}
+	}
+
+	/**
+	 * Roll back the transaction failed work may have left open. A connection that cannot be
+	 * rolled back is evicted.
+	 */
+	private void rollbackQuietly(final ConnectionItem connectionItem, final Throwable failure) {
+		try {
+			final Connection connection = connectionItem.getConnection();
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+			}
+		}
+		catch (SQLException e) {
+			failure.addSuppressed(e);
+			connectionItem.evict();
+		}
+	}
+	
 	/**
 	* Get a connection from the pool, or timeout after the specified number of milliseconds.
 	*
@@ -89,43 +309,334 @@ public class ConnectionPoolImpl implements ConnectionPool {
 	*/
 	protected Connection getConnection(final long connectionTimeout) throws SQLException
 	{	
+		if (shutdown) {
+			throw new SQLException("Pool " + this.config.getPoolName() + " has been shut down");
+		}
 		poolLock.acquireUninterruptibly();
-		long timeout = connectionTimeout;
-		final long start = System.currentTimeMillis();
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(connectionTimeout);
+		final ConnectionAcquireEvent event = beginAcquireEvent();
 		
 		try {
+			if (this.idleConnections.isEmpty()) {
+				this.getPoolManager().growPool();
+			}
+			long timeout = deadline - start;
 			do {
-				final ConnectionItemImpl connectionItem = (ConnectionItemImpl) this.idleConnections.poll(timeout, TimeUnit.MILLISECONDS);
+				final ConnectionItemImpl connectionItem = (ConnectionItemImpl) this.idleConnections.poll(timeout, TimeUnit.NANOSECONDS);
 				if (connectionItem == null) {
 					break; // We timed out.
 				}
-	
-				final long now = System.currentTimeMillis();
-				if (connectionItem.state().intValue() == ConnectionItem.STATE_EVICTED || !connectionItem.isValid((int) TimeUnit.MILLISECONDS.toSeconds(this.config.getValidationTimeout()))) {
-					this.getPoolManager().removeConnection(connectionItem); // Throw away the dead connection and try again
-					timeout = connectionTimeout - (now - start);
+				if (shutdown) {
+					// Pass the wake-up on to the next waiter
+					this.idleConnections.offer(connectionItem);
+					endAcquireEvent(event, false);
+					throw new SQLException("Pool " + this.config.getPoolName() + " has been shut down");
 				}
-				else {
-					//TODO start the leak test task
-					activeConnections.add(connectionItem);
-					connectionItem.state().set(ConnectionItem.STATE_IN_USE);
+	
+				if (checkOut(connectionItem)) {
+					endAcquireEvent(event, false);
+					metrics.connectionAcquired(System.nanoTime() - start);
 					return connectionItem;
 				}
+				timeout = deadline - System.nanoTime(); // Thrown away, try again
 			}
 			while (timeout > 0L);
 		}
 	  catch (InterruptedException e) {
+	     endAcquireEvent(event, false);
 	     throw new SQLException("Interrupted during connection acquisition", e);
 	  }
 	  finally {
 	     poolLock.release();
 	  }
 	
+	  endAcquireEvent(event, true);
+	  metrics.acquireTimedOut();
 	  logPoolState("Timeout failure ");
-	  throw new SQLTimeoutException(String.format("Timeout after %dms of waiting for a connection.", (System.currentTimeMillis() - start)));
+	  throw new SQLTimeoutException("Timeout after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms of waiting for a connection.");
+	}
+	
+	/**
+	 * Get a connection for work that has to be done by a deadline. The wait for the connection
+	 * counts against the deadline, and every statement created from the connection gets the time
+	 * left as its query timeout, or fails at once if the deadline has passed, so work that is
+	 * already too late does not hold on to the connection.
+	 *
+	 * @param deadline the System.nanoTime() by which the work has to be done
+	 * @return a java.sql.Connection instance
+	 * @throws SQLException thrown if the deadline passes before a connection is available
+	 */
+	public Connection getConnectionWithDeadline(final long deadline) throws SQLException {
+		final long remaining = deadline - System.nanoTime();
+		if (remaining <= 0) {
+			metrics.acquireTimedOut();
+			throw new SQLTimeoutException("Deadline passed " + TimeUnit.NANOSECONDS.toMillis(-remaining) + "ms before a connection was requested.");
+		}
+		final ConnectionItemImpl connectionItem = (ConnectionItemImpl) getConnection(TimeUnit.NANOSECONDS.toMillis(remaining));
+		connectionItem.setDeadline(deadline);
+		return connectionItem;
 	}
 	
 	
+	/**
+	 * Get an idle connection without waiting. If none is idle the pool is grown in the background,
+	 * and {@link #addAvailabilityListener(Runnable) availability listeners} are told when a
+	 * connection becomes idle.
+	 *
+	 * @return a connection, or null if none is idle right now
+	 * @throws SQLException if the pool has been shut down
+	 */
+	public Connection pollConnection() throws SQLException {
+		if (shutdown) {
+			throw new SQLException("Pool " + this.config.getPoolName() + " has been shut down");
+		}
+		ConnectionItemImpl connectionItem;
+		// Connections thrown away are replaced in the background, so look at each one at most once
+		for (int polls = this.idleConnections.size(); polls >= 0 && (connectionItem = (ConnectionItemImpl) this.idleConnections.poll()) != null; polls--) {
+			if (shutdown) {
+				this.idleConnections.offer(connectionItem);
+				throw new SQLException("Pool " + this.config.getPoolName() + " has been shut down");
+			}
+			if (checkOut(connectionItem)) {
+				return connectionItem;
+			}
+		}
+		this.getPoolManager().growPool();
+		return null;
+	}
+	
+	/**
+	 * Register a callback run whenever a connection becomes idle: released, refilled or added as
+	 * the pool grows. It runs on the thread that made the connection idle, so it must be quick and
+	 * must not borrow a connection itself; hand the work to an executor instead.
+	 *
+	 * @param listener the callback
+	 */
+	public synchronized void addAvailabilityListener(final Runnable listener) {
+		final Runnable[] listeners = Arrays.copyOf(availabilityListeners, availabilityListeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+		availabilityListeners = listeners;
+		if (listeners.length == 1) {
+			idleConnections.setOfferListener(new Runnable() {
+				@Override
+				public void run() {
+					final Runnable[] listeners = availabilityListeners;
+					for (int i = 0; i < listeners.length; i++) {
+						listeners[i].run();
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Remove a callback registered with {@link #addAvailabilityListener(Runnable)}.
+	 *
+	 * @param listener the callback
+	 */
+	public synchronized void removeAvailabilityListener(final Runnable listener) {
+		final List<Runnable> listeners = new ArrayList<Runnable>(Arrays.asList(availabilityListeners));
+		if (listeners.remove(listener)) {
+			availabilityListeners = listeners.isEmpty() ? NO_LISTENERS : listeners.toArray(NO_LISTENERS);
+			if (listeners.isEmpty()) {
+				idleConnections.setOfferListener(null);
+			}
+		}
+	}
+	
+	/**
+	 * Hand out a connection taken from the idle queue, or throw it away if it is no longer usable.
+	 * The connection is reserved while it is validated, so housekeeping leaves it alone, and only
+	 * handed out if it was not evicted in the meantime.
+	 *
+	 * @param connectionItem the connection polled from the idle queue
+	 * @return true if the connection is now in use by the caller, false if it was thrown away or
+	 *         left to housekeeping, which is validating it
+	 */
+	private boolean checkOut(final ConnectionItemImpl connectionItem) {
+		while (!connectionItem.compareAndSetState(ConnectionItem.STATE_NOT_IN_USE, ConnectionItem.STATE_RESERVED)) {
+			final int state = connectionItem.getState();
+			if (state == ConnectionItem.STATE_RESERVED) {
+				// Housekeeping puts it back in the queue or removes it when it is done
+				return false;
+			}
+			if (state == ConnectionItem.STATE_EVICTED) {
+				this.getPoolManager().removeConnection(connectionItem, PoolManager.EVICT_REASON_EVICTED); // Throw away the dead connection
+				this.getPoolManager().fillPool();
+				return false;
+			}
+			if (state == ConnectionItem.STATE_IN_USE) {
+				LOGGER.warn("Connection {} of pool {} was idle and in use at once", connectionItem, this.config.getPoolName());
+				return false;
+			}
+		}
+		final long now = System.nanoTime();
+		boolean valid;
+		try {
+			// A connection returned moments ago is trusted without a round trip to the database
+			valid = now - connectionItem.getLastAccessed() < TimeUnit.MILLISECONDS.toNanos(this.config.getAliveBypassWindow());
+			if (!valid && connectionItem.isValid((int) TimeUnit.MILLISECONDS.toSeconds(this.config.getValidationTimeout()))) {
+				connectionItem.validated(now);
+				valid = true;
+			}
+		}
+		catch (SQLException e) {
+			valid = false;
+		}
+		if (!valid) {
+			connectionItem.evict();
+			this.getPoolManager().removeConnection(connectionItem, PoolManager.EVICT_REASON_INVALID);
+			this.getPoolManager().fillPool();
+			return false;
+		}
+		if (!connectionItem.compareAndSetState(ConnectionItem.STATE_RESERVED, ConnectionItem.STATE_IN_USE)) {
+			// Evicted while we were validating it
+			this.getPoolManager().removeConnection(connectionItem, PoolManager.EVICT_REASON_EVICTED);
+			this.getPoolManager().fillPool();
+			return false;
+		}
+		connectionItem.borrowed(now);
+		activeConnections.add(connectionItem);
+		if (warmStart != null) {
+			warmStart.recordInUse(activeConnections.size());
+		}
+		return true;
+	}
+	
+	/**
+	 * Get several connections from the pool as a single reservation, waiting for the default
+	 * connection timeout.
+	 *
+	 * @see #getConnections(int, long)
+	 */
+	public List<Connection> getConnections(final int count) throws SQLException {
+		return getConnections(count, this.config.getConnectionTimeout());
+	}
+	
+	/**
+	 * Get several connections from the pool as a single reservation: either all of them are
+	 * returned within the timeout, or none are. Batch borrowers reserve one at a time, so two
+	 * jobs can never each hold part of what they need and wait on each other.
+	 *
+	 * @param count the number of connections needed, at most the maximum pool size
+	 * @param connectionTimeout the maximum time to wait for all the connections
+	 * @return the connections, to be released together with {@link #releaseConnections(Collection)}
+	 * @throws SQLException thrown if a timeout occurs before all the connections are available
+	 */
+	public List<Connection> getConnections(final int count, final long connectionTimeout) throws SQLException {
+		if (count < 1 || count > this.config.getMaximumPoolSize()) {
+			throw new SQLException("Cannot borrow " + count + " connections from pool " + this.config.getPoolName()
+					+ " of maximum size " + this.config.getMaximumPoolSize());
+		}
+		if (shutdown) {
+			throw new SQLException("Pool " + this.config.getPoolName() + " has been shut down");
+		}
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(connectionTimeout);
+		final List<Connection> connections = new ArrayList<Connection>(count);
+		final List<ConnectionItem> polled = new ArrayList<ConnectionItem>(count);
+		boolean complete = false;
+		poolLock.acquireUninterruptibly();
+		try {
+			if (!batchLock.tryLock(connectionTimeout, TimeUnit.MILLISECONDS)) {
+				throw new SQLTimeoutException("Timeout after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms of waiting for " + count + " connections.");
+			}
+			try {
+				while (connections.size() < count) {
+					// Take whatever is idle in one pass, then wait for the rest
+					polled.clear();
+					this.idleConnections.drainTo(polled, count - connections.size());
+					if (polled.isEmpty()) {
+						this.getPoolManager().growPool();
+						final long timeout = deadline - System.nanoTime();
+						final ConnectionItem connectionItem = timeout > 0 ? this.idleConnections.poll(timeout, TimeUnit.NANOSECONDS) : null;
+						if (connectionItem == null) {
+							break; // We timed out.
+						}
+						polled.add(connectionItem);
+					}
+					for (int i = 0; i < polled.size(); i++) {
+						final ConnectionItemImpl connectionItem = (ConnectionItemImpl) polled.get(i);
+						if (shutdown) {
+							this.idleConnections.addAll(polled.subList(i, polled.size()));
+							throw new SQLException("Pool " + this.config.getPoolName() + " has been shut down");
+						}
+						if (checkOut(connectionItem)) {
+							connections.add(connectionItem);
+						}
+					}
+				}
+				complete = connections.size() == count;
+			}
+			finally {
+				batchLock.unlock();
+			}
+		}
+		catch (InterruptedException e) {
+			throw new SQLException("Interrupted during connection acquisition", e);
+		}
+		finally {
+			poolLock.release();
+			if (!complete) {
+				releaseConnections(connections);
+			}
+		}
+		if (!complete) {
+			logPoolState("Timeout failure ");
+			throw new SQLTimeoutException("Timeout after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms of waiting for " + count + " connections.");
+		}
+		return connections;
+	}
+	
+	/**
+	 * Release several connections back to the pool together. Connections that can be reused
+	 * are removed from the active connections and added to the idle connections in one pass.
+	 *
+	 * @param connections the connections to release
+	 */
+	public void releaseConnections(final Collection<? extends Connection> connections) {
+		final List<ConnectionItem> reusable = new ArrayList<ConnectionItem>(connections.size());
+		int surplus = totalConnections() - this.config.getMaximumPoolSize();
+		for (Connection connection : connections) {
+			if (connection instanceof LazyConnection) {
+				try {
+					connection.close();
+				}
+				catch (SQLException e) {
+					LOGGER.warn("Failed to release connection {} of pool {}", connection, this.config.getPoolName(), e);
+				}
+				continue;
+			}
+			final ConnectionItem connectionItem = (ConnectionItem) connection;
+			if (!shutdown && surplus <= 0 && connectionItem.compareAndSetState(ConnectionItem.STATE_IN_USE, ConnectionItem.STATE_NOT_IN_USE)) {
+				final long now = System.nanoTime();
+				recordHoldTime(connectionItem, now);
+				connectionItem.setLastAccessed(now);
+				reusable.add(connectionItem);
+			}
+			else {
+				// Closed, evicted or surplus connections take the usual path
+				releaseConnection(connectionItem);
+				surplus--;
+			}
+		}
+		if (!reusable.isEmpty()) {
+			activeConnections.removeAll(reusable);
+			idleConnections.addAll(reusable);
+			signalIfDrained();
+		}
+	}
+	
+	/**
+	 * Record how long a connection being returned to the pool was held.
+	 */
+	private void recordHoldTime(final ConnectionItem connection, final long now) {
+		if (connection instanceof ConnectionItemImpl) {
+			metrics.connectionReturned(now - connectionTable.getLastBorrowed(((ConnectionItemImpl) connection).getSlot()));
+		}
+	}
+	
 	/**
 	 * Release a connection back to the pool, or permanently close it if it is broken.
 	 *
@@ -133,37 +644,300 @@ public class ConnectionPoolImpl implements ConnectionPool {
 	 */
     public final void releaseConnection(final ConnectionItem connection)
     {
-       if (connection.state().get() == ConnectionItem.STATE_EVICTED) {
+       if (shutdown) {
+          connection.evict();
+          // Out of the connections in use now rather than once closed, so the shutdown stops waiting for it
+          activeConnections.remove(connection);
+          closeOnShutdown(connection);
+       }
+       else if (connection.getState() == ConnectionItem.STATE_EVICTED) {
           LOGGER.debug("Connection returned to pool {} is broken or evicted.  Closing connection.", this.config.getPoolName());
-          getPoolManager().removeConnection(connection);
+          getPoolManager().removeConnection(connection, PoolManager.EVICT_REASON_RELEASED_EVICTED);
+          getPoolManager().fillPool();
        }
-       else {
-    	   connection.state().set(ConnectionItem.STATE_NOT_IN_USE);
+       else if (totalConnections() > this.config.getMaximumPoolSize()) {
+          LOGGER.debug("Pool {} is above its maximum size.  Closing returned connection.", this.config.getPoolName());
+          getPoolManager().removeConnection(connection, PoolManager.EVICT_REASON_POOL_SHRUNK);
+       }
+       else if (connection.compareAndSetState(ConnectionItem.STATE_IN_USE, ConnectionItem.STATE_NOT_IN_USE)) {
+    	   final long now = System.nanoTime();
+    	   recordHoldTime(connection, now);
+    	   connection.setLastAccessed(now);
     	   activeConnections.remove(connection);
     	   idleConnections.add(connection);
        }
+       else if (connection.getState() == ConnectionItem.STATE_EVICTED) {
+          // Evicted while it was being returned
+          getPoolManager().removeConnection(connection, PoolManager.EVICT_REASON_RELEASED_EVICTED);
+          getPoolManager().fillPool();
+       }
+       else {
+          LOGGER.warn("Connection {} released to pool {} more than once", connection, this.config.getPoolName());
+       }
+       // The shutdown may have started while the connection was being returned
+       signalIfDrained();
+    }
+    
+    @Override
+    public void softEvictConnections() {
+       if (shutdown) {
+          return;
+       }
+       LOGGER.info("Soft evicting all connections of pool {}", this.config.getPoolName());
+       metrics.softEvicted();
+       // Connections in use are closed by releaseConnection when they come back
+       evictHeld();
+       for (ConnectionItem connection : idleConnections) {
+          connection.evict();
+          // A borrower or housekeeping holding it will see the eviction and close it itself
+          if (idleConnections.remove(connection)) {
+             getPoolManager().removeConnection(connection, PoolManager.EVICT_REASON_SOFT_EVICTED);
+          }
+       }
+       getPoolManager().fillPool();
+       logPoolState("After soft eviction ");
+    }
+    
+    @Override
+    public void shutdown() throws InterruptedException {
+       shutdown(this.config.getShutdownTimeout());
     }
     
+    /**
+     * Shut the pool down, waiting up to the given time for connections in use to be released.
+     * Idle and released connections are closed in parallel on a bounded executor, so the
+     * shutdown of a large pool takes about as long as a single close.
+     *
+     * @param drainTimeoutMs how long to wait for connections in use before closing them anyway
+     * @throws InterruptedException if interrupted while waiting for the pool to drain
+     */
+    public void shutdown(final long drainTimeoutMs) throws InterruptedException {
+       synchronized (shutdownMarker) {
+          if (shutdown) {
+             return;
+          }
+          final int threads = Math.max(1, Math.min(totalConnections(), MAX_CLOSE_THREADS));
+          shutdownCloser = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                   @Override
+                   public Thread newThread(Runnable runnable) {
+                      return ConnectionPoolHelper.newThread(config, runnable, "connection closer");
+                   }
+                });
+          shutdown = true;
+       }
+       LOGGER.info("Shutting down pool {}", this.config.getPoolName());
+       logPoolState("Before shutdown ");
+       if (this.configurationWatcher != null) {
+          this.configurationWatcher.stop();
+       }
+       getPoolManager().shutdown();
+
+       // Close what is idle now, and wake every waiting borrower
+       closeIdleConnections();
+       this.idleConnections.offer(shutdownMarker);
+       // Connections reserved for a validation are closed by whoever reserved them
+       evictHeld();
+
+       // Connections released from here on are closed by releaseConnection, which signals the last one
+       final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMs);
+       synchronized (drained) {
+          long remaining;
+          while (!activeConnections.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+             TimeUnit.NANOSECONDS.timedWait(drained, remaining);
+          }
+       }
+       for (ConnectionItem connection : activeConnections) {
+          LOGGER.warn("Closing connection {} of pool {} that was not released before shutdown", connection, this.config.getPoolName());
+          connection.evict();
+          closeOnShutdown(connection);
+       }
+       closeIdleConnections();
+
+       shutdownCloser.shutdown();
+       final long closeTimeout = Math.max(drainTimeoutMs, this.config.getValidationTimeout());
+       if (!shutdownCloser.awaitTermination(closeTimeout, TimeUnit.MILLISECONDS)
+             || !getPoolManager().awaitCloses(closeTimeout)) {
+          LOGGER.warn("Timed out closing the connections of pool {}", this.config.getPoolName());
+       }
+       this.idleConnections.remove(shutdownMarker);
+       if (this.config.getPoolRegistry() != null) {
+          this.config.getPoolRegistry().unregister(this.config.getPoolName(), this);
+       }
+       logPoolState("After shutdown ");
+    }
+    
+    @Override
+    public boolean isShutdown() {
+       return shutdown;
+    }
+    
+    /**
+     * Wake a shutdown waiting for the connections in use, once the last one has come back.
+     */
+    private void signalIfDrained() {
+       if (shutdown && activeConnections.isEmpty()) {
+          synchronized (drained) {
+             drained.notifyAll();
+          }
+       }
+    }
+    
+    /**
+     * Evict every connection that is in use or reserved, walking the connection table rather than
+     * the queues, since a connection reserved for its validation is in neither. Whoever holds
+     * the connection sees the eviction when it tries to hand it back, and closes it.
+     */
+    private void evictHeld() {
+       final ConnectionTable table = this.connectionTable;
+       for (int slot = 0, size = table.size(); slot < size; slot++) {
+          final int state = table.getSlotState(slot);
+          if (state == ConnectionItem.STATE_IN_USE || state == ConnectionItem.STATE_RESERVED) {
+             final ConnectionItem connection = table.getItem(slot);
+             if (connection != null) {
+                connection.compareAndSetState(state, ConnectionItem.STATE_EVICTED);
+             }
+          }
+       }
+    }
+    
+    /**
+     * Close every connection in the idle queue on the shutdown closer, leaving the marker in place.
+     */
+    private void closeIdleConnections() {
+       final List<ConnectionItem> idle = new ArrayList<ConnectionItem>();
+       this.idleConnections.drainTo(idle);
+       for (ConnectionItem connection : idle) {
+          if (connection == shutdownMarker) {
+             this.idleConnections.offer(shutdownMarker);
+          }
+          else {
+             connection.evict();
+             closeOnShutdown(connection);
+          }
+       }
+    }
+    
+    /**
+     * Close a connection on the shutdown closer, or on this thread once the closer has finished.
+     */
+    private void closeOnShutdown(final ConnectionItem connection) {
+       final Runnable close = new Runnable() {
+          @Override
+          public void run() {
+             getPoolManager().removeConnection(connection, PoolManager.EVICT_REASON_SHUTDOWN);
+          }
+       };
+       try {
+          shutdownCloser.execute(close);
+       }
+       catch (RejectedExecutionException e) {
+          close.run();
+       }
+    }
+    
+    /**
+     * Called by a connection when the driver throws an exception through it. A connection-fatal
+     * error evicts the connection at once, so it is closed when it is released and the pool is
+     * refilled. On a connection that was not already evicted it also means the database behind
+     * the whole pool may have gone away, so the pool is soft evicted if configured to.
+     *
+     * @param connection the connection the exception came from
+     * @param e the exception thrown by the driver
+     */
+    void connectionFailed(final ConnectionItem connection, final SQLException e) {
+       if (!exceptionClassifier.isConnectionFatal(e)) {
+          return;
+       }
+       metrics.fatalError();
+       if (connection.evict()) {
+          LOGGER.warn("Fatal SQLState {} on connection {} of pool {}, evicting it", e.getSQLState(), connection, this.config.getPoolName());
+          if (this.config.isSoftEvictOnFatalError()) {
+             softEvictConnections();
+          }
+       }
+    }
+    
+    /**
+     * Bring the pool in line with a configuration changed while it is running: close idle
+     * connections above a reduced maximum size and open connections up to a raised minimum.
+     */
+    void configurationChanged() {
+       ConnectionItem connection;
+       while (totalConnections() > this.config.getMaximumPoolSize() && (connection = idleConnections.poll()) != null) {
+          getPoolManager().removeConnection(connection, PoolManager.EVICT_REASON_POOL_SHRUNK);
+       }
+       getPoolManager().addConnections();
+       logPoolState("After configuration change ");
+    }
+    
+    /**
+     * Start a flight recorder acquisition event if a recording is listening for it.
+     *
+     * @return the started event, or null when the event is not being recorded
+     */
+    private ConnectionAcquireEvent beginAcquireEvent() {
+       if (!ConnectionAcquireEvent.TYPE.isEnabled()) {
+          return null;
+       }
+       final ConnectionAcquireEvent event = new ConnectionAcquireEvent();
+       event.begin();
+       event.poolName = this.config.getPoolName();
+       event.idleAtStart = idleConnections.size();
+       event.activeAtStart = activeConnections.size();
+       event.totalAtStart = event.idleAtStart + event.activeAtStart;
+       return event;
+    }
+
+    /**
+     * Complete a flight recorder acquisition event started by {@link #beginAcquireEvent()}.
+     *
+     * @param event the started event, or null
+     * @param timedOut whether the borrower gave up without a connection
+     */
+    private void endAcquireEvent(final ConnectionAcquireEvent event, final boolean timedOut) {
+       if (event == null) {
+          return;
+       }
+       event.end();
+       if (event.shouldCommit()) {
+          event.idleAtEnd = idleConnections.size();
+          event.activeAtEnd = activeConnections.size();
+          event.totalAtEnd = event.idleAtEnd + event.activeAtEnd;
+          event.timedOut = timedOut;
+          event.commit();
+       }
+    }
+
     /**
      * Return the instance of the pool manager.
      * @return
      */
-    private PoolManager getPoolManager() { 
+    PoolManager getPoolManager() { 
  	   if (this.poolManager == null) {
-	 	   this.poolManager = new PoolManager(this.config, this.idleConnections, this.activeConnections, this);
+	 	   this.poolManager = new PoolManager(this.config, this.idleConnections, this.activeConnections, this, this.metrics, this.connectionTable);
  	   }
  	   return this.poolManager;
     }
     
-    public final void logPoolState(String... prefix)
+    public final void logPoolState()
+    {
+       logPoolState("");
+    }
+    
+    public final void logPoolState(String prefix)
     {
        if (LOGGER.isDebugEnabled()) {
           LOGGER.debug("{}pool stats {} (total={}, inUse={}, avail={}, waiting={})",
-                       (prefix.length > 0 ? prefix[0] : ""), this.config.getPoolName(),
+                       prefix, this.config.getPoolName(),
                        idleConnections.size() + activeConnections.size(), activeConnections.size(), idleConnections.size(), 0);
        }
     }
     
+    public PoolMetrics getMetrics() {
+    	return metrics;
+    }
+    
     public int totalConnections() {
     	return idleConnections.size() + activeConnections.size();
     }
@@ -171,5 +945,21 @@ public class ConnectionPoolImpl implements ConnectionPool {
     public int idleConnectionsCount() {
     	return idleConnections.size();
     }
+    
+    public int maximumPoolSize() {
+    	return this.config.getMaximumPoolSize();
+    }
+    
+    QueryResultCache getResultCache() {
+    	return this.config.getResultCache();
+    }
+    
+    /**
+     * @return the scope of cached results read through this pool as its user, on the catalog and
+     *         schema given, null for the defaults
+     */
+    Object cacheScope(String catalog, String schema) {
+    	return Arrays.asList(this.config.getPoolName(), this.config.getUsername(), catalog, schema);
+    }
 
 }
@@ -0,0 +1,194 @@
+package com.nbaradwaj.connectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the connections of a pool as a stream of {@link ConnectionLease leases} with
+ * backpressure, for callers that must not block in {@link ConnectionPool#getConnection()}.
+ * <p>
+ * Each request of n reserves up to n leases. A subscriber is sent a lease as soon as a
+ * connection is idle and it has an unfilled reservation, and gives the connection back by
+ * releasing the lease. Cancelling drops the unfilled reservations; leases already sent stay
+ * with the subscriber until it releases them. No thread ever waits for a connection: leases
+ * are sent on the executor when the pool tells the publisher a connection has become idle.
+ * <p>
+ * The stream does not complete; it fails with an SQLException when the pool is shut down.
+ */
+public class ConnectionPublisher implements Flow.Publisher<ConnectionLease> {
+
+	protected static final Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
+
+	private final ConnectionPoolImpl pool;
+	private final Executor executor;
+
+	/**
+	 * Publish on the common fork join pool.
+	 *
+	 * @param pool the pool to lease connections from
+	 */
+	public ConnectionPublisher(ConnectionPoolImpl pool) {
+		this(pool, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param pool the pool to lease connections from
+	 * @param executor the executor subscribers are signalled on
+	 */
+	public ConnectionPublisher(ConnectionPoolImpl pool, Executor executor) {
+		this.pool = pool;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ConnectionLease> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+		final LeaseSubscription subscription = new LeaseSubscription(subscriber);
+		// Listen first, so a subscriber cancelling in onSubscribe removes the listener for good
+		pool.addAvailabilityListener(subscription);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * The reservations of one subscriber. Signals are sent by a single drain at a time, started
+	 * by a request or by a connection becoming idle.
+	 */
+	private final class LeaseSubscription implements Flow.Subscription, Runnable {
+
+		private final Flow.Subscriber<? super ConnectionLease> subscriber;
+
+		/**
+		 * Leases reserved and not sent yet
+		 */
+		private final AtomicLong reserved = new AtomicLong();
+		private final AtomicBoolean cancelled = new AtomicBoolean();
+
+		/**
+		 * Non-zero while a drain is scheduled or running; counts the signals it has yet to look at
+		 */
+		private final AtomicInteger pending = new AtomicInteger();
+
+		private final Runnable drain = new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+
+		LeaseSubscription(Flow.Subscriber<? super ConnectionLease> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (cancelled.get()) {
+				return;
+			}
+			if (n <= 0) {
+				fail(new IllegalArgumentException("Requested " + n + " leases, the request must be positive"));
+				return;
+			}
+			long current;
+			do {
+				current = reserved.get();
+			}
+			while (!reserved.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+			signal();
+		}
+
+		@Override
+		public void cancel() {
+			if (cancelled.compareAndSet(false, true)) {
+				reserved.set(0);
+				pool.removeAvailabilityListener(this);
+			}
+		}
+
+		/**
+		 * Called by the pool when a connection becomes idle.
+		 */
+		@Override
+		public void run() {
+			if (reserved.get() > 0) {
+				signal();
+			}
+		}
+
+		private void signal() {
+			if (pending.getAndIncrement() == 0) {
+				try {
+					executor.execute(drain);
+				}
+				catch (RejectedExecutionException e) {
+					pending.set(0);
+					fail(e);
+				}
+			}
+		}
+
+		private void drain() {
+			int missed = pending.get();
+			do {
+				while (!cancelled.get() && reserved.get() > 0) {
+					final Connection connection;
+					try {
+						connection = pool.pollConnection();
+					}
+					catch (SQLException e) {
+						fail(e);
+						return;
+					}
+					if (connection == null) {
+						break; // Wait for the pool to tell us a connection is idle
+					}
+					final ConnectionLease lease = new ConnectionLease(connection, pool);
+					if (cancelled.get()) {
+						release(lease);
+						return;
+					}
+					reserved.decrementAndGet();
+					try {
+						subscriber.onNext(lease);
+					}
+					catch (RuntimeException e) {
+						release(lease);
+						cancel();
+						LOGGER.warn("Subscriber {} failed handling a lease, cancelled its subscription", subscriber, e);
+						return;
+					}
+				}
+				missed = pending.addAndGet(-missed);
+			}
+			while (missed != 0);
+		}
+
+		private void release(ConnectionLease lease) {
+			try {
+				lease.release();
+			}
+			catch (SQLException e) {
+				LOGGER.warn("Failed to release connection {} of a cancelled subscription", lease.getConnection(), e);
+			}
+		}
+
+		private void fail(Throwable t) {
+			if (cancelled.compareAndSet(false, true)) {
+				reserved.set(0);
+				pool.removeAvailabilityListener(this);
+				subscriber.onError(t);
+			}
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package com.nbaradwaj.connectionpool;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking queue of connections backed by a circular array. Unlike a LinkedBlockingQueue it
+ * allocates no node per element, so moving a connection in and out of the queue allocates
+ * nothing once the array is large enough for the pool. The array grows if the pool does.
+ * <p>
+ * The queue is first in, first out by default. In last in, first out mode the element added
+ * last is taken first, so when the queue holds idle connections the most recently returned
+ * connection is reused and the others are left to age.
+ */
+public class ConnectionQueue extends AbstractQueue<ConnectionItem> implements BlockingQueue<ConnectionItem> {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	/**
+	 * The elements, from head for count positions around the end of the array
+	 */
+	private ConnectionItem[] items;
+	private int head;
+	private volatile int count;
+	private final boolean lifo;
+
+	/**
+	 * Run after connections are added, outside the lock, or null
+	 */
+	private volatile Runnable offerListener;
+
+	/**
+	 * @param initialCapacity the number of connections the queue holds before it has to grow
+	 */
+	public ConnectionQueue(int initialCapacity) {
+		this(initialCapacity, false);
+	}
+
+	/**
+	 * @param initialCapacity the number of connections the queue holds before it has to grow
+	 * @param lifo true to take the element added last first
+	 */
+	public ConnectionQueue(int initialCapacity, boolean lifo) {
+		this.items = new ConnectionItem[Math.max(1, initialCapacity)];
+		this.lifo = lifo;
+	}
+
+	/**
+	 * @return true if the element added last is taken first
+	 */
+	public boolean isLifo() {
+		return lifo;
+	}
+
+	@Override
+	public boolean offer(ConnectionItem item) {
+		if (item == null) {
+			throw new NullPointerException();
+		}
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			enqueue(item);
+			notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+		offered();
+		return true;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends ConnectionItem> connections) {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			for (ConnectionItem item : connections) {
+				enqueue(item);
+			}
+			notEmpty.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		offered();
+		return !connections.isEmpty();
+	}
+
+	/**
+	 * Set a callback run whenever connections are added to the queue, after waiting takers
+	 * have been signalled. It runs on the thread adding the connections, so it must be quick.
+	 *
+	 * @param offerListener the callback, or null
+	 */
+	public void setOfferListener(Runnable offerListener) {
+		this.offerListener = offerListener;
+	}
+
+	private void offered() {
+		final Runnable listener = this.offerListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	@Override
+	public void put(ConnectionItem item) {
+		offer(item);
+	}
+
+	@Override
+	public boolean offer(ConnectionItem item, long timeout, TimeUnit unit) {
+		return offer(item);
+	}
+
+	@Override
+	public ConnectionItem poll() {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			return count == 0 ? null : dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ConnectionItem poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		final ReentrantLock lock = this.lock;
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0L) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ConnectionItem take() throws InterruptedException {
+		final ReentrantLock lock = this.lock;
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				notEmpty.await();
+			}
+			return dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public ConnectionItem peek() {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			return count == 0 ? null : items[lifo ? (head + count - 1) % items.length : head];
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			return indexOf(o) >= 0;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			final int index = indexOf(o);
+			if (index < 0) {
+				return false;
+			}
+			removeAt(index);
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> connections) {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			// Compact the survivors towards the head in a single pass
+			final ConnectionItem[] items = this.items;
+			final int length = items.length;
+			int kept = 0;
+			for (int i = 0; i < count; i++) {
+				final ConnectionItem item = items[(head + i) % length];
+				if (!connections.contains(item)) {
+					items[(head + kept++) % length] = item;
+				}
+			}
+			final boolean changed = kept != count;
+			for (int i = kept; i < count; i++) {
+				items[(head + i) % length] = null;
+			}
+			count = kept;
+			return changed;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			Arrays.fill(items, null);
+			head = 0;
+			count = 0;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super ConnectionItem> connections) {
+		return drainTo(connections, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super ConnectionItem> connections, int maxElements) {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			int drained = 0;
+			while (drained < maxElements && count > 0) {
+				connections.add(dequeue());
+				drained++;
+			}
+			return drained;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Object[] toArray() {
+		final ReentrantLock lock = this.lock;
+		lock.lock();
+		try {
+			final Object[] copy = new Object[count];
+			for (int i = 0; i < count; i++) {
+				copy[i] = items[(head + i) % items.length];
+			}
+			return copy;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of the queue, so iterating never blocks the pool.
+	 * Removing through the iterator removes the element from the queue if it is still there.
+	 */
+	@Override
+	public Iterator<ConnectionItem> iterator() {
+		final Object[] snapshot = toArray();
+		return new Iterator<ConnectionItem>() {
+			private int next;
+			private ConnectionItem last;
+
+			@Override
+			public boolean hasNext() {
+				return next < snapshot.length;
+			}
+
+			@Override
+			public ConnectionItem next() {
+				if (next >= snapshot.length) {
+					throw new NoSuchElementException();
+				}
+				last = (ConnectionItem) snapshot[next++];
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if (last == null) {
+					throw new IllegalStateException();
+				}
+				ConnectionQueue.this.remove(last);
+				last = null;
+			}
+		};
+	}
+
+	/**
+	 * Must hold the lock.
+	 */
+	private void enqueue(ConnectionItem item) {
+		if (count == items.length) {
+			grow();
+		}
+		items[(head + count) % items.length] = item;
+		count++;
+	}
+
+	/**
+	 * Must hold the lock, and the queue must not be empty.
+	 */
+	private ConnectionItem dequeue() {
+		if (lifo) {
+			final int tail = (head + count - 1) % items.length;
+			final ConnectionItem item = items[tail];
+			items[tail] = null;
+			count--;
+			return item;
+		}
+		final ConnectionItem item = items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		count--;
+		return item;
+	}
+
+	/**
+	 * Must hold the lock.
+	 * @return the offset from head of the element, or -1
+	 */
+	private int indexOf(Object o) {
+		if (o == null) {
+			return -1;
+		}
+		for (int i = 0; i < count; i++) {
+			if (o.equals(items[(head + i) % items.length])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Must hold the lock. Closes the gap by shifting the elements behind it forward.
+	 */
+	private void removeAt(int offset) {
+		final int length = items.length;
+		for (int i = offset; i < count - 1; i++) {
+			items[(head + i) % length] = items[(head + i + 1) % length];
+		}
+		items[(head + count - 1) % length] = null;
+		count--;
+	}
+
+	/**
+	 * Must hold the lock. Doubles the array, unrolling it so that head is at zero.
+	 */
+	private void grow() {
+		final ConnectionItem[] grown = new ConnectionItem[items.length * 2];
+		for (int i = 0; i < count; i++) {
+			grown[i] = items[(head + i) % items.length];
+		}
+		items = grown;
+		head = 0;
+	}
+}
@@ -0,0 +1,74 @@
+package com.nbaradwaj.connectionpool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket limiting how many connections a pool opens per second. Callers reserve a
+ * token under a short lock and then wait outside it, so reservations, and therefore the
+ * connections waiting on them, are served strictly in the order they were made.
+ */
+public class ConnectionRateLimiter {
+
+	/**
+	 * Nanoseconds between two tokens, and the most tokens the bucket can hold
+	 */
+	private final long intervalNanos;
+	private final long burstNanos;
+
+	/**
+	 * The time at which the next token becomes free. It runs ahead of the clock when callers
+	 * are queued, and behind it by at most the burst when the bucket has tokens saved up.
+	 */
+	private long nextFreeNanos;
+
+	/**
+	 * @param permitsPerSecond the connections that may be opened per second
+	 */
+	public ConnectionRateLimiter(int permitsPerSecond) {
+		if (permitsPerSecond < 1) {
+			throw new IllegalArgumentException("permitsPerSecond cannot be less than 1");
+		}
+		this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+		// Allow up to one second's worth of connections at once after a quiet period
+		this.burstNanos = intervalNanos * (permitsPerSecond - 1);
+		this.nextFreeNanos = System.nanoTime() - burstNanos;
+	}
+
+	/**
+	 * Reserve the next token.
+	 *
+	 * @return how long the caller has to wait for its token, in nanoseconds
+	 */
+	synchronized long reserve() {
+		final long now = System.nanoTime();
+		if (nextFreeNanos - (now - burstNanos) < 0) {
+			nextFreeNanos = now - burstNanos;
+		}
+		final long wait = Math.max(0L, nextFreeNanos - now);
+		nextFreeNanos += intervalNanos;
+		return wait;
+	}
+
+	/**
+	 * Wait until a token is available.
+	 *
+	 * @return how long the caller was throttled, in nanoseconds
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public long acquire() throws InterruptedException {
+		final long wait = reserve();
+		if (wait > 0) {
+			final long deadline = System.nanoTime() + wait;
+			long remaining = wait;
+			while (remaining > 0) {
+				LockSupport.parkNanos(this, remaining);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				remaining = deadline - System.nanoTime();
+			}
+		}
+		return wait;
+	}
+}
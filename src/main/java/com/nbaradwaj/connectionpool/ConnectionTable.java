@@ -0,0 +1,244 @@
+package com.nbaradwaj.connectionpool;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * The hot per-connection metadata of a pool, kept in parallel primitive arrays indexed by
+ * connection slot instead of in fields and atomics spread over the heap. A sweep over the
+ * pool is then a linear scan of a few arrays.
+ * <p>
+ * Slots are allocated in segments of {@value #SEGMENT_SIZE}, so growing the table never copies
+ * the arrays of existing slots. The state of a slot is stored together with a generation that
+ * is bumped when the slot is freed, so a stale connection still holding a freed slot always
+ * reads as evicted and can never change the state of the connection that reuses the slot.
+ */
+public class ConnectionTable {
+
+	private static final int SEGMENT_SHIFT = 6;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+	private static final VarHandle ITEMS = MethodHandles.arrayElementVarHandle(ConnectionItem[].class);
+
+	/**
+	 * The columns of one segment of slots
+	 */
+	private static final class Segment {
+		/**
+		 * The generation of the slot in the high 32 bits and its ConnectionItem state in the low 32 bits
+		 */
+		final long[] state = new long[SEGMENT_SIZE];
+		final long[] created = new long[SEGMENT_SIZE];
+		final long[] lastBorrowed = new long[SEGMENT_SIZE];
+		final long[] lastAccessed = new long[SEGMENT_SIZE];
+		final long[] lastValidated = new long[SEGMENT_SIZE];
+		final int[] borrowCount = new int[SEGMENT_SIZE];
+		final int[] leakReported = new int[SEGMENT_SIZE];
+		final ConnectionItem[] items = new ConnectionItem[SEGMENT_SIZE];
+
+		Segment() {
+			Arrays.fill(state, ConnectionItem.STATE_EVICTED);
+		}
+	}
+
+	private volatile Segment[] segments;
+
+	/**
+	 * Slots handed out so far, and the freed slots below that mark waiting to be reused
+	 */
+	private volatile int size;
+	private int[] freeSlots = new int[SEGMENT_SIZE];
+	private int freeCount;
+
+	/**
+	 * @param initialCapacity the number of connections the table holds before it has to grow
+	 */
+	public ConnectionTable(int initialCapacity) {
+		final Segment[] segments = new Segment[Math.max(1, (initialCapacity + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment();
+		}
+		this.segments = segments;
+	}
+
+	/**
+	 * Allocate a slot for a new connection, in the not in use state. The connection is only
+	 * visible to sweeps once it has {@link #attach(long, ConnectionItem) attached} itself.
+	 *
+	 * @param now the System.nanoTime() of its creation
+	 * @return the slot and its generation, packed as generation &lt;&lt; 32 | slot
+	 */
+	synchronized long allocate(long now) {
+		final int slot;
+		if (freeCount > 0) {
+			slot = freeSlots[--freeCount];
+		}
+		else {
+			slot = size;
+			if ((slot >>> SEGMENT_SHIFT) == segments.length) {
+				final Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+				grown[segments.length] = new Segment();
+				segments = grown;
+			}
+		}
+		final Segment segment = segments[slot >>> SEGMENT_SHIFT];
+		final int index = slot & SEGMENT_MASK;
+		final long generation = ((long) LONGS.getVolatile(segment.state, index)) >>> 32;
+		segment.created[index] = now;
+		segment.lastBorrowed[index] = 0L;
+		segment.lastAccessed[index] = now;
+		segment.lastValidated[index] = now;
+		segment.borrowCount[index] = 0;
+		segment.leakReported[index] = 0;
+		LONGS.setVolatile(segment.state, index, generation << 32 | ConnectionItem.STATE_NOT_IN_USE);
+		if (slot == size) {
+			size = slot + 1;
+		}
+		return generation << 32 | slot;
+	}
+
+	/**
+	 * Publish the connection that owns a slot, once it knows its handle.
+	 */
+	void attach(long handle, ConnectionItem item) {
+		final int slot = (int) handle;
+		ITEMS.setRelease(segment(slot).items, slot & SEGMENT_MASK, item);
+	}
+
+	/**
+	 * Free the slot of a removed connection. Does nothing if the slot was already freed.
+	 *
+	 * @param handle the handle returned by {@link #allocate(long)}
+	 * @return true if the slot was freed by this call
+	 */
+	synchronized boolean free(long handle) {
+		final int slot = (int) handle;
+		final Segment segment = segments[slot >>> SEGMENT_SHIFT];
+		final int index = slot & SEGMENT_MASK;
+		final long generation = handle >>> 32;
+		final long word = (long) LONGS.getVolatile(segment.state, index);
+		if (word >>> 32 != generation) {
+			return false;
+		}
+		LONGS.setVolatile(segment.state, index, ((generation + 1) & 0xFFFFFFFFL) << 32 | ConnectionItem.STATE_EVICTED);
+		ITEMS.setRelease(segment.items, index, (ConnectionItem) null);
+		if (freeCount == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+		}
+		freeSlots[freeCount++] = slot;
+		return true;
+	}
+
+	/**
+	 * @return the number of slots a sweep has to scan
+	 */
+	public int size() {
+		return size;
+	}
+
+	private Segment segment(int slot) {
+		return segments[slot >>> SEGMENT_SHIFT];
+	}
+
+	/**
+	 * @return the state of the connection, or evicted if its slot has been freed
+	 */
+	int getState(long handle) {
+		final int slot = (int) handle;
+		final long word = (long) LONGS.getVolatile(segment(slot).state, slot & SEGMENT_MASK);
+		return word >>> 32 == handle >>> 32 ? (int) word : ConnectionItem.STATE_EVICTED;
+	}
+
+	boolean compareAndSetState(long handle, int expect, int update) {
+		final int slot = (int) handle;
+		final long generation = handle & 0xFFFFFFFF00000000L;
+		return LONGS.compareAndSet(segment(slot).state, slot & SEGMENT_MASK, generation | expect, generation | update);
+	}
+
+	/**
+	 * Move the connection to evicted from whatever state it is in.
+	 * @return true if this call evicted it, false if it was already evicted or its slot has been freed
+	 */
+	boolean evict(long handle) {
+		final int slot = (int) handle;
+		final long[] states = segment(slot).state;
+		final int index = slot & SEGMENT_MASK;
+		final long generation = handle & 0xFFFFFFFF00000000L;
+		long word;
+		do {
+			word = (long) LONGS.getVolatile(states, index);
+			if ((word & 0xFFFFFFFF00000000L) != generation || (int) word == ConnectionItem.STATE_EVICTED) {
+				return false; // Freed, it stays evicted
+			}
+		}
+		while (!LONGS.compareAndSet(states, index, word, generation | ConnectionItem.STATE_EVICTED));
+		return true;
+	}
+
+	/**
+	 * Record that the connection in the slot has been handed out.
+	 */
+	void borrowed(int slot, long now) {
+		final Segment segment = segment(slot);
+		final int index = slot & SEGMENT_MASK;
+		LONGS.setOpaque(segment.lastBorrowed, index, now);
+		INTS.getAndAdd(segment.borrowCount, index, 1);
+	}
+
+	void setLastAccessed(int slot, long now) {
+		LONGS.setOpaque(segment(slot).lastAccessed, slot & SEGMENT_MASK, now);
+	}
+
+	void setLastValidated(int slot, long now) {
+		LONGS.setOpaque(segment(slot).lastValidated, slot & SEGMENT_MASK, now);
+	}
+
+	/**
+	 * Mark the current borrow of the slot as reported leaked.
+	 * @return false if this borrow had already been reported
+	 */
+	boolean reportLeak(int slot) {
+		final Segment segment = segment(slot);
+		final int index = slot & SEGMENT_MASK;
+		final int borrow = (int) INTS.getOpaque(segment.borrowCount, index);
+		return (int) INTS.getAndSet(segment.leakReported, index, borrow) != borrow;
+	}
+
+	/**
+	 * @return the current state of the slot, ignoring its generation
+	 */
+	public int getSlotState(int slot) {
+		return (int) (long) LONGS.getVolatile(segment(slot).state, slot & SEGMENT_MASK);
+	}
+
+	public long getCreated(int slot) {
+		return (long) LONGS.getOpaque(segment(slot).created, slot & SEGMENT_MASK);
+	}
+
+	public long getLastBorrowed(int slot) {
+		return (long) LONGS.getOpaque(segment(slot).lastBorrowed, slot & SEGMENT_MASK);
+	}
+
+	public long getLastAccessed(int slot) {
+		return (long) LONGS.getOpaque(segment(slot).lastAccessed, slot & SEGMENT_MASK);
+	}
+
+	public long getLastValidated(int slot) {
+		return (long) LONGS.getOpaque(segment(slot).lastValidated, slot & SEGMENT_MASK);
+	}
+
+	public int getBorrowCount(int slot) {
+		return (int) INTS.getOpaque(segment(slot).borrowCount, slot & SEGMENT_MASK);
+	}
+
+	/**
+	 * @return the connection in the slot, or null if the slot is free
+	 */
+	public ConnectionItem getItem(int slot) {
+		return (ConnectionItem) ITEMS.getAcquire(segment(slot).items, slot & SEGMENT_MASK);
+	}
+}
@@ -0,0 +1,329 @@
+package com.nbaradwaj.connectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of connections to a primary database with a small pool of warm connections to a
+ * standby behind it, so a failover does not have to wait for a whole pool to be opened.
+ * <p>
+ * The standby pool keeps {@link ConnectionConfig#setStandbyMinimumIdle(int) a few} connections
+ * open, validated by its keepalive. Borrows that fail on the primary with a connection-fatal
+ * error, or time out while the primary cannot open connections, are counted, and when
+ * {@link ConnectionConfig#setFailoverThreshold(int) enough} fail in a row the circuit to the
+ * primary opens: from then on borrowers get standby connections, and the standby grows to the
+ * minimum idle of the primary in the background. The borrow that opens the circuit is served
+ * by the standby too. A borrow that times out because every primary connection is in use is
+ * not a failure of the primary, and is not counted.
+ * <p>
+ * The pool goes back to the primary on a call to {@link #failback()}, or with the
+ * {@link FailbackPolicy#AUTOMATIC automatic} policy once the primary has handed out connections
+ * again for the failback delay. Connections are always returned to the pool they came from.
+ */
+public class FailoverConnectionPool implements ConnectionPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
+
+	/**
+	 * How often the standby connections are validated if the configuration sets no keepalive time
+	 */
+	static final long STANDBY_KEEPALIVE_MS = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * How a pool that failed over goes back to the primary
+	 */
+	public enum FailbackPolicy {
+		/**
+		 * Stay on the standby until {@link FailoverConnectionPool#failback()} is called
+		 */
+		MANUAL,
+		/**
+		 * Go back once the primary has been handing out connections for the failback delay
+		 */
+		AUTOMATIC
+	}
+
+	private final ConnectionConfig config;
+	private final String poolName;
+	private final SQLExceptionClassifier exceptionClassifier;
+	private final ConnectionPoolImpl primary;
+	private final ConnectionConfig standbyConfig;
+	private final ConnectionPoolImpl standby;
+	private final ScheduledFuture<?> prober;
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicLong failovers = new AtomicLong();
+	private volatile boolean failedOver;
+	private volatile boolean shutdown;
+
+	/**
+	 * The System.nanoTime() since which the primary has handed out every connection probed, if it has
+	 */
+	private long healthySince;
+	private boolean healthy;
+
+	/**
+	 * @param config the configuration of the primary pool, with the standby data source set
+	 */
+	public FailoverConnectionPool(ConnectionConfig config) {
+		if (config.getStandbyDataSource() == null) {
+			throw new IllegalArgumentException("A failover pool needs a standby data source");
+		}
+		this.config = config;
+		this.poolName = config.getPoolName() != null ? config.getPoolName() : "FailoverConnectionPool";
+		this.exceptionClassifier = config.getExceptionClassifier() != null ? config.getExceptionClassifier() : new SQLStateExceptionClassifier();
+		this.primary = new ConnectionPoolImpl(config);
+
+		this.standbyConfig = new ConnectionConfig();
+		config.copyStateTo(standbyConfig);
+		standbyConfig.setPoolName(poolName + "-standby");
+		standbyConfig.setDataSource(config.getStandbyDataSource());
+		standbyConfig.setDataSourceClassName(null);
+		standbyConfig.setMinimumIdle(config.getStandbyMinimumIdle());
+		standbyConfig.setLazyConnection(false);
+		standbyConfig.setWatchConfigurationFile(false);
+		standbyConfig.setWarmStartFile(null);
+		if (standbyConfig.getKeepaliveTime() == 0) {
+			standbyConfig.setKeepaliveTime(STANDBY_KEEPALIVE_MS);
+		}
+		try {
+			this.standby = new ConnectionPoolImpl(standbyConfig);
+		}
+		catch (RuntimeException e) {
+			shutdownQuietly(primary);
+			throw e;
+		}
+
+		if (config.getFailbackPolicy() == FailbackPolicy.AUTOMATIC) {
+			final PoolRegistry registry = config.getPoolRegistry() != null ? config.getPoolRegistry() : PoolRegistry.getDefault();
+			this.prober = registry.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					probePrimary(System.nanoTime());
+				}
+			}, Math.max(1, config.getFailbackDelay() / 4));
+		}
+		else {
+			this.prober = null;
+		}
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (!failedOver) {
+			try {
+				final Connection connection = primary.getConnection();
+				consecutiveFailures.set(0);
+				return connection;
+			}
+			catch (SQLException e) {
+				if (!primaryFailed(e)) {
+					throw e;
+				}
+			}
+		}
+		return standby.getConnection();
+	}
+
+	@Override
+	public void releaseConnection(Connection connection) throws SQLException {
+		// Pooled connections know their own pool
+		connection.close();
+	}
+
+	@Override
+	public <T> T withConnection(ConnectionCallback<T> callback) throws SQLException {
+		final ConnectionPoolImpl pool = current();
+		try {
+			final T result = pool.withConnection(callback);
+			if (pool == primary) {
+				consecutiveFailures.set(0);
+			}
+			return result;
+		}
+		catch (SQLException e) {
+			if (pool == primary) {
+				// The work may have run, so it is not repeated on the standby
+				primaryFailed(e);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public <T> T withConnection(ConnectionCallback<T> callback, long retryTimeoutMs) throws SQLException {
+		final ConnectionPoolImpl pool = current();
+		try {
+			final T result = pool.withConnection(callback, retryTimeoutMs);
+			if (pool == primary) {
+				consecutiveFailures.set(0);
+			}
+			return result;
+		}
+		catch (SQLException e) {
+			if (pool == primary) {
+				primaryFailed(e);
+			}
+			throw e;
+		}
+	}
+
+	private ConnectionPoolImpl current() {
+		return failedOver ? standby : primary;
+	}
+
+	/**
+	 * Count a failure of the primary, opening the circuit if enough failed in a row.
+	 * @return true if borrowers should now go to the standby
+	 */
+	private boolean primaryFailed(SQLException e) {
+		if (primary.isShutdown() || !isPrimaryFailure(e)) {
+			return false;
+		}
+		if (consecutiveFailures.incrementAndGet() >= config.getFailoverThreshold()) {
+			LOGGER.warn("{} borrows in a row failed on the primary of pool {}: {}", consecutiveFailures.get(), poolName, e.getMessage());
+			failover();
+		}
+		return failedOver;
+	}
+
+	/**
+	 * @return true if the exception shows the primary database failing, rather than the primary
+	 *         pool being busy or the work itself failing
+	 */
+	private boolean isPrimaryFailure(SQLException e) {
+		if (e instanceof SQLTimeoutException) {
+			return primary.getPoolManager().isFailingToConnect();
+		}
+		return exceptionClassifier.isConnectionFatal(e);
+	}
+	
+	/**
+	 * Send borrowers to the standby, and grow it to the minimum idle of the primary in the background.
+	 */
+	public void failover() {
+		synchronized (this) {
+			if (failedOver || shutdown) {
+				return;
+			}
+			healthy = false;
+			failedOver = true;
+		}
+		failovers.incrementAndGet();
+		LOGGER.warn("Pool {} failing over to the standby", poolName);
+		final int primaryMinIdle = config.getMinimumIdleConnections() < 0 ? config.getMaximumPoolSize() : config.getMinimumIdleConnections();
+		standbyConfig.setMinimumIdle(Math.max(config.getStandbyMinimumIdle(), primaryMinIdle));
+		standby.getPoolManager().fillPool();
+	}
+
+	/**
+	 * Send borrowers back to the primary. The standby connections above its minimum idle are
+	 * closed by the idle timeout as they stop being used.
+	 */
+	public void failback() {
+		synchronized (this) {
+			if (!failedOver) {
+				return;
+			}
+			consecutiveFailures.set(0);
+			failedOver = false;
+		}
+		LOGGER.info("Pool {} failing back to the primary", poolName);
+		standbyConfig.setMinimumIdle(config.getStandbyMinimumIdle());
+	}
+
+	/**
+	 * Fail back once the primary has handed out a connection on every probe for the failback delay.
+	 * Polling a connection grows the primary pool when it has none idle, so it reconnects by itself.
+	 */
+	void probePrimary(long now) {
+		if (!failedOver || shutdown) {
+			return;
+		}
+		Connection connection = null;
+		try {
+			connection = primary.pollConnection();
+		}
+		catch (SQLException e) {
+			LOGGER.debug("Probe of the primary of pool {} failed", poolName, e);
+		}
+		if (connection == null) {
+			healthy = false;
+			return;
+		}
+		primary.releaseConnection((ConnectionItem) connection);
+		if (!healthy) {
+			healthy = true;
+			healthySince = now;
+		}
+		else if (now - healthySince >= TimeUnit.MILLISECONDS.toNanos(config.getFailbackDelay())) {
+			failback();
+		}
+	}
+
+	/**
+	 * @return true while borrowers are sent to the standby
+	 */
+	public boolean isFailedOver() {
+		return failedOver;
+	}
+
+	/**
+	 * @return the number of times the pool failed over to the standby
+	 */
+	public long getFailovers() {
+		return failovers.get();
+	}
+
+	public ConnectionPoolImpl getPrimaryPool() {
+		return primary;
+	}
+
+	public ConnectionPoolImpl getStandbyPool() {
+		return standby;
+	}
+
+	@Override
+	public void softEvictConnections() {
+		primary.softEvictConnections();
+		standby.softEvictConnections();
+	}
+
+	@Override
+	public void shutdown() throws InterruptedException {
+		synchronized (this) {
+			shutdown = true;
+		}
+		if (prober != null) {
+			prober.cancel(false);
+		}
+		try {
+			primary.shutdown();
+		}
+		finally {
+			standby.shutdown();
+		}
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	private static void shutdownQuietly(ConnectionPoolImpl pool) {
+		try {
+			pool.shutdown();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
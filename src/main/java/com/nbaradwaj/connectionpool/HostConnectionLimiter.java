@@ -0,0 +1,250 @@
+package com.nbaradwaj.connectionpool;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cap on the connections opened by every JVM on a host, coordinated through a small
+ * memory-mapped file. The file holds the number of connections open on the host and a lease
+ * per process with the connections that process holds. Taking and giving back a permit are
+ * compare-and-set operations on the mapped memory, so the hot path makes no system call.
+ * <p>
+ * When the cap is reached, the leases of processes that are no longer running are reclaimed:
+ * their connections died with them, so their share of the count is given back to the host.
+ * Leases record the start time of their process, so a recycled process id is not mistaken
+ * for the process that took the lease.
+ * <p>
+ * Every pool in a JVM sharing a file shares one limiter, see {@link #forFile(String, int)}.
+ */
+public class HostConnectionLimiter implements ConnectionLimiter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
+
+	/**
+	 * Layout of the file: a header of {@value #HEADER_SIZE} bytes with the magic number and the
+	 * host connection count, then {@value #MAX_LEASES} leases of {@value #LEASE_SIZE} bytes, each
+	 * with the process id, its start time and its connection count
+	 */
+	private static final int MAGIC = 0x48434c31;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CONNECTIONS_OFFSET = 8;
+	private static final int HEADER_SIZE = 64;
+	private static final int LEASE_SIZE = 32;
+	private static final int LEASE_PID_OFFSET = 0;
+	private static final int LEASE_STARTED_OFFSET = 8;
+	private static final int LEASE_CONNECTIONS_OFFSET = 16;
+	static final int MAX_LEASES = 256;
+	private static final int FILE_SIZE = HEADER_SIZE + MAX_LEASES * LEASE_SIZE;
+
+	/**
+	 * A lease being reclaimed by another process
+	 */
+	private static final long RECLAIMING = -1L;
+
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private static final Map<String, HostConnectionLimiter> LIMITERS = new HashMap<String, HostConnectionLimiter>();
+
+	private final File file;
+	private final int maxConnections;
+	private final MappedByteBuffer buffer;
+	private final long pid;
+	private final long started;
+
+	/**
+	 * The offset of the lease of this process
+	 */
+	private final int lease;
+
+	/**
+	 * Return the limiter of this JVM for a file, opening it on first use.
+	 *
+	 * @param path the file shared by the processes of the host
+	 * @param maxConnections the most connections the host may open
+	 * @return the limiter shared by every pool of this JVM using the file
+	 * @throws IOException if the file cannot be mapped, or has no free lease for this process
+	 */
+	public static HostConnectionLimiter forFile(String path, int maxConnections) throws IOException {
+		final File file = new File(path).getCanonicalFile();
+		synchronized (LIMITERS) {
+			HostConnectionLimiter limiter = LIMITERS.get(file.getPath());
+			if (limiter == null) {
+				limiter = new HostConnectionLimiter(file, maxConnections);
+				LIMITERS.put(file.getPath(), limiter);
+			}
+			else if (limiter.maxConnections != maxConnections) {
+				LOGGER.warn("Host connection limit file {} is already in use with a limit of {}, ignoring limit {}",
+						file, limiter.maxConnections, maxConnections);
+			}
+			return limiter;
+		}
+	}
+
+	HostConnectionLimiter(File file, int maxConnections) throws IOException {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("maxConnections cannot be less than 1");
+		}
+		this.file = file;
+		this.maxConnections = maxConnections;
+		final ProcessHandle self = ProcessHandle.current();
+		this.pid = self.pid();
+		this.started = startTime(self);
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// The mapping stays valid once the channel is closed. Growing an empty file zero fills it.
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+		}
+		if (!INT.compareAndSet(buffer, MAGIC_OFFSET, 0, MAGIC) && (int) INT.getVolatile(buffer, MAGIC_OFFSET) != MAGIC) {
+			throw new IOException(file + " is not a host connection limit file");
+		}
+		this.lease = claimLease();
+	}
+
+	private static long startTime(ProcessHandle process) {
+		final Optional<Instant> start = process.info().startInstant();
+		return start.isPresent() ? start.get().toEpochMilli() : 0L;
+	}
+
+	/**
+	 * Take a free lease for this process, or the lease it already holds, reclaiming the leases
+	 * of dead processes if none is free.
+	 */
+	private int claimLease() throws IOException {
+		for (int attempt = 0; attempt < 2; attempt++) {
+			for (int i = 0; i < MAX_LEASES; i++) {
+				final int offset = HEADER_SIZE + i * LEASE_SIZE;
+				if ((long) LONG.getVolatile(buffer, offset + LEASE_PID_OFFSET) == pid
+						&& (long) LONG.getVolatile(buffer, offset + LEASE_STARTED_OFFSET) == started) {
+					return offset;
+				}
+			}
+			for (int i = 0; i < MAX_LEASES; i++) {
+				final int offset = HEADER_SIZE + i * LEASE_SIZE;
+				if (LONG.compareAndSet(buffer, offset + LEASE_PID_OFFSET, 0L, RECLAIMING)) {
+					LONG.setVolatile(buffer, offset + LEASE_STARTED_OFFSET, started);
+					INT.setVolatile(buffer, offset + LEASE_CONNECTIONS_OFFSET, 0);
+					LONG.setVolatile(buffer, offset + LEASE_PID_OFFSET, pid);
+					return offset;
+				}
+			}
+			reclaimDeadLeases();
+		}
+		throw new IOException("No free lease in host connection limit file " + file);
+	}
+
+	@Override
+	public boolean tryAcquire() {
+		// The lease is counted before the host and uncounted after it, so the host count never
+		// holds a connection that no lease accounts for. A process dying between the two steps
+		// leaves its lease one connection ahead of the host count, and reclaiming the lease then
+		// takes one connection too many off the host count: the cap is exceeded by at most one
+		// connection per crashed process, instead of a slot being lost for good.
+		INT.getAndAdd(buffer, lease + LEASE_CONNECTIONS_OFFSET, 1);
+		if (!incrementBelowLimit()) {
+			// Slow path: give back what crashed processes held, then try once more
+			if (reclaimDeadLeases() == 0 || !incrementBelowLimit()) {
+				INT.getAndAdd(buffer, lease + LEASE_CONNECTIONS_OFFSET, -1);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean incrementBelowLimit() {
+		int connections;
+		do {
+			connections = (int) INT.getVolatile(buffer, CONNECTIONS_OFFSET);
+			if (connections >= maxConnections) {
+				return false;
+			}
+		}
+		while (!INT.compareAndSet(buffer, CONNECTIONS_OFFSET, connections, connections + 1));
+		return true;
+	}
+
+	@Override
+	public void release() {
+		INT.getAndAdd(buffer, CONNECTIONS_OFFSET, -1);
+		INT.getAndAdd(buffer, lease + LEASE_CONNECTIONS_OFFSET, -1);
+	}
+
+	/**
+	 * Free the leases of processes that are no longer running and give their connections back
+	 * to the host count.
+	 *
+	 * @return the number of connections given back
+	 */
+	int reclaimDeadLeases() {
+		int reclaimed = 0;
+		for (int i = 0; i < MAX_LEASES; i++) {
+			final int offset = HEADER_SIZE + i * LEASE_SIZE;
+			final long leasePid = (long) LONG.getVolatile(buffer, offset + LEASE_PID_OFFSET);
+			if (leasePid == 0L || leasePid == RECLAIMING || offset == lease) {
+				continue;
+			}
+			final long leaseStarted = (long) LONG.getVolatile(buffer, offset + LEASE_STARTED_OFFSET);
+			if (isRunning(leasePid, leaseStarted)) {
+				continue;
+			}
+			// Whoever wins the lease reclaims it, the dead process cannot change its count any more
+			if (LONG.compareAndSet(buffer, offset + LEASE_PID_OFFSET, leasePid, RECLAIMING)) {
+				final int connections = (int) INT.getAndSet(buffer, offset + LEASE_CONNECTIONS_OFFSET, 0);
+				INT.getAndAdd(buffer, CONNECTIONS_OFFSET, -connections);
+				LONG.setVolatile(buffer, offset + LEASE_PID_OFFSET, 0L);
+				reclaimed += connections;
+				LOGGER.info("Reclaimed {} connections of dead process {} from host connection limit file {}", connections, leasePid, file);
+			}
+		}
+		return reclaimed;
+	}
+
+	private static boolean isRunning(long pid, long started) {
+		final Optional<ProcessHandle> process = ProcessHandle.of(pid);
+		return process.isPresent() && process.get().isAlive() && (started == 0L || startTime(process.get()) == started);
+	}
+
+	/**
+	 * @return the connections open on the host, counted by every process using the file
+	 */
+	public int getHostConnections() {
+		return (int) INT.getVolatile(buffer, CONNECTIONS_OFFSET);
+	}
+
+	/**
+	 * @return the connections open in this process
+	 */
+	public int getProcessConnections() {
+		return (int) INT.getVolatile(buffer, lease + LEASE_CONNECTIONS_OFFSET);
+	}
+
+	/**
+	 * @return the number of processes holding a lease
+	 */
+	public int getLeases() {
+		int leases = 0;
+		for (int i = 0; i < MAX_LEASES; i++) {
+			final long leasePid = (long) LONG.getVolatile(buffer, HEADER_SIZE + i * LEASE_SIZE + LEASE_PID_OFFSET);
+			if (leasePid != 0L && leasePid != RECLAIMING) {
+				leases++;
+			}
+		}
+		return leases;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+}
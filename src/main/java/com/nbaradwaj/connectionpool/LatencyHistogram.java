@@ -0,0 +1,94 @@
+package com.nbaradwaj.connectionpool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations over fixed buckets, from 100 microseconds to 30 seconds. Recording
+ * a duration is two atomic increments and never allocates, and reading it takes no lock, so a
+ * reader never holds back the threads recording.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * The upper bounds of the buckets, in nanoseconds. Longer durations go to a last, unbounded bucket.
+	 */
+	private static final long[] BOUNDS = {
+			TimeUnit.MICROSECONDS.toNanos(100), TimeUnit.MICROSECONDS.toNanos(500),
+			TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(5),
+			TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(50),
+			TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(500),
+			TimeUnit.SECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(5),
+			TimeUnit.SECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(30) };
+
+	private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+	private final AtomicLong sumNanos = new AtomicLong();
+
+	/**
+	 * @param nanos the duration to record
+	 */
+	public void record(long nanos) {
+		int bucket = 0;
+		while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+			bucket++;
+		}
+		counts.incrementAndGet(bucket);
+		sumNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return the upper bounds of the buckets in nanoseconds, without the unbounded last one
+	 */
+	public static long[] getBounds() {
+		return BOUNDS.clone();
+	}
+
+	/**
+	 * Copy the histogram. Durations recorded while it is copied may be counted in the buckets and
+	 * not yet in the sum, or the other way round.
+	 */
+	public Snapshot snapshot() {
+		final long[] cumulative = new long[BOUNDS.length + 1];
+		long count = 0;
+		for (int i = 0; i < cumulative.length; i++) {
+			count += counts.get(i);
+			cumulative[i] = count;
+		}
+		return new Snapshot(cumulative, sumNanos.get());
+	}
+
+	/**
+	 * The histogram at one moment, with the counts of its buckets added up from the shortest.
+	 */
+	public static final class Snapshot {
+
+		private final long[] cumulativeCounts;
+		private final long sumNanos;
+
+		private Snapshot(long[] cumulativeCounts, long sumNanos) {
+			this.cumulativeCounts = cumulativeCounts;
+			this.sumNanos = sumNanos;
+		}
+
+		/**
+		 * @param bucket a bucket, the last one being unbounded
+		 * @return the durations no longer than the upper bound of the bucket
+		 */
+		public long getCumulativeCount(int bucket) {
+			return cumulativeCounts[bucket];
+		}
+
+		public int getBuckets() {
+			return cumulativeCounts.length;
+		}
+
+		public long getCount() {
+			return cumulativeCounts[cumulativeCounts.length - 1];
+		}
+
+		public long getSumNanos() {
+			return sumNanos;
+		}
+	}
+}
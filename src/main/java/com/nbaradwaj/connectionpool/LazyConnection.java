@@ -0,0 +1,507 @@
+package com.nbaradwaj.connectionpool;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * The connection handed out by a pool configured for lazy connections. It holds no pooled
+ * connection until the first call that needs the database, so a caller that takes a connection
+ * early and uses it late, or not at all, only keeps a pooled connection while it really works.
+ * <p>
+ * Session settings made before then, such as auto-commit, read-only, the transaction isolation,
+ * catalog, schema and holdability, are recorded and applied to the pooled connection when it is
+ * bound. The pooled connection is released when this connection is closed, or, when the pool is
+ * configured to, as soon as a transaction ends with a commit or rollback; the next call that
+ * needs the database then binds a connection again. Statements created before such a release
+ * must not be used after it.
+ */
+public class LazyConnection implements Connection {
+
+	private final ConnectionPoolImpl pool;
+	private final long connectionTimeout;
+	private final boolean releaseOnCommit;
+
+	/**
+	 * The pooled connection, or null while none is bound
+	 */
+	private Connection connection;
+	private boolean closed;
+
+	/**
+	 * Settings to apply when a pooled connection is bound, null when not set
+	 */
+	private Boolean autoCommit;
+	private Boolean readOnly;
+	private Integer transactionIsolation;
+	private Integer holdability;
+	private String catalog;
+	private boolean catalogSet;
+	private String schema;
+	private boolean schemaSet;
+
+	/**
+	 * @param pool the pool to borrow the connection from
+	 * @param connectionTimeout how long to wait for a connection when one is bound
+	 * @param releaseOnCommit whether to release the connection when a transaction ends
+	 */
+	LazyConnection(ConnectionPoolImpl pool, long connectionTimeout, boolean releaseOnCommit) {
+		this.pool = pool;
+		this.connectionTimeout = connectionTimeout;
+		this.releaseOnCommit = releaseOnCommit;
+	}
+
+	/**
+	 * @return true while a pooled connection is bound
+	 */
+	public boolean isBound() {
+		return connection != null;
+	}
+
+	/**
+	 * Borrow a pooled connection if none is bound, and apply the recorded settings to it.
+	 */
+	private Connection bind() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection is closed", "08003");
+		}
+		if (connection == null) {
+			final Connection borrowed = pool.getConnection(connectionTimeout);
+			try {
+				if (autoCommit != null) {
+					borrowed.setAutoCommit(autoCommit);
+				}
+				if (readOnly != null) {
+					borrowed.setReadOnly(readOnly);
+				}
+				if (transactionIsolation != null) {
+					borrowed.setTransactionIsolation(transactionIsolation);
+				}
+				if (holdability != null) {
+					borrowed.setHoldability(holdability);
+				}
+				if (catalogSet) {
+					borrowed.setCatalog(catalog);
+				}
+				if (schemaSet) {
+					borrowed.setSchema(schema);
+				}
+			}
+			catch (SQLException e) {
+				pool.releaseConnection(borrowed);
+				throw e;
+			}
+			connection = borrowed;
+		}
+		return connection;
+	}
+
+	/**
+	 * Give the bound connection, if any, back to the pool.
+	 */
+	private void unbind() throws SQLException {
+		final Connection bound = connection;
+		connection = null;
+		if (bound != null) {
+			pool.releaseConnection(bound);
+		}
+	}
+
+	private void checkOpen() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection is closed", "08003");
+		}
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this) || bind().isWrapperFor(iface);
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		return bind().unwrap(iface);
+	}
+
+	@Override
+	public void clearWarnings() throws SQLException {
+		checkOpen();
+		if (connection != null) {
+			connection.clearWarnings();
+		}
+	}
+
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		checkOpen();
+		return connection == null ? null : connection.getWarnings();
+	}
+
+	@Override
+	public void close() throws SQLException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		unbind();
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException {
+		return closed;
+	}
+
+	@Override
+	public void abort(Executor executor) throws SQLException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (connection != null) {
+			connection.abort(executor);
+			unbind();
+		}
+	}
+
+	/**
+	 * Commit the transaction of the bound connection, if any. Without a bound connection there
+	 * is nothing to commit.
+	 */
+	@Override
+	public void commit() throws SQLException {
+		checkOpen();
+		if (connection != null) {
+			connection.commit();
+			if (releaseOnCommit) {
+				unbind();
+			}
+		}
+	}
+
+	/**
+	 * Roll back the transaction of the bound connection, if any.
+	 */
+	@Override
+	public void rollback() throws SQLException {
+		checkOpen();
+		if (connection != null) {
+			connection.rollback();
+			if (releaseOnCommit) {
+				unbind();
+			}
+		}
+	}
+
+	@Override
+	public void rollback(Savepoint savepoint) throws SQLException {
+		bind().rollback(savepoint);
+	}
+
+	@Override
+	public Savepoint setSavepoint() throws SQLException {
+		return bind().setSavepoint();
+	}
+
+	@Override
+	public Savepoint setSavepoint(String name) throws SQLException {
+		return bind().setSavepoint(name);
+	}
+
+	@Override
+	public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+		bind().releaseSavepoint(savepoint);
+	}
+
+	@Override
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		checkOpen();
+		if (connection != null) {
+			connection.setAutoCommit(autoCommit);
+		}
+		this.autoCommit = autoCommit;
+	}
+
+	@Override
+	public boolean getAutoCommit() throws SQLException {
+		checkOpen();
+		return connection == null && autoCommit != null ? autoCommit : bind().getAutoCommit();
+	}
+
+	@Override
+	public void setReadOnly(boolean readOnly) throws SQLException {
+		checkOpen();
+		if (connection != null) {
+			connection.setReadOnly(readOnly);
+		}
+		this.readOnly = readOnly;
+	}
+
+	@Override
+	public boolean isReadOnly() throws SQLException {
+		checkOpen();
+		return connection == null && readOnly != null ? readOnly : bind().isReadOnly();
+	}
+
+	@Override
+	public void setTransactionIsolation(int level) throws SQLException {
+		checkOpen();
+		if (connection != null) {
+			connection.setTransactionIsolation(level);
+		}
+		this.transactionIsolation = level;
+	}
+
+	@Override
+	public int getTransactionIsolation() throws SQLException {
+		checkOpen();
+		return connection == null && transactionIsolation != null ? transactionIsolation : bind().getTransactionIsolation();
+	}
+
+	@Override
+	public void setHoldability(int holdability) throws SQLException {
+		checkOpen();
+		if (connection != null) {
+			connection.setHoldability(holdability);
+		}
+		this.holdability = holdability;
+	}
+
+	@Override
+	public int getHoldability() throws SQLException {
+		checkOpen();
+		return connection == null && holdability != null ? holdability : bind().getHoldability();
+	}
+
+	@Override
+	public void setCatalog(String catalog) throws SQLException {
+		checkOpen();
+		if (connection != null) {
+			connection.setCatalog(catalog);
+		}
+		this.catalog = catalog;
+		this.catalogSet = true;
+	}
+
+	@Override
+	public String getCatalog() throws SQLException {
+		checkOpen();
+		return connection == null && catalogSet ? catalog : bind().getCatalog();
+	}
+
+	@Override
+	public void setSchema(String schema) throws SQLException {
+		checkOpen();
+		if (connection != null) {
+			connection.setSchema(schema);
+		}
+		this.schema = schema;
+		this.schemaSet = true;
+	}
+
+	@Override
+	public String getSchema() throws SQLException {
+		checkOpen();
+		return connection == null && schemaSet ? schema : bind().getSchema();
+	}
+
+	@Override
+	public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+		return bind().createArrayOf(typeName, elements);
+	}
+
+	@Override
+	public Blob createBlob() throws SQLException {
+		return bind().createBlob();
+	}
+
+	@Override
+	public Clob createClob() throws SQLException {
+		return bind().createClob();
+	}
+
+	@Override
+	public NClob createNClob() throws SQLException {
+		return bind().createNClob();
+	}
+
+	@Override
+	public SQLXML createSQLXML() throws SQLException {
+		return bind().createSQLXML();
+	}
+
+	@Override
+	public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+		return bind().createStruct(typeName, attributes);
+	}
+
+	@Override
+	public Statement createStatement() throws SQLException {
+		return bind().createStatement();
+	}
+
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+		return bind().createStatement(resultSetType, resultSetConcurrency);
+	}
+
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		return bind().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	/**
+	 * @return the pool, user, catalog and schema queries would run as, for the result cache
+	 */
+	Object cacheScope() {
+		if (connection != null) {
+			return ((ConnectionItemImpl) connection).cacheScope();
+		}
+		return pool.cacheScope(catalogSet ? catalog : null, schemaSet ? schema : null);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(final String sql) throws SQLException {
+		checkOpen();
+		final QueryResultCache cache = pool.getResultCache();
+		if (cache != null && cache.isCacheable(sql)) {
+			// A hit is served without binding, so it never borrows a connection
+			return cache.prepare(this, sql, new QueryResultCache.StatementFactory() {
+				@Override
+				public PreparedStatement prepare() throws SQLException {
+					return ((ConnectionItemImpl) bind()).prepareUncached(sql);
+				}
+			});
+		}
+		return bind().prepareStatement(sql);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+		return bind().prepareStatement(sql, autoGeneratedKeys);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+		return bind().prepareStatement(sql, columnIndexes);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+		return bind().prepareStatement(sql, columnNames);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+		return bind().prepareStatement(sql, resultSetType, resultSetConcurrency);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		return bind().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql) throws SQLException {
+		return bind().prepareCall(sql);
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+		return bind().prepareCall(sql, resultSetType, resultSetConcurrency);
+	}
+
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		return bind().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	@Override
+	public String nativeSQL(String sql) throws SQLException {
+		return bind().nativeSQL(sql);
+	}
+
+	@Override
+	public DatabaseMetaData getMetaData() throws SQLException {
+		return bind().getMetaData();
+	}
+
+	@Override
+	public boolean isValid(int timeout) throws SQLException {
+		return !closed && bind().isValid(timeout);
+	}
+
+	@Override
+	public Map<String, Class<?>> getTypeMap() throws SQLException {
+		return bind().getTypeMap();
+	}
+
+	@Override
+	public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+		bind().setTypeMap(map);
+	}
+
+	@Override
+	public Properties getClientInfo() throws SQLException {
+		return bind().getClientInfo();
+	}
+
+	@Override
+	public String getClientInfo(String name) throws SQLException {
+		return bind().getClientInfo(name);
+	}
+
+	@Override
+	public void setClientInfo(Properties properties) throws SQLClientInfoException {
+		bindForClientInfo().setClientInfo(properties);
+	}
+
+	@Override
+	public void setClientInfo(String name, String value) throws SQLClientInfoException {
+		bindForClientInfo().setClientInfo(name, value);
+	}
+
+	private Connection bindForClientInfo() throws SQLClientInfoException {
+		try {
+			return bind();
+		}
+		catch (SQLClientInfoException e) {
+			throw e;
+		}
+		catch (SQLException e) {
+			throw new SQLClientInfoException(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, e);
+		}
+	}
+
+	@Override
+	public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+		bind().setNetworkTimeout(executor, milliseconds);
+	}
+
+	@Override
+	public int getNetworkTimeout() throws SQLException {
+		return bind().getNetworkTimeout();
+	}
+
+	@Override
+	public String toString() {
+		return "LazyConnection[" + (closed ? "closed" : connection == null ? "unbound" : connection.toString()) + "]";
+	}
+}
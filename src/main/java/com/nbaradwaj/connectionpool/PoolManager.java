@@ -1,14 +1,32 @@
 package com.nbaradwaj.connectionpool;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import tasks.addConnectionsTask;
+
 /**
  * 
  * The pool manager class manages the house keeping of the connections in the pool
@@ -20,36 +38,194 @@ import org.slf4j.LoggerFactory;
 public class PoolManager {
 	
 	protected static final Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
+	
+	/**
+	 * Reasons reported when a connection is removed from the pool
+	 */
+	public static final String EVICT_REASON_EVICTED = "evicted";
+	public static final String EVICT_REASON_INVALID = "validation failed";
+	public static final String EVICT_REASON_RELEASED_EVICTED = "evicted on release";
+	public static final String EVICT_REASON_POOL_SHRUNK = "pool shrunk";
+	public static final String EVICT_REASON_SOFT_EVICTED = "soft evicted";
+	public static final String EVICT_REASON_SHUTDOWN = "pool shutdown";
+	public static final String EVICT_REASON_REMOVED = "removed";
+	public static final String EVICT_REASON_MAX_LIFETIME = "max lifetime";
+	public static final String EVICT_REASON_IDLE_TIMEOUT = "idle timeout";
+	
+	/**
+	 * How often the housekeeper sweeps the pool for leaks, expired and idle connections
+	 */
+	static final long HOUSEKEEPING_PERIOD_MS = TimeUnit.SECONDS.toMillis(30);
+	
+	/**
+	 * How often the warm-start profile is written while the pool runs
+	 */
+	static final long WARM_START_SAVE_PERIOD_MS = TimeUnit.MINUTES.toMillis(5);
+	
 	private ConnectionConfig config;
-	private LinkedBlockingQueue<ConnectionItem> idleConnections;
-	private LinkedBlockingQueue<ConnectionItem> activeConnections;
+	private BlockingQueue<ConnectionItem> idleConnections;
+	private BlockingQueue<ConnectionItem> activeConnections;
 	private ConnectionPool pool;
-	private static AtomicLong nextConnectionId;
+	private static final AtomicLong nextConnectionId = new AtomicLong();
+	
+	/**
+	 * Connections being created in the background, and the threads creating them: threads of
+	 * the pool's own, or a lane of the registry it shares threads with
+	 */
+	private static final int MAX_CONNECTION_CREATION_THREADS = 8;
+	private final AtomicInteger pendingConnections = new AtomicInteger();
+	private Executor addConnectionExecutor;
+	
+	/**
+	 * Closes removed connections off the thread that removed them. Its queue holds up to a close
+	 * per connection the pool can have, at its current maximum size. Housekeeping runs the closes
+	 * that do not fit itself, borrowers leave them to the overflow, which the closer threads drain
+	 * however long it grows, so removing a connection never makes a borrower wait for a close and
+	 * every removed connection is closed. A single task at a time in the closer's queue drains
+	 * the overflow, so the queue stays bounded.
+	 */
+	private static final int MAX_CONNECTION_CLOSE_THREADS = 4;
+	private ThreadPoolExecutor closeConnectionExecutor;
+	private final BlockingQueue<Runnable> overflowCloses = new LinkedBlockingQueue<Runnable>();
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+	private final Runnable drainOverflow = new Runnable() {
+		@Override
+		public void run() {
+			do {
+				Runnable close;
+				while ((close = overflowCloses.poll()) != null) {
+					close.run();
+				}
+				drainScheduled.set(false);
+				// A close offered after the last poll found the drain still scheduled
+			}
+			while (!overflowCloses.isEmpty() && drainScheduled.compareAndSet(false, true));
+		}
+	};
+	
+	/**
+	 * The thread running {@link #housekeep()}, which can afford to wait for a close
+	 */
+	private volatile Thread housekeepingThread;
+	private volatile boolean shutdown;
+	
+	/**
+	 * True while the last attempt to open a connection failed
+	 */
+	private volatile boolean failingToConnect;
+	
+	/**
+	 * Limits how fast connections are opened, or null for no limit
+	 */
+	private final ConnectionRateLimiter rateLimiter;
+	
+	/**
+	 * Limits the connections open across pools or processes, or null for no limit
+	 */
+	private final ConnectionLimiter connectionLimiter;
+	private final PoolMetrics metrics;
+	
+	/**
+	 * The state and timestamps of the connections, scanned by the housekeeper
+	 */
+	private final ConnectionTable connectionTable;
+	private ScheduledThreadPoolExecutor housekeeper;
+	
+	/**
+	 * The tasks of the pool on the scheduler of its registry, when it has one
+	 */
+	private final List<ScheduledFuture<?>> scheduledTasks = new ArrayList<ScheduledFuture<?>>();
+	
+	/**
+	 * The load learned by previous runs of the pool and by this one, or null if not kept
+	 */
+	private final WarmStartProfile warmStart;
+	
+	/**
+	 * Constructor
+	 * @param config The configuration of the connection pool
+	 * @param idleConnections The list containing all the idle connections
+	 * @param connectionsInUse The list containing all the active connections
+	 */
+	public PoolManager(ConnectionConfig config, BlockingQueue<ConnectionItem> idleConnections, BlockingQueue<ConnectionItem> activeConnections, ConnectionPool pool) {
+		this(config, idleConnections, activeConnections, pool, new PoolMetrics());
+	}
+	
+	/**
+	 * Constructor
+	 * @param config The configuration of the connection pool
+	 * @param idleConnections The list containing all the idle connections
+	 * @param connectionsInUse The list containing all the active connections
+	 * @param metrics The counters of the pool to report to
+	 */
+	public PoolManager(ConnectionConfig config, BlockingQueue<ConnectionItem> idleConnections, BlockingQueue<ConnectionItem> activeConnections, ConnectionPool pool, PoolMetrics metrics) {
+		this(config, idleConnections, activeConnections, pool, metrics, new ConnectionTable(config.getMaximumPoolSize()));
+	}
 	
 	/**
 	 * Constructor
 	 * @param config The configuration of the connection pool
 	 * @param idleConnections The list containing all the idle connections
 	 * @param connectionsInUse The list containing all the active connections
+	 * @param metrics The counters of the pool to report to
+	 * @param connectionTable The table holding the state of the connections of the pool
 	 */
-	public PoolManager(ConnectionConfig config, LinkedBlockingQueue<ConnectionItem> idleConnections, LinkedBlockingQueue<ConnectionItem> activeConnections, ConnectionPool pool) {
+	public PoolManager(ConnectionConfig config, BlockingQueue<ConnectionItem> idleConnections, BlockingQueue<ConnectionItem> activeConnections, ConnectionPool pool, PoolMetrics metrics, ConnectionTable connectionTable) {
 		this.config = config;
+		this.connectionTable = connectionTable;
 		this.idleConnections = idleConnections;
 		this.activeConnections = activeConnections;
 		this.pool = pool;
+		this.metrics = metrics;
+		this.rateLimiter = config.getConnectionCreationRate() > 0 ? new ConnectionRateLimiter(config.getConnectionCreationRate()) : null;
+		this.connectionLimiter = createConnectionLimiter(config);
+		this.warmStart = loadWarmStartProfile(config);
+	}
+	
+	/**
+	 * Load the warm-start profile of the pool if one is configured, starting afresh if it cannot be read.
+	 */
+	private static WarmStartProfile loadWarmStartProfile(ConnectionConfig config) {
+		if (config.getWarmStartFile() == null) {
+			return null;
+		}
+		try {
+			return WarmStartProfile.load(new File(config.getWarmStartFile()));
+		} catch (IOException e) {
+			LOGGER.warn("Unable to read warm-start file {} of pool {}, starting without it", config.getWarmStartFile(), config.getPoolName(), e);
+			return new WarmStartProfile();
+		}
+	}
+	
+	/**
+	 * @return the warm-start profile of the pool, or null if it does not keep one
+	 */
+	public WarmStartProfile getWarmStartProfile() {
+		return warmStart;
+	}
+	
+	/**
+	 * Return the limiter configured for the pool, opening the host connection limit file if one is set.
+	 */
+	private static ConnectionLimiter createConnectionLimiter(ConnectionConfig config) {
+		if (config.getConnectionLimiter() != null) {
+			return config.getConnectionLimiter();
+		}
+		if (config.getHostConnectionLimit() > 0 && config.getHostConnectionLimitFile() != null) {
+			try {
+				return HostConnectionLimiter.forFile(config.getHostConnectionLimitFile(), config.getHostConnectionLimit());
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to open host connection limit file " + config.getHostConnectionLimitFile(), e);
+			}
+		}
+		return null;
 	}
 	
 	/**
 	 * Adds a minimum number of connections to the pool to prepare for serving the clients
 	 */
 	public void addConnections() {
-		final int connectionsToAdd;
-		//Make sure the number of connections to add does not overflow the max size of the pool.
-		if (config.getMaximumPoolSize() - (idleConnections.size() + activeConnections.size()) > config.getMinimumIdleConnections() - idleConnections.size()) {
-			connectionsToAdd = config.getMaximumPoolSize() - (idleConnections.size() + activeConnections.size());
-		} else {
-			connectionsToAdd = config.getMinimumIdleConnections() - idleConnections.size();
-		}
+		final int connectionsToAdd = connectionsToAdd();
 		
 		//Check if creating a single connection is working. If not, there might be something wrong with the datasource,
 		//in which case we might not be able to add more connections to the pool.
@@ -64,38 +240,638 @@ public class PoolManager {
         }
 	}
 	
+	/**
+	 * Open, in parallel, the connections the warm-start profile predicts the pool is going to need
+	 * in the coming hour, and wait up to the connection timeout for them. Does nothing if the pool
+	 * keeps no profile, or the profile predicts no more than the minimum idle.
+	 */
+	public void prefill() {
+		if (warmStart == null) {
+			return;
+		}
+		final int demand = Math.min(warmStart.predictDemand(LocalTime.now().getHour()), config.getMaximumPoolSize());
+		final int connectionsToAdd;
+		synchronized (pendingConnections) {
+			if (shutdown) {
+				return;
+			}
+			connectionsToAdd = demand - (idleConnections.size() + activeConnections.size() + pendingConnections.get());
+			if (connectionsToAdd <= 0) {
+				return;
+			}
+			pendingConnections.addAndGet(connectionsToAdd);
+		}
+		LOGGER.info("Prefilling pool {} with {} connections for a predicted demand of {}", this.config.getPoolName(), connectionsToAdd, demand);
+		final Executor executor = getAddConnectionExecutor();
+		for (int i = 0; i < connectionsToAdd; i++) {
+			executor.execute(new addConnectionsTask(this));
+		}
+		awaitPendingConnections();
+	}
+	
+	/**
+	 * Adds the minimum number of connections a new pool starts with, in parallel on the creation
+	 * threads, and waits up to the connection timeout for them. They are opened within the
+	 * creation rate limit like any other: many processes restarting at once is the login storm
+	 * the limit is there for. Connections still being opened when the wait ends are added in
+	 * the background.
+	 */
+	public void addInitialConnections() {
+		fillPool();
+		awaitPendingConnections();
+	}
+	
+	/**
+	 * Wait up to the connection timeout for the connections being created in the background.
+	 */
+	private void awaitPendingConnections() {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getConnectionTimeout());
+		try {
+			synchronized (pendingConnections) {
+				long remaining;
+				while (!shutdown && pendingConnections.get() > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+					TimeUnit.NANOSECONDS.timedWait(pendingConnections, remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Tops the pool up to its minimum number of idle connections in the background, creating
+	 * the missing connections in parallel. Returns without waiting for the connections.
+	 */
+	public void fillPool() {
+		final int connectionsToAdd;
+		synchronized (pendingConnections) {
+			if (shutdown) {
+				return;
+			}
+			connectionsToAdd = connectionsToAdd();
+			if (connectionsToAdd <= 0) {
+				return;
+			}
+			pendingConnections.addAndGet(connectionsToAdd);
+		}
+		LOGGER.debug("Filling pool {} with {} connections", this.config.getPoolName(), connectionsToAdd);
+		final Executor executor = getAddConnectionExecutor();
+		for (int i = 0; i < connectionsToAdd; i++) {
+			executor.execute(new addConnectionsTask(this));
+		}
+	}
+	
+	/**
+	 * Grows the pool by one connection in the background when borrowers find no idle connection,
+	 * as long as the pool is below its maximum size counting connections already being created.
+	 */
+	public void growPool() {
+		synchronized (pendingConnections) {
+			if (shutdown || idleConnections.size() + activeConnections.size() + pendingConnections.get() >= config.getMaximumPoolSize()) {
+				return;
+			}
+			pendingConnections.incrementAndGet();
+		}
+		getAddConnectionExecutor().execute(new addConnectionsTask(this));
+	}
+	
+	/**
+	 * Work out how many connections are missing, counting connections still being created.
+	 * @return the number of connections to create, which may be zero or negative
+	 */
+	private int connectionsToAdd() {
+		//An unset minimum idle means keeping the pool full, as ConnectionConfig.validate() does.
+		final ConnectionConfig.ReloadableSettings settings = config.getReloadableSettings();
+		final int minIdle = settings.minIdleConnections < 0 ? settings.maxPoolSize : settings.minIdleConnections;
+		final int idle = idleConnections.size() + pendingConnections.get();
+		final int total = idle + activeConnections.size();
+		//Make sure the number of connections to add does not overflow the max size of the pool.
+		return Math.min(settings.maxPoolSize - total, minIdle - idle);
+	}
+	
+	/**
+	 * Called by {@link addConnectionsTask} when a background connection attempt is over. Wakes
+	 * a {@link #prefill()} waiting for the last pending connection.
+	 */
+	public void addConnectionCompleted() {
+		if (pendingConnections.decrementAndGet() == 0) {
+			synchronized (pendingConnections) {
+				pendingConnections.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Return the executor that creates connections in the background, creating it on first use.
+	 * Its threads time out when idle, so a steady pool keeps no threads around. A pool with a
+	 * registry creates its connections on the registry's threads instead.
+	 */
+	private Executor getAddConnectionExecutor() {
+		synchronized (pendingConnections) {
+			if (this.addConnectionExecutor == null) {
+				final int threads = Math.min(this.config.getMaximumPoolSize(), MAX_CONNECTION_CREATION_THREADS);
+				if (this.config.getPoolRegistry() != null) {
+					this.addConnectionExecutor = this.config.getPoolRegistry().newCreationLane(threads);
+				}
+				else {
+					final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+								@Override
+								public Thread newThread(Runnable runnable) {
+									return ConnectionPoolHelper.newThread(config, runnable, "connection adder");
+								}
+							});
+					executor.allowCoreThreadTimeOut(true);
+					this.addConnectionExecutor = executor;
+				}
+			}
+			return this.addConnectionExecutor;
+		}
+	}
+	
+	/**
+	 * Return the executor that closes removed connections, creating it on first use. Its threads
+	 * drain the overflow once their own queue is empty, and time out when idle.
+	 */
+	private ThreadPoolExecutor getCloseConnectionExecutor() {
+		synchronized (pendingConnections) {
+			if (this.closeConnectionExecutor == null) {
+				final int threads = Math.min(this.config.getMaximumPoolSize(), MAX_CONNECTION_CLOSE_THREADS);
+				this.closeConnectionExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+							@Override
+							public Thread newThread(Runnable runnable) {
+								return ConnectionPoolHelper.newThread(config, runnable, "connection closer");
+							}
+						}, new RejectedExecutionHandler() {
+							@Override
+							public void rejectedExecution(Runnable close, ThreadPoolExecutor executor) {
+								// Only once shut down, when closing the pool happens in parallel anyway
+								close.run();
+							}
+						}) {
+					@Override
+					protected void afterExecute(Runnable task, Throwable failure) {
+						Runnable close;
+						while (getQueue().isEmpty() && (close = overflowCloses.poll()) != null) {
+							close.run();
+						}
+					}
+				};
+				this.closeConnectionExecutor.allowCoreThreadTimeOut(true);
+			}
+			return this.closeConnectionExecutor;
+		}
+	}
+	
+	/**
+	 * Close a removed connection in the background, then give back its permit.
+	 *
+	 * @param connection the physical connection to close
+	 * @param releasePermit whether the connection held a permit of the connection limiter
+	 */
+	private void closeInBackground(final Connection connection, final boolean releasePermit) {
+		final Runnable close = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ConnectionPoolHelper.closeConnection(connection);
+					if (releasePermit && connectionLimiter != null) {
+						connectionLimiter.release();
+					}
+				}
+				finally {
+					metrics.closeCompleted();
+				}
+			}
+		};
+		metrics.closeQueued();
+		final ThreadPoolExecutor executor = getCloseConnectionExecutor();
+		// Read on every close, so the bound follows reloads of the maximum pool size
+		final int maxQueued = this.config.getMaximumPoolSize();
+		if (executor.getQueue().size() < maxQueued) {
+			executor.execute(close);
+			return;
+		}
+		metrics.closeOverflowed();
+		if (Thread.currentThread() == this.housekeepingThread) {
+			close.run();
+		}
+		else {
+			overflowCloses.offer(close);
+			// A closer thread may have gone idle before the offer, make sure one drains it
+			if (drainScheduled.compareAndSet(false, true)) {
+				executor.execute(drainOverflow);
+			}
+		}
+	}
+	
+	/**
+	 * Wait for the connections removed before the pool manager was shut down to be closed.
+	 *
+	 * @param timeoutMs how long to wait
+	 * @return true if every close has completed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitCloses(long timeoutMs) throws InterruptedException {
+		final ThreadPoolExecutor executor;
+		synchronized (pendingConnections) {
+			executor = this.closeConnectionExecutor;
+		}
+		final boolean closed = executor == null || executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+		// Whatever the closer threads left in the overflow
+		Runnable close;
+		while ((close = overflowCloses.poll()) != null) {
+			close.run();
+		}
+		return closed;
+	}
+	
 	/**
 	 * Adds a single connection to the pool.
 	 * @return Boolean success or failure of connection creation.
 	 * @throws SQLException
 	 */
-	private boolean addConnection() throws SQLException {
+	public boolean addConnection() throws SQLException {
+		try {
+			throttle();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		if (this.connectionLimiter != null && !this.connectionLimiter.tryAcquire()) {
+			this.metrics.connectionLimited();
+			LOGGER.debug("Connection limit shared by pool {} reached, not opening a connection", this.config.getPoolName());
+			return false;
+		}
+		
 		Connection connection = null;
+		final ConnectionCreateEvent event = ConnectionCreateEvent.TYPE.isEnabled() ? new ConnectionCreateEvent() : null;
+		if (event != null) {
+			event.begin();
+		}
          try {
         	 final String username = this.config.getUsername();
         	 final String password = this.config.getPassword(); 
+        	 final long start = System.nanoTime();
             connection = (username == null && password == null) ? this.config.getDataSource().getConnection() : this.config.getDataSource().getConnection(username, password);
+            if (this.warmStart != null) {
+            	this.warmStart.recordConnect(System.nanoTime() - start);
+            }
             
             if (!connection.isValid((int) TimeUnit.MILLISECONDS.toSeconds(this.config.getValidationTimeout()))) {
             	throw new SQLException("Connection is not valid.");
             }
             
-            this.idleConnections.add(new ConnectionItemImpl(connection, this.pool, nextConnectionId.getAndIncrement()));
+            if (shutdown) {
+            	throw new SQLException("Pool is shut down.");
+            }
+            
+            final long id = nextConnectionId.getAndIncrement();
+            this.idleConnections.add(new ConnectionItemImpl(connection, this.pool, id, this.connectionTable));
+            failingToConnect = false;
+            commitCreateEvent(event, id, true);
             return true;
          }
          catch (Exception e) {
         	 ConnectionPoolHelper.closeConnection(connection);
+        	 if (this.connectionLimiter != null) {
+        		 this.connectionLimiter.release();
+        	 }
+        	 failingToConnect = true;
             LOGGER.debug("Connection attempt to database {} failed: {}", this.config.getPoolName(), e.getMessage(), e);
          }
+         commitCreateEvent(event, -1, false);
          return false;
       }
 	
+	/**
+	 * @return true if the last attempt to open a connection failed, so a borrow that timed out
+	 *         is down to the database rather than to a busy pool
+	 */
+	public boolean isFailingToConnect() {
+		return failingToConnect;
+	}
+	
+	/**
+	 * Wait for the creation rate limit to allow another connection.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void throttle() throws InterruptedException {
+		if (this.rateLimiter != null) {
+			final long delay = this.rateLimiter.acquire();
+			if (delay > 0) {
+				this.metrics.connectionThrottled(delay);
+			}
+		}
+	}
+	
+	/**
+	 * Start sweeping the pool every {@link #HOUSEKEEPING_PERIOD_MS}, on a thread of its own or on
+	 * the scheduler of its registry.
+	 */
+	public void startHousekeeping() {
+		synchronized (pendingConnections) {
+			if (shutdown || this.housekeeper != null || !this.scheduledTasks.isEmpty()) {
+				return;
+			}
+			final Runnable sweep = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						housekeep();
+					}
+					catch (RuntimeException e) {
+						LOGGER.error("Housekeeping of pool {} failed", config.getPoolName(), e);
+					}
+				}
+			};
+			final Runnable save = new Runnable() {
+				@Override
+				public void run() {
+					saveWarmStartProfile();
+				}
+			};
+			final PoolRegistry registry = this.config.getPoolRegistry();
+			if (registry != null) {
+				this.scheduledTasks.add(registry.scheduleWithFixedDelay(sweep, HOUSEKEEPING_PERIOD_MS));
+				if (this.warmStart != null) {
+					this.scheduledTasks.add(registry.scheduleWithFixedDelay(save, WARM_START_SAVE_PERIOD_MS));
+				}
+				return;
+			}
+			this.housekeeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					return ConnectionPoolHelper.newThread(config, runnable, "housekeeper");
+				}
+			});
+			this.housekeeper.setRemoveOnCancelPolicy(true);
+			this.housekeeper.scheduleWithFixedDelay(sweep, HOUSEKEEPING_PERIOD_MS, HOUSEKEEPING_PERIOD_MS, TimeUnit.MILLISECONDS);
+			if (this.warmStart != null) {
+				this.housekeeper.scheduleWithFixedDelay(save, WARM_START_SAVE_PERIOD_MS, WARM_START_SAVE_PERIOD_MS, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Write the warm-start profile with the peak seen since the last sweep, if the pool keeps one.
+	 */
+	void saveWarmStartProfile() {
+		if (this.warmStart == null) {
+			return;
+		}
+		this.warmStart.rollUp(LocalTime.now().getHour());
+		try {
+			this.warmStart.store(new File(config.getWarmStartFile()));
+		} catch (IOException e) {
+			LOGGER.warn("Unable to write warm-start file {} of pool {}", config.getWarmStartFile(), config.getPoolName(), e);
+		}
+	}
+	
+	/**
+	 * Sweep the connection table once: report connections borrowed for longer than the leak
+	 * detection threshold, retire connections older than their maximum lifetime, and close idle
+	 * connections above the minimum idle that have not been used within the idle timeout.
+	 * Connections in use that have expired are evicted, and closed when they are released.
+	 */
+	void housekeep() {
+		this.housekeepingThread = Thread.currentThread();
+		try {
+			sweep();
+		}
+		finally {
+			this.housekeepingThread = null;
+		}
+	}
+	
+	private void sweep() {
+		final long now = System.nanoTime();
+		// One snapshot for the whole sweep, so a reload half way through does not mix settings
+		final ConnectionConfig.ReloadableSettings settings = config.getReloadableSettings();
+		final long leakThreshold = TimeUnit.MILLISECONDS.toNanos(settings.leakDetectionThreshold);
+		final long maxLifetime = TimeUnit.MILLISECONDS.toNanos(settings.maxLifetime);
+		final long idleTimeout = TimeUnit.MILLISECONDS.toNanos(settings.idleTimeout);
+		final long keepaliveTime = TimeUnit.MILLISECONDS.toNanos(config.getKeepaliveTime());
+		final int minIdle = settings.minIdleConnections < 0 ? settings.maxPoolSize : settings.minIdleConnections;
+		int retirable = idleConnections.size() - minIdle;
+		boolean removed = false;
+		
+		final ConnectionTable table = this.connectionTable;
+		final int size = table.size();
+		for (int slot = 0; slot < size; slot++) {
+			final int state = table.getSlotState(slot);
+			if (state == ConnectionItem.STATE_IN_USE) {
+				if (leakThreshold > 0 && now - table.getLastBorrowed(slot) > leakThreshold && table.reportLeak(slot)) {
+					LOGGER.warn("Connection {} of pool {} has been in use for {}ms, it may have leaked",
+							table.getItem(slot), config.getPoolName(), TimeUnit.NANOSECONDS.toMillis(now - table.getLastBorrowed(slot)));
+				}
+				if (maxLifetime > 0 && now - table.getCreated(slot) > maxLifetime) {
+					final ConnectionItem item = table.getItem(slot);
+					if (item != null) {
+						item.compareAndSetState(ConnectionItem.STATE_IN_USE, ConnectionItem.STATE_EVICTED);
+					}
+				}
+			}
+			else if (state == ConnectionItem.STATE_NOT_IN_USE) {
+				final String reason;
+				if (maxLifetime > 0 && now - table.getCreated(slot) > maxLifetime) {
+					reason = EVICT_REASON_MAX_LIFETIME;
+				}
+				else if (idleTimeout > 0 && retirable > 0 && now - table.getLastAccessed(slot) > idleTimeout) {
+					reason = EVICT_REASON_IDLE_TIMEOUT;
+				}
+				else {
+					if (keepaliveTime > 0 && now - Math.max(table.getLastAccessed(slot), table.getLastValidated(slot)) > keepaliveTime) {
+						keepAlive(table.getItem(slot));
+					}
+					continue;
+				}
+				final ConnectionItem item = table.getItem(slot);
+				// A borrower that polled it first will see the eviction and close it itself
+				if (item != null && item.compareAndSetState(ConnectionItem.STATE_NOT_IN_USE, ConnectionItem.STATE_EVICTED)
+						&& idleConnections.remove(item)) {
+					removeConnection(item, reason);
+					removed = true;
+					if (reason == EVICT_REASON_IDLE_TIMEOUT) {
+						retirable--;
+					}
+				}
+			}
+		}
+		if (removed) {
+			fillPool();
+		}
+		if (this.warmStart != null) {
+			this.warmStart.rollUp(LocalTime.now().getHour());
+		}
+	}
+	
+	/**
+	 * Validate an idle connection. It is reserved and taken out of the idle queue for the
+	 * validation, so borrowers do not keep polling it meanwhile, and put back when it passes. The
+	 * validation runs on the creation threads of the pool rather than holding up the sweep, which
+	 * may be running on a scheduler shared by every pool of a registry.
+	 *
+	 * @param item the idle connection
+	 */
+	void keepAlive(ConnectionItem item) {
+		if (!(item instanceof ConnectionItemImpl)
+				|| !item.compareAndSetState(ConnectionItem.STATE_NOT_IN_USE, ConnectionItem.STATE_RESERVED)) {
+			return; // Borrowed or evicted since the sweep read its state
+		}
+		final ConnectionItemImpl connection = (ConnectionItemImpl) item;
+		// A borrower that polled it first sees it reserved and drops it, so it is out of the queue either way
+		idleConnections.remove(connection);
+		try {
+			getAddConnectionExecutor().execute(new KeepAliveTask(connection));
+		} catch (RejectedExecutionException e) {
+			// Shutting down, the connection is closed with the others
+			handBack(connection);
+		}
+	}
+	
+	/**
+	 * Validates a connection reserved by {@link #keepAlive(ConnectionItem)}. A task dropped by the
+	 * shutdown hands its connection back, which closes it.
+	 */
+	private final class KeepAliveTask implements Runnable {
+		private final ConnectionItemImpl connection;
+		
+		KeepAliveTask(ConnectionItemImpl connection) {
+			this.connection = connection;
+		}
+		
+		@Override
+		public void run() {
+			if (!validateReserved(connection)) {
+				fillPool();
+			}
+		}
+	}
+	
+	/**
+	 * Put a connection reserved by {@link #keepAlive(ConnectionItem)} back in the idle queue, or
+	 * close it if the pool is shutting down or it was evicted meanwhile.
+	 *
+	 * @return false if the connection was removed, so the pool may need refilling
+	 */
+	private boolean handBack(ConnectionItemImpl connection) {
+		if (!connection.compareAndSetState(ConnectionItem.STATE_RESERVED, ConnectionItem.STATE_NOT_IN_USE)) {
+			removeConnection(connection, EVICT_REASON_EVICTED);
+			return false;
+		}
+		idleConnections.add(connection);
+		// Added after the shutdown drained the queue, so it is closed here
+		if (shutdown && idleConnections.remove(connection)) {
+			connection.evict();
+			removeConnection(connection, EVICT_REASON_SHUTDOWN);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Validate an idle connection reserved by {@link #keepAlive(ConnectionItem)} and hand it back
+	 * to borrowers, or remove it.
+	 *
+	 * @return false if the connection was evicted, so the pool may need refilling
+	 */
+	private boolean validateReserved(ConnectionItemImpl connection) {
+		boolean valid;
+		try {
+			valid = connection.isValid((int) TimeUnit.MILLISECONDS.toSeconds(config.getValidationTimeout()));
+		} catch (SQLException e) {
+			valid = false;
+		}
+		if (valid) {
+			connection.validated(System.nanoTime());
+			return handBack(connection);
+		}
+		LOGGER.debug("Idle connection {} of pool {} failed its keepalive validation", connection, config.getPoolName());
+		connection.evict();
+		removeConnection(connection, EVICT_REASON_INVALID);
+		return false;
+	}
+	
+	/**
+	 * Stops creating connections and stops the threads of the pool manager.
+	 */
+	public void shutdown() {
+		List<Runnable> dropped = Collections.emptyList();
+		synchronized (pendingConnections) {
+			shutdown = true;
+			pendingConnections.notifyAll();
+			if (this.addConnectionExecutor instanceof ThreadPoolExecutor) {
+				dropped = ((ThreadPoolExecutor) this.addConnectionExecutor).shutdownNow();
+			}
+			else if (this.addConnectionExecutor instanceof PoolRegistry.CreationLane) {
+				dropped = ((PoolRegistry.CreationLane) this.addConnectionExecutor).cancel();
+			}
+			if (this.housekeeper != null) {
+				this.housekeeper.shutdownNow();
+			}
+			for (ScheduledFuture<?> task : this.scheduledTasks) {
+				task.cancel(false);
+			}
+			if (this.closeConnectionExecutor != null) {
+				this.closeConnectionExecutor.shutdown();
+			}
+		}
+		// Connections reserved for a validation that will never run are out of the idle queue, close them here
+		for (Runnable task : dropped) {
+			if (task instanceof KeepAliveTask) {
+				handBack(((KeepAliveTask) task).connection);
+			}
+		}
+		saveWarmStartProfile();
+	}
+	
+	/**
+	 * Complete a flight recorder connection creation event.
+	 * @param event the started event, or null when the event is not being recorded
+	 * @param id the id of the new connection, or -1 if the attempt failed
+	 * @param success whether the connection was created
+	 */
+	private void commitCreateEvent(ConnectionCreateEvent event, long id, boolean success) {
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.poolName = this.config.getPoolName();
+				event.connectionId = id;
+				event.success = success;
+				event.commit();
+			}
+		}
+	}
+	
 	/**
 	 * Closes the connection and removes the connection from the connection pool
 	 * @param connection
 	 */
 	public void removeConnection(ConnectionItem connection) {
-		ConnectionPoolHelper.closeConnection(connection.getConnection());
+		removeConnection(connection, EVICT_REASON_REMOVED);
+	}
+	
+	/**
+	 * Closes the connection and removes the connection from the connection pool
+	 * @param connection
+	 * @param reason why the connection is being removed, reported to the flight recorder
+	 */
+	public void removeConnection(ConnectionItem connection, String reason) {
+		ConnectionEvictEvent.emit(this.config.getPoolName(), connection.getId(), reason);
+		// Only the first removal of a connection gives its permit back
+		final boolean removed = !(connection instanceof ConnectionItemImpl) || ((ConnectionItemImpl) connection).freeSlot();
+		if (shutdown) {
+			// Closing the pool already happens in parallel, off the borrowers' threads
+			ConnectionPoolHelper.closeConnection(connection.getConnection());
+			if (removed && this.connectionLimiter != null) {
+				this.connectionLimiter.release();
+			}
+		}
+		else {
+			closeInBackground(connection.getConnection(), removed);
+		}
 		if (idleConnections.contains(connection)) {
 			idleConnections.remove(connection);
 		}
@@ -0,0 +1,157 @@
+package com.nbaradwaj.connectionpool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the life of a connection pool. Every counter is updated with a single
+ * atomic operation, so reading them never contends with borrowers.
+ */
+public class PoolMetrics {
+
+	/**
+	 * Configuration reloads applied to the running pool, and reloads rejected as invalid
+	 */
+	private final AtomicLong configurationReloads = new AtomicLong();
+	private final AtomicLong configurationReloadFailures = new AtomicLong();
+
+	/**
+	 * Bulk evictions of every connection in the pool
+	 */
+	private final AtomicLong softEvictions = new AtomicLong();
+
+	/**
+	 * Connection creations delayed by the creation rate limit, and the total delay
+	 */
+	private final AtomicLong throttledConnections = new AtomicLong();
+	private final AtomicLong throttleDelayNanos = new AtomicLong();
+
+	/**
+	 * Connection creations refused by a limiter shared with other pools or processes
+	 */
+	private final AtomicLong limitedConnections = new AtomicLong();
+
+	/**
+	 * Connection-fatal exceptions thrown through the connections of the pool
+	 */
+	private final AtomicLong fatalErrors = new AtomicLong();
+
+	/**
+	 * Removed connections waiting to be closed in the background, and closes that found the
+	 * closer's queue full
+	 */
+	private final AtomicInteger pendingCloses = new AtomicInteger();
+	private final AtomicLong closeOverflows = new AtomicLong();
+
+	/**
+	 * How long borrowers waited for a connection, borrowers that gave up waiting, and how long
+	 * connections returned to the pool were held
+	 */
+	private final LatencyHistogram acquireTimes = new LatencyHistogram();
+	private final AtomicLong acquireTimeouts = new AtomicLong();
+	private final LatencyHistogram holdTimes = new LatencyHistogram();
+
+	public long getConfigurationReloads() {
+		return configurationReloads.get();
+	}
+
+	public long getConfigurationReloadFailures() {
+		return configurationReloadFailures.get();
+	}
+
+	public long getSoftEvictions() {
+		return softEvictions.get();
+	}
+
+	public long getThrottledConnections() {
+		return throttledConnections.get();
+	}
+
+	/**
+	 * @return the total time connection creations waited for the creation rate limit, in milliseconds
+	 */
+	public long getThrottleDelayMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttleDelayNanos.get());
+	}
+
+	public long getLimitedConnections() {
+		return limitedConnections.get();
+	}
+
+	public long getFatalErrors() {
+		return fatalErrors.get();
+	}
+
+	/**
+	 * @return the removed connections queued or being closed right now
+	 */
+	public int getPendingCloses() {
+		return pendingCloses.get();
+	}
+
+	public long getCloseOverflows() {
+		return closeOverflows.get();
+	}
+
+	public LatencyHistogram.Snapshot getAcquireTimes() {
+		return acquireTimes.snapshot();
+	}
+
+	public long getAcquireTimeouts() {
+		return acquireTimeouts.get();
+	}
+
+	public LatencyHistogram.Snapshot getHoldTimes() {
+		return holdTimes.snapshot();
+	}
+
+	void configurationReloaded() {
+		configurationReloads.incrementAndGet();
+	}
+
+	void configurationReloadFailed() {
+		configurationReloadFailures.incrementAndGet();
+	}
+
+	void softEvicted() {
+		softEvictions.incrementAndGet();
+	}
+
+	void connectionThrottled(long delayNanos) {
+		throttledConnections.incrementAndGet();
+		throttleDelayNanos.addAndGet(delayNanos);
+	}
+
+	void closeQueued() {
+		pendingCloses.incrementAndGet();
+	}
+
+	void closeCompleted() {
+		pendingCloses.decrementAndGet();
+	}
+
+	void closeOverflowed() {
+		closeOverflows.incrementAndGet();
+	}
+
+	void fatalError() {
+		fatalErrors.incrementAndGet();
+	}
+
+	void connectionLimited() {
+		limitedConnections.incrementAndGet();
+	}
+
+	void connectionAcquired(long waitNanos) {
+		acquireTimes.record(waitNanos);
+	}
+
+	void acquireTimedOut() {
+		acquireTimeouts.incrementAndGet();
+	}
+
+	void connectionReturned(long heldNanos) {
+		holdTimes.record(heldNanos);
+	}
+}
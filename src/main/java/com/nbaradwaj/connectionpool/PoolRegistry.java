@@ -0,0 +1,250 @@
+package com.nbaradwaj.connectionpool;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Named pools sharing the threads that maintain them. A process running many pools, one per
+ * shard for example, would otherwise keep a housekeeper and a set of connection creation
+ * threads for every pool. Pools configured with a registry instead register under their pool
+ * name and run their housekeeping on one shared scheduler and create their connections on one
+ * shared, bounded executor, so what a pool costs on its own is a few objects.
+ * <p>
+ * Housekeeping ticks are spread over the period, so pools started together do not all sweep at
+ * the same moment. Connections are created round-robin between pools: a pool gets a thread back
+ * only after every other pool waiting to create connections has had one, so a pool filling up
+ * cannot hold back the others.
+ */
+public class PoolRegistry {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
+
+	static final int DEFAULT_HOUSEKEEPING_THREADS = 2;
+	static final int DEFAULT_CREATION_THREADS = 8;
+
+	/**
+	 * The fractional part of the golden ratio: adding it over and over spreads the ticks of any
+	 * number of pools evenly over the period.
+	 */
+	private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+
+	private static final PoolRegistry DEFAULT = new PoolRegistry(DEFAULT_HOUSEKEEPING_THREADS, DEFAULT_CREATION_THREADS);
+
+	private final ConcurrentMap<String, ConnectionPool> pools = new ConcurrentHashMap<String, ConnectionPool>();
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final ThreadPoolExecutor creator;
+	private final AtomicLong scheduled = new AtomicLong();
+
+	/**
+	 * @return the registry shared by the whole process
+	 */
+	public static PoolRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Create a registry of its own, for pools that should not share threads with the rest of the process.
+	 *
+	 * @param housekeepingThreads the threads running the housekeeping of every pool
+	 * @param creationThreads the most connections created at the same time across every pool
+	 */
+	public PoolRegistry(int housekeepingThreads, int creationThreads) {
+		if (housekeepingThreads < 1 || creationThreads < 1) {
+			throw new IllegalArgumentException("A pool registry needs at least one thread of each kind");
+		}
+		this.scheduler = new ScheduledThreadPoolExecutor(housekeepingThreads, newThreadFactory("housekeeper"));
+		this.scheduler.setRemoveOnCancelPolicy(true);
+		this.creator = new ThreadPoolExecutor(creationThreads, creationThreads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), newThreadFactory("connection adder"));
+		this.creator.allowCoreThreadTimeOut(true);
+	}
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		final AtomicInteger threads = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "Connection pool registry " + name + " " + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Register a pool under its name.
+	 *
+	 * @throws IllegalStateException if a pool is already registered under the name
+	 */
+	public void register(String poolName, ConnectionPool pool) {
+		if (pools.putIfAbsent(poolName, pool) != null) {
+			throw new IllegalStateException("A pool named " + poolName + " is already registered");
+		}
+		LOGGER.debug("Registered pool {}, {} pools registered", poolName, pools.size());
+	}
+
+	/**
+	 * Remove a pool, if it is the one registered under the name.
+	 *
+	 * @return true if the pool was registered
+	 */
+	public boolean unregister(String poolName, ConnectionPool pool) {
+		return pools.remove(poolName, pool);
+	}
+
+	/**
+	 * @return the pool registered under the name, or null
+	 */
+	public ConnectionPool getPool(String poolName) {
+		return pools.get(poolName);
+	}
+
+	/**
+	 * @return the names of the registered pools, sorted
+	 */
+	public Set<String> getPoolNames() {
+		return Collections.unmodifiableSet(new TreeSet<String>(pools.keySet()));
+	}
+
+	/**
+	 * Run a maintenance task of a pool on the shared scheduler every period, starting at an
+	 * offset within the first period that differs from pool to pool.
+	 *
+	 * @return the scheduled task, to be cancelled when the pool shuts down
+	 */
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long periodMs) {
+		return scheduler.scheduleWithFixedDelay(task, initialDelay(periodMs), periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the delay of the next scheduled task, between 1 and the period
+	 */
+	long initialDelay(long periodMs) {
+		final double offset = (scheduled.getAndIncrement() * GOLDEN_RATIO_FRACTION) % 1.0;
+		return Math.max(1, periodMs - (long) (offset * periodMs));
+	}
+
+	/**
+	 * Create the executor a pool creates its connections on.
+	 *
+	 * @param parallelism the most connections of the pool created at the same time
+	 */
+	public CreationLane newCreationLane(int parallelism) {
+		return new CreationLane(Math.max(1, parallelism));
+	}
+
+	/**
+	 * Stop the threads of a registry created by the application. Pools still using it can no
+	 * longer create connections or run their housekeeping.
+	 */
+	public void shutdown() {
+		if (this == DEFAULT) {
+			throw new IllegalStateException("The default pool registry is shared by the whole process");
+		}
+		scheduler.shutdownNow();
+		creator.shutdownNow();
+	}
+
+	/**
+	 * The connections a pool is waiting to create. The lane holds its own tasks and hands the
+	 * shared executor one turn at a time, at most its parallelism at once. After every task the
+	 * turn goes back to the end of the shared queue, behind the turns of the other pools.
+	 */
+	public final class CreationLane implements Executor {
+
+		private final int parallelism;
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+		private int turns;
+		private boolean cancelled;
+
+		private final Runnable turn = new Runnable() {
+			@Override
+			public void run() {
+				final Runnable task;
+				synchronized (tasks) {
+					task = tasks.poll();
+					if (task == null) {
+						turns--;
+						return;
+					}
+				}
+				try {
+					task.run();
+				}
+				finally {
+					synchronized (tasks) {
+						if (tasks.isEmpty() || cancelled) {
+							turns--;
+						}
+						else {
+							creator.execute(this);
+						}
+					}
+				}
+			}
+		};
+
+		private CreationLane(int parallelism) {
+			this.parallelism = parallelism;
+		}
+
+		/**
+		 * @throws RejectedExecutionException once the lane has been cancelled
+		 */
+		@Override
+		public void execute(Runnable task) {
+			synchronized (tasks) {
+				if (cancelled) {
+					throw new RejectedExecutionException("Creation lane cancelled");
+				}
+				tasks.add(task);
+				if (turns < parallelism) {
+					turns++;
+					creator.execute(turn);
+				}
+			}
+		}
+
+		/**
+		 * Drop the tasks that have not started and reject any new ones. Tasks running carry on.
+		 *
+		 * @return the tasks dropped, so the caller can release what they hold
+		 */
+		public List<Runnable> cancel() {
+			synchronized (tasks) {
+				cancelled = true;
+				final List<Runnable> dropped = new ArrayList<Runnable>(tasks);
+				tasks.clear();
+				return dropped;
+			}
+		}
+
+		/**
+		 * @return the tasks waiting for a turn
+		 */
+		public int getQueued() {
+			synchronized (tasks) {
+				return tasks.size();
+			}
+		}
+	}
+}
@@ -0,0 +1,438 @@
+package com.nbaradwaj.connectionpool;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DataSource} handing out pooled connections, for frameworks that expect one.
+ * <p>
+ * {@link #getConnection()} borrows from the default pool, configured by the given configuration.
+ * {@link #getConnection(String, String)} borrows from a pool of its own for every set of
+ * credentials, created with the same settings on first use. A pool of other credentials that
+ * has had no connection in use for the idle timeout is shut down, and created again when
+ * the credentials come back. Every pool of the data source can be held to one cap on the
+ * connections open across all of them.
+ */
+public class PooledDataSource implements DataSource {
+
+	private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
+
+	private final ConnectionConfig config;
+	private final String poolName;
+	private final ConnectionLimiter limiter;
+	private final ConnectionPoolImpl defaultPool;
+	private final Map<Credentials, SubPool> subPools = new ConcurrentHashMap<Credentials, SubPool>();
+	private final AtomicLong subPoolIds = new AtomicLong();
+	private final ScheduledFuture<?> evictor;
+	private volatile boolean shutdown;
+
+	private PrintWriter logWriter;
+	private int loginTimeout;
+
+	/**
+	 * Create a data source without a cap on the connections across its pools.
+	 *
+	 * @param config the configuration of the default pool, and the template of the others
+	 */
+	public PooledDataSource(ConnectionConfig config) {
+		this(config, 0);
+	}
+
+	/**
+	 * @param config the configuration of the default pool, and the template of the others
+	 * @param maxTotalConnections the most connections open across every pool, 0 for no cap
+	 */
+	public PooledDataSource(ConnectionConfig config, int maxTotalConnections) {
+		this.config = config;
+		this.poolName = config.getPoolName() != null ? config.getPoolName() : "PooledDataSource";
+		this.limiter = maxTotalConnections > 0 ? new CappedConnectionLimiter(maxTotalConnections, sharedLimiter(config)) : null;
+		this.defaultPool = new ConnectionPoolImpl(poolConfig(poolName, config.getUsername(), config.getPassword(), true));
+
+		final long idleTimeout = config.getIdleTimeout();
+		if (idleTimeout > 0) {
+			final PoolRegistry registry = config.getPoolRegistry() != null ? config.getPoolRegistry() : PoolRegistry.getDefault();
+			this.evictor = registry.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					evictIdleSubPools(System.nanoTime(), idleTimeout);
+				}
+			}, Math.min(idleTimeout, PoolManager.HOUSEKEEPING_PERIOD_MS));
+		}
+		else {
+			this.evictor = null;
+		}
+	}
+
+	/**
+	 * The limiter the configuration would have given a pool on its own, so the cap adds to it
+	 * rather than replacing it.
+	 */
+	private static ConnectionLimiter sharedLimiter(ConnectionConfig config) {
+		if (config.getConnectionLimiter() != null) {
+			return config.getConnectionLimiter();
+		}
+		if (config.getHostConnectionLimit() > 0 && config.getHostConnectionLimitFile() != null) {
+			try {
+				return HostConnectionLimiter.forFile(config.getHostConnectionLimitFile(), config.getHostConnectionLimit());
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Unable to map host connection limit file " + config.getHostConnectionLimitFile(), e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A copy of the configuration for one of the pools. The pools neither watch the configuration
+	 * file nor keep the warm-start profile of the default pool.
+	 */
+	private ConnectionConfig poolConfig(String poolName, String username, String password, boolean isDefault) {
+		final ConnectionConfig poolConfig = new ConnectionConfig();
+		config.copyStateTo(poolConfig);
+		poolConfig.setPoolName(poolName);
+		poolConfig.setUsername(username);
+		poolConfig.setPassword(password);
+		if (limiter != null) {
+			poolConfig.setConnectionLimiter(limiter);
+		}
+		if (!isDefault) {
+			poolConfig.setWatchConfigurationFile(false);
+			poolConfig.setWarmStartFile(null);
+		}
+		return poolConfig;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return defaultPool.getConnection();
+	}
+
+	@Override
+	public Connection getConnection(final String username, final String password) throws SQLException {
+		if (Objects.equals(username, config.getUsername()) && Objects.equals(password, config.getPassword())) {
+			return getConnection();
+		}
+		final Credentials credentials = new Credentials(username, password);
+		while (true) {
+			if (shutdown) {
+				throw new SQLException("Data source of pool " + poolName + " has been shut down");
+			}
+			SubPool subPool = subPools.get(credentials);
+			if (subPool == null) {
+				// Only a placeholder goes into the map: the pool is created outside it, by the
+				// borrower whose placeholder won, while borrowers of the same credentials wait for it
+				final SubPool placeholder = new SubPool(poolName + "-" + username + "-" + subPoolIds.incrementAndGet());
+				subPool = subPools.putIfAbsent(credentials, placeholder);
+				if (subPool == null) {
+					subPool = placeholder;
+					start(credentials, placeholder);
+				}
+			}
+			if (subPool.enter()) {
+				try {
+					return subPool.awaitPool().getConnection();
+				}
+				finally {
+					subPool.exit();
+				}
+			}
+			Thread.onSpinWait(); // Being evicted, take the pool that replaces it
+		}
+	}
+
+	/**
+	 * Create the pool of a placeholder. A pool that fails to start takes its placeholder out of
+	 * the map, so the next borrower of the credentials tries again.
+	 */
+	private void start(Credentials credentials, final SubPool subPool) throws SQLException {
+		LOGGER.info("Creating pool {} for user {}", subPool.name, credentials.username);
+		final ConnectionPoolImpl pool;
+		try {
+			pool = new ConnectionPoolImpl(poolConfig(subPool.name, credentials.username, credentials.password, false));
+		}
+		catch (RuntimeException e) {
+			subPools.remove(credentials, subPool);
+			subPool.pool.completeExceptionally(e);
+			throw new SQLException("Unable to create pool " + subPool.name, e);
+		}
+		// A connection coming back counts as use, so the idle timeout runs from the last release
+		pool.addAvailabilityListener(new Runnable() {
+			@Override
+			public void run() {
+				subPool.lastUsed = System.nanoTime();
+			}
+		});
+		subPool.pool.complete(pool);
+		if (shutdown) {
+			// The data source was shut down while the pool started, and may have missed it
+			shutdownQuietly(pool);
+		}
+	}
+
+	/**
+	 * Shut down the pools of other credentials that have had no connection in use for the idle timeout.
+	 */
+	void evictIdleSubPools(long now, long idleTimeoutMs) {
+		for (Map.Entry<Credentials, SubPool> entry : subPools.entrySet()) {
+			final SubPool subPool = entry.getValue();
+			if (!subPool.isStarted() || now - subPool.lastUsed < TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs) || !subPool.closeIfIdle()) {
+				continue;
+			}
+			subPools.remove(entry.getKey(), subPool);
+			LOGGER.info("Shutting down idle pool {} of user {}", subPool.name, entry.getKey().username);
+			try {
+				subPool.pool.join().shutdown();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the pools of other credentials open right now
+	 */
+	public int getSubPoolCount() {
+		return subPools.size();
+	}
+
+	/**
+	 * @return the pool of {@link #getConnection()}
+	 */
+	public ConnectionPoolImpl getDefaultPool() {
+		return defaultPool;
+	}
+
+	/**
+	 * Shut down every pool of the data source.
+	 *
+	 * @throws InterruptedException if interrupted while the pools drain
+	 */
+	public void shutdown() throws InterruptedException {
+		shutdown = true;
+		if (evictor != null) {
+			evictor.cancel(false);
+		}
+		for (SubPool subPool : subPools.values()) {
+			// One still starting is shut down by the borrower starting it
+			if (subPool.isStarted()) {
+				subPool.pool.join().shutdown();
+			}
+		}
+		subPools.clear();
+		defaultPool.shutdown();
+	}
+
+	private static void shutdownQuietly(ConnectionPoolImpl pool) {
+		try {
+			pool.shutdown();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public PrintWriter getLogWriter() {
+		return logWriter;
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) {
+		this.logWriter = out;
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) {
+		this.loginTimeout = seconds;
+	}
+
+	@Override
+	public int getLoginTimeout() {
+		return loginTimeout;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		throw new SQLException("Not a wrapper for " + iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) {
+		return iface.isInstance(this);
+	}
+
+	/**
+	 * A user name and password, compared by value
+	 */
+	private static final class Credentials {
+		final String username;
+		final String password;
+
+		Credentials(String username, String password) {
+			this.username = username;
+			this.password = password;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Credentials)) {
+				return false;
+			}
+			final Credentials credentials = (Credentials) other;
+			return Objects.equals(username, credentials.username) && Objects.equals(password, credentials.password);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(username, password);
+		}
+	}
+
+	/**
+	 * The pool of one set of credentials, completed once it has started. Borrowers count
+	 * themselves in while they borrow, so the evictor only shuts the pool down when nobody is
+	 * borrowing and no connection is in use.
+	 */
+	private static final class SubPool {
+		final String name;
+		final CompletableFuture<ConnectionPoolImpl> pool = new CompletableFuture<ConnectionPoolImpl>();
+		final AtomicInteger borrowers = new AtomicInteger();
+		
+		/**
+		 * The System.nanoTime() a borrow last started or a connection last became idle
+		 */
+		volatile long lastUsed = System.nanoTime();
+
+		SubPool(String name) {
+			this.name = name;
+		}
+
+		boolean isStarted() {
+			return pool.isDone() && !pool.isCompletedExceptionally();
+		}
+
+		/**
+		 * Wait for the pool to start.
+		 * @throws SQLException if it failed to start, or the wait was interrupted
+		 */
+		ConnectionPoolImpl awaitPool() throws SQLException {
+			try {
+				return pool.get();
+			}
+			catch (ExecutionException e) {
+				throw new SQLException("Unable to create pool " + name, e.getCause());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for pool " + name + " to start", e);
+			}
+		}
+
+		/**
+		 * @return false if the pool is being evicted
+		 */
+		boolean enter() {
+			int count;
+			do {
+				count = borrowers.get();
+				if (count < 0) {
+					return false;
+				}
+			}
+			while (!borrowers.compareAndSet(count, count + 1));
+			lastUsed = System.nanoTime();
+			return true;
+		}
+
+		void exit() {
+			borrowers.decrementAndGet();
+		}
+
+		/**
+		 * Close the pool to borrowers if nobody is borrowing from it and no connection is in use.
+		 * @return true if it is closed, and must be shut down
+		 */
+		boolean closeIfIdle() {
+			if (!borrowers.compareAndSet(0, -1)) {
+				return false;
+			}
+			final ConnectionPoolImpl pool = this.pool.join();
+			if (pool.totalConnections() != pool.idleConnectionsCount()) {
+				borrowers.set(0);
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * One cap on the connections open across the pools of the data source, on top of the
+	 * limiter the pools would have had on their own.
+	 */
+	static final class CappedConnectionLimiter implements ConnectionLimiter {
+		private final int maxConnections;
+		private final ConnectionLimiter delegate;
+		private final AtomicInteger connections = new AtomicInteger();
+
+		CappedConnectionLimiter(int maxConnections, ConnectionLimiter delegate) {
+			this.maxConnections = maxConnections;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public boolean tryAcquire() {
+			int count;
+			do {
+				count = connections.get();
+				if (count >= maxConnections) {
+					return false;
+				}
+			}
+			while (!connections.compareAndSet(count, count + 1));
+			if (delegate != null && !delegate.tryAcquire()) {
+				connections.decrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public void release() {
+			if (delegate != null) {
+				delegate.release();
+			}
+			connections.decrementAndGet();
+		}
+
+		int getConnections() {
+			return connections.get();
+		}
+	}
+}
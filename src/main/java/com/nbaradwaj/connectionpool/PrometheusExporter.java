@@ -0,0 +1,231 @@
+package com.nbaradwaj.connectionpool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the statistics of every pool in a {@link PoolRegistry} at {@code /metrics}, in the
+ * Prometheus text exposition format, on the HTTP server built into the JDK. Every sample is
+ * labelled with the name of its pool.
+ * <p>
+ * A scrape reads the counters and histograms the pools keep anyway, each with a plain atomic
+ * read, and the sizes of their queues, so it never takes a lock a borrower could be waiting for.
+ * Requests are served one at a time on the server's own thread.
+ */
+public class PrometheusExporter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	public static final String PATH = "/metrics";
+
+	/**
+	 * The le labels of the histogram buckets, in seconds
+	 */
+	private static final String[] BUCKET_LABELS;
+
+	static {
+		final long[] bounds = LatencyHistogram.getBounds();
+		BUCKET_LABELS = new String[bounds.length + 1];
+		for (int i = 0; i < bounds.length; i++) {
+			BUCKET_LABELS[i] = BigDecimal.valueOf(bounds[i]).movePointLeft(9).stripTrailingZeros().toPlainString();
+		}
+		BUCKET_LABELS[bounds.length] = "+Inf";
+	}
+
+	private final PoolRegistry registry;
+	private final HttpServer server;
+
+	/**
+	 * Create an exporter listening on the given address. It serves nothing until started.
+	 *
+	 * @param registry the registry of the pools to export
+	 * @param address the address to listen on, port 0 for any free port
+	 * @throws IOException if the server cannot listen on the address
+	 */
+	public PrometheusExporter(PoolRegistry registry, InetSocketAddress address) throws IOException {
+		this.registry = registry;
+		this.server = HttpServer.create(address, 0);
+		this.server.createContext(PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+		LOGGER.info("Exporting connection pool metrics at http://{}:{}{}", getAddress().getHostString(), getAddress().getPort(), PATH);
+	}
+
+	/**
+	 * Stop serving, waiting up to a second for scrapes in progress.
+	 */
+	public void stop() {
+		server.stop(1);
+	}
+
+	/**
+	 * @return the address the exporter listens on, with the port it was given
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		try {
+			final String method = exchange.getRequestMethod();
+			if (!"GET".equals(method) && !"HEAD".equals(method)) {
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			final byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if ("HEAD".equals(method)) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try (final OutputStream stream = exchange.getResponseBody()) {
+				stream.write(body);
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * The statistics of one pool, read once per scrape
+	 */
+	private static final class PoolSample {
+		final String label;
+		final int idle;
+		final int total;
+		final int maximum;
+		final PoolMetrics metrics;
+		final LatencyHistogram.Snapshot acquireTimes;
+		final LatencyHistogram.Snapshot holdTimes;
+
+		PoolSample(String poolName, ConnectionPoolImpl pool) {
+			this.label = "{poolName=\"" + escape(poolName) + "\"";
+			this.idle = pool.idleConnectionsCount();
+			this.total = pool.totalConnections();
+			this.maximum = pool.maximumPoolSize();
+			this.metrics = pool.getMetrics();
+			this.acquireTimes = metrics.getAcquireTimes();
+			this.holdTimes = metrics.getHoldTimes();
+		}
+	}
+
+	/**
+	 * Render the statistics of the registered pools.
+	 *
+	 * @return the exposition text
+	 */
+	public String scrape() {
+		final List<PoolSample> samples = new ArrayList<PoolSample>();
+		for (String poolName : registry.getPoolNames()) {
+			final ConnectionPool pool = registry.getPool(poolName);
+			if (pool instanceof ConnectionPoolImpl) {
+				samples.add(new PoolSample(poolName, (ConnectionPoolImpl) pool));
+			}
+		}
+
+		final StringBuilder out = new StringBuilder(4096);
+		family(out, "connectionpool_connections_idle", "gauge", "Idle connections");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_connections_idle", sample.label, sample.idle);
+		}
+		family(out, "connectionpool_connections_active", "gauge", "Connections in use");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_connections_active", sample.label, Math.max(0, sample.total - sample.idle));
+		}
+		family(out, "connectionpool_connections_max", "gauge", "Maximum size of the pool");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_connections_max", sample.label, sample.maximum);
+		}
+		family(out, "connectionpool_pending_closes", "gauge", "Removed connections waiting to be closed");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_pending_closes", sample.label, sample.metrics.getPendingCloses());
+		}
+
+		family(out, "connectionpool_acquire_timeouts_total", "counter", "Borrowers that timed out waiting for a connection");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_acquire_timeouts_total", sample.label, sample.metrics.getAcquireTimeouts());
+		}
+		family(out, "connectionpool_fatal_errors_total", "counter", "Connection-fatal exceptions thrown through pooled connections");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_fatal_errors_total", sample.label, sample.metrics.getFatalErrors());
+		}
+		family(out, "connectionpool_soft_evictions_total", "counter", "Evictions of every connection in the pool");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_soft_evictions_total", sample.label, sample.metrics.getSoftEvictions());
+		}
+		family(out, "connectionpool_throttled_connections_total", "counter", "Connection creations delayed by the creation rate limit");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_throttled_connections_total", sample.label, sample.metrics.getThrottledConnections());
+		}
+		family(out, "connectionpool_limited_connections_total", "counter", "Connection creations refused by a shared connection limit");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_limited_connections_total", sample.label, sample.metrics.getLimitedConnections());
+		}
+		family(out, "connectionpool_close_overflows_total", "counter", "Connection closes that found the closer queue full");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_close_overflows_total", sample.label, sample.metrics.getCloseOverflows());
+		}
+		family(out, "connectionpool_configuration_reloads_total", "counter", "Configuration reloads applied");
+		for (PoolSample sample : samples) {
+			sample(out, "connectionpool_configuration_reloads_total", sample.label, sample.metrics.getConfigurationReloads());
+		}
+
+		family(out, "connectionpool_acquire_seconds", "histogram", "Time borrowers waited for a connection");
+		for (PoolSample sample : samples) {
+			histogram(out, "connectionpool_acquire_seconds", sample.label, sample.acquireTimes);
+		}
+		family(out, "connectionpool_hold_seconds", "histogram", "Time connections were in use before being returned");
+		for (PoolSample sample : samples) {
+			histogram(out, "connectionpool_hold_seconds", sample.label, sample.holdTimes);
+		}
+		return out.toString();
+	}
+
+	private static void family(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String label, long value) {
+		out.append(name).append(label).append("} ").append(value).append('\n');
+	}
+
+	private static void histogram(StringBuilder out, String name, String label, LatencyHistogram.Snapshot snapshot) {
+		for (int i = 0; i < snapshot.getBuckets(); i++) {
+			out.append(name).append("_bucket").append(label).append(",le=\"").append(BUCKET_LABELS[i]).append("\"} ")
+					.append(snapshot.getCumulativeCount(i)).append('\n');
+		}
+		out.append(name).append("_sum").append(label).append("} ").append(snapshot.getSumNanos() / 1e9).append('\n');
+		out.append(name).append("_count").append(label).append("} ").append(snapshot.getCount()).append('\n');
+	}
+
+	/**
+	 * Escape a label value as the exposition format requires.
+	 */
+	static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
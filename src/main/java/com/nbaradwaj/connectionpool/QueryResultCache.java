@@ -0,0 +1,512 @@
+package com.nbaradwaj.connectionpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-through cache of the results of allow-listed queries, for lookups that run the same
+ * statement with the same parameters over and over against tables that rarely change.
+ * <p>
+ * Prepared statements of allow-listed SQL remember their parameters and only prepare the real
+ * statement when a query misses the cache, so a hit costs no round trip, and on a
+ * {@link LazyConnection} does not even borrow a pooled connection. The rows of a miss are read
+ * into a {@link CachedRowSet} that is kept until its time to live runs out, it is pushed out by
+ * newer results, or a table it was read from is {@link #invalidate(String) invalidated}. A miss
+ * that read its rows before an invalidation of one of its tables does not keep them. Every hit
+ * gets a copy of the cached rows, since closing a row set clears any rows it shares.
+ * <p>
+ * A cache can be shared by several pools. Results are kept apart by the pool and user they
+ * were read as, and the catalog and schema set through the connection, so they never reach
+ * another user or schema. A catalog or schema switched by SQL rather than through the
+ * connection is not seen, and such statements should not be allow-listed.
+ * <p>
+ * Statements with parameters that cannot be compared by value, such as streams, blobs or
+ * arrays, always go to the database.
+ */
+public class QueryResultCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
+
+	/**
+	 * Creates the statement the cache stands in for, when a query misses the cache.
+	 */
+	public interface StatementFactory {
+		PreparedStatement prepare() throws SQLException;
+	}
+
+	/**
+	 * An allow-listed statement
+	 */
+	private static final class Rule {
+		final long ttlNanos;
+		final Set<String> tables;
+
+		Rule(long ttlNanos, Set<String> tables) {
+			this.ttlNanos = ttlNanos;
+			this.tables = tables;
+		}
+	}
+
+	/**
+	 * An allow-listed statement with its parameters and settings, and the pool, user, catalog and
+	 * schema it ran as, compared by value
+	 */
+	private static final class Key {
+		final Object scope;
+		final String sql;
+		final List<Object> arguments;
+		final int hash;
+
+		Key(Object scope, String sql, List<Object> arguments) {
+			this.scope = scope;
+			this.sql = sql;
+			this.arguments = arguments;
+			this.hash = 31 * (31 * scope.hashCode() + sql.hashCode()) + arguments.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			final Key key = (Key) other;
+			return hash == key.hash && sql.equals(key.sql) && arguments.equals(key.arguments) && scope.equals(key.scope);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static final class Entry {
+		final CachedRowSet rows;
+		final Rule rule;
+		final long expires;
+
+		Entry(CachedRowSet rows, Rule rule, long expires) {
+			this.rows = rows;
+			this.rule = rule;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxEntries;
+	private final int maxRowsPerEntry;
+	private final Map<String, Rule> rules = new ConcurrentHashMap<String, Rule>();
+	private final RowSetFactory rowSetFactory;
+
+	/**
+	 * The cached results, least recently used first, guarded by itself
+	 */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	
+	/**
+	 * How many times each table, and the whole cache, was invalidated, guarded by the entries
+	 */
+	private final Map<String, Long> generations = new HashMap<String, Long>();
+	private long generation;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries the most results kept, the least recently used being dropped first
+	 * @param maxRowsPerEntry the most rows of a result worth keeping
+	 */
+	public QueryResultCache(int maxEntries, int maxRowsPerEntry) {
+		if (maxEntries < 1 || maxRowsPerEntry < 1) {
+			throw new IllegalArgumentException("A result cache must hold at least one result of one row");
+		}
+		this.maxEntries = maxEntries;
+		this.maxRowsPerEntry = maxRowsPerEntry;
+		try {
+			this.rowSetFactory = RowSetProvider.newFactory();
+		}
+		catch (SQLException e) {
+			throw new IllegalStateException("No row set implementation available", e);
+		}
+	}
+
+	/**
+	 * Allow the results of a statement to be cached.
+	 *
+	 * @param sql the SQL of the statement, exactly as it is prepared
+	 * @param ttlMs how long a result is served from the cache
+	 * @param tables the tables the statement reads, for {@link #invalidate(String)}
+	 */
+	public void cache(String sql, long ttlMs, String... tables) {
+		final Set<String> tags = new HashSet<String>();
+		for (String table : tables) {
+			tags.add(table.toLowerCase(Locale.ROOT));
+		}
+		rules.put(sql, new Rule(TimeUnit.MILLISECONDS.toNanos(ttlMs), Collections.unmodifiableSet(tags)));
+	}
+
+	/**
+	 * @return true if the results of the statement may be cached
+	 */
+	public boolean isCacheable(String sql) {
+		return rules.containsKey(sql);
+	}
+
+	/**
+	 * Drop the cached results read from a table, after it was written to.
+	 *
+	 * @param table the table, as given to {@link #cache(String, long, String...)}
+	 */
+	public void invalidate(String table) {
+		final String tag = table.toLowerCase(Locale.ROOT);
+		synchronized (entries) {
+			final Long previous = generations.get(tag);
+			generations.put(tag, previous == null ? 1L : previous + 1);
+			final Iterator<Entry> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().rule.tables.contains(tag)) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop every cached result.
+	 */
+	public void invalidateAll() {
+		synchronized (entries) {
+			generation++;
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return a copy of the cached rows, or null if the result is not cached
+	 */
+	private ResultSet get(Key key) throws SQLException {
+		final Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (System.nanoTime() - entry.expires >= 0) {
+				entries.remove(key);
+				return null;
+			}
+		}
+		// The cached rows are only ever read, so they are copied outside the lock
+		return entry.rows.createCopy();
+	}
+
+	/**
+	 * @return a stamp of the invalidations of the tables of the rule, which changes whenever one
+	 *         of them, or the whole cache, is invalidated
+	 */
+	private long stamp(Rule rule) {
+		synchronized (entries) {
+			// Generations only go up, so the sum only stays the same if none of them changed
+			long stamp = generation;
+			for (String tag : rule.tables) {
+				final Long tagGeneration = generations.get(tag);
+				if (tagGeneration != null) {
+					stamp += tagGeneration;
+				}
+			}
+			return stamp;
+		}
+	}
+
+	/**
+	 * Keep the rows of a miss, unless a table they were read from was invalidated since the miss started.
+	 *
+	 * @param stamp the {@link #stamp(Rule)} of the rule taken before the rows were read
+	 */
+	private void put(Key key, CachedRowSet rows, Rule rule, long stamp) {
+		synchronized (entries) {
+			if (stamp(rule) != stamp) {
+				LOGGER.debug("A table of {} was invalidated while its result was read, not caching it", key.sql);
+				return;
+			}
+			entries.put(key, new Entry(rows, rule, System.nanoTime() + rule.ttlNanos));
+			if (entries.size() > maxEntries) {
+				final Iterator<Key> eldest = entries.keySet().iterator();
+				eldest.next();
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Create a prepared statement of an allow-listed query served from the cache.
+	 *
+	 * @param owner the connection the statement belongs to
+	 * @param sql the SQL of the statement
+	 * @param factory creates the real statement when a query misses the cache
+	 * @return the statement
+	 */
+	public PreparedStatement prepare(Connection owner, String sql, StatementFactory factory) {
+		return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new CachingStatement(owner, sql, rules.get(sql), factory));
+	}
+
+	/**
+	 * @return what the results of queries on the connection depend on besides their SQL and
+	 *         parameters, so pools of other users, and connections on another catalog or schema,
+	 *         never share results
+	 */
+	private static Object scopeOf(Connection owner) {
+		if (owner instanceof ConnectionItemImpl) {
+			return ((ConnectionItemImpl) owner).cacheScope();
+		}
+		if (owner instanceof LazyConnection) {
+			return ((LazyConnection) owner).cacheScope();
+		}
+		return owner;
+	}
+
+	/**
+	 * @return true if the value can be part of a key: it is compared by value, and either
+	 *         immutable or copied by {@link #keyValue(Object)}
+	 */
+	private static boolean isComparable(Object value) {
+		return value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+				|| value instanceof Character || value instanceof java.util.Date || value instanceof TemporalAccessor;
+	}
+
+	/**
+	 * @return the value to keep in a key, a copy of a mutable date so the caller cannot change a stored key
+	 */
+	private static Object keyValue(Object value) {
+		return value instanceof java.util.Date ? ((java.util.Date) value).clone() : value;
+	}
+
+	/**
+	 * Stands in for a prepared statement, recording its parameters and settings, and only
+	 * prepares the real statement when it is needed.
+	 */
+	private final class CachingStatement implements InvocationHandler {
+
+		private final Connection owner;
+		private final String sql;
+		private final Rule rule;
+		private final StatementFactory factory;
+
+		/**
+		 * The calls to replay on the real statement: parameters by index, other settings by name
+		 */
+		private final TreeMap<Integer, Object[]> parameters = new TreeMap<Integer, Object[]>();
+		private final TreeMap<String, Object[]> settings = new TreeMap<String, Object[]>();
+
+		private PreparedStatement statement;
+		private ResultSet resultSet;
+		private boolean closed;
+
+		CachingStatement(Connection owner, String sql, Rule rule, StatementFactory factory) {
+			this.owner = owner;
+			this.sql = sql;
+			this.rule = rule;
+			this.factory = factory;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			if (name.equals("toString")) {
+				return "CachingStatement[" + sql + "]";
+			}
+			else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			else if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			else if (name.equals("isClosed")) {
+				return closed;
+			}
+			else if (name.equals("close")) {
+				closed = true;
+				if (statement != null) {
+					statement.close();
+				}
+				return null;
+			}
+			else if (name.equals("getConnection")) {
+				return owner;
+			}
+			checkOpen();
+			if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+				parameters.put((Integer) args[0], new Object[] { method, args });
+				return forward(method, args);
+			}
+			else if (name.startsWith("set") && args != null) {
+				settings.put(name, new Object[] { method, args });
+				return forward(method, args);
+			}
+			else if (name.equals("clearParameters")) {
+				parameters.clear();
+				return forward(method, args);
+			}
+			else if (name.equals("executeQuery") && args == null) {
+				return executeQuery();
+			}
+			else if (name.equals("getResultSet") && resultSet != null) {
+				return resultSet;
+			}
+			else if (name.equals("getUpdateCount") && statement == null) {
+				return -1;
+			}
+			return invokeOn(statement(), method, args);
+		}
+
+		private void checkOpen() throws SQLException {
+			if (closed) {
+				throw new SQLException("Statement is closed");
+			}
+		}
+
+		private Object forward(Method method, Object[] args) throws Throwable {
+			return statement == null ? null : invokeOn(statement, method, args);
+		}
+
+		/**
+		 * @return the real statement, prepared with the parameters and settings recorded so far
+		 */
+		private PreparedStatement statement() throws Throwable {
+			if (statement == null) {
+				final PreparedStatement prepared = factory.prepare();
+				try {
+					for (Object[] call : settings.values()) {
+						invokeOn(prepared, (Method) call[0], (Object[]) call[1]);
+					}
+					for (Object[] call : parameters.values()) {
+						invokeOn(prepared, (Method) call[0], (Object[]) call[1]);
+					}
+				}
+				catch (Throwable e) {
+					prepared.close();
+					throw e;
+				}
+				statement = prepared;
+			}
+			return statement;
+		}
+
+		private ResultSet executeQuery() throws Throwable {
+			final Key key = key();
+			if (key != null) {
+				final ResultSet cached = get(key);
+				if (cached != null) {
+					hits.incrementAndGet();
+					resultSet = cached;
+					return cached;
+				}
+				misses.incrementAndGet();
+			}
+			final long stamp = key == null ? 0 : stamp(rule);
+			final ResultSet fetched = statement().executeQuery();
+			if (key == null) {
+				resultSet = null;
+				return fetched;
+			}
+			final CachedRowSet rows = rowSetFactory.createCachedRowSet();
+			try {
+				rows.populate(fetched);
+			}
+			finally {
+				fetched.close();
+			}
+			// Preparing the statement may have bound a lazy connection, to one left on another catalog or schema
+			final Key stored = key();
+			if (stored != null && rows.size() <= maxRowsPerEntry) {
+				put(stored, rows, rule, stamp);
+			}
+			else {
+				LOGGER.debug("Result of {} has {} rows, too many to cache", sql, rows.size());
+			}
+			resultSet = rows.createCopy();
+			return resultSet;
+		}
+
+		/**
+		 * @return the key of the query with its current parameters, or null if they cannot be compared
+		 */
+		private Key key() {
+			final List<Object> arguments = new ArrayList<Object>();
+			for (Map.Entry<String, Object[]> setting : settings.entrySet()) {
+				if (!addArguments(arguments, setting.getKey(), (Object[]) setting.getValue()[1])) {
+					return null;
+				}
+			}
+			for (Object[] call : parameters.values()) {
+				if (!addArguments(arguments, ((Method) call[0]).getName(), (Object[]) call[1])) {
+					return null;
+				}
+			}
+			return new Key(scopeOf(owner), sql, arguments);
+		}
+
+		private boolean addArguments(List<Object> arguments, String name, Object[] args) {
+			for (Object arg : args) {
+				if (!isComparable(arg)) {
+					return false;
+				}
+			}
+			arguments.add(name);
+			for (Object arg : args) {
+				arguments.add(keyValue(arg));
+			}
+			return true;
+		}
+	}
+
+	private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.nbaradwaj.connectionpool;
+
+import java.sql.SQLException;
+
+/**
+ * Decides which exceptions thrown by the driver mean a connection is broken for good. A
+ * connection that throws such an exception is evicted at once, so it is closed when it is
+ * released instead of failing the next borrower.
+ *
+ * @see SQLStateExceptionClassifier
+ */
+public interface SQLExceptionClassifier {
+
+	/**
+	 * @param e an exception thrown by the driver through a pooled connection
+	 * @return true if the connection that threw it can no longer be used
+	 */
+	boolean isConnectionFatal(SQLException e);
+}
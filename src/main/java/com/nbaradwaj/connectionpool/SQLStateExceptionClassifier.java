@@ -0,0 +1,76 @@
+package com.nbaradwaj.connectionpool;
+
+import java.sql.SQLException;
+
+/**
+ * The default {@link SQLExceptionClassifier}: an exception is connection-fatal if its SQLState,
+ * or that of an exception chained to it, is in class 08 (connection exception) or is one of
+ * the PostgreSQL shutdown states 57P01 to 57P03. Extra SQLStates or classes can be added for
+ * drivers that report broken connections differently.
+ */
+public class SQLStateExceptionClassifier implements SQLExceptionClassifier {
+
+	/**
+	 * How far the chain of next exceptions and causes is followed
+	 */
+	private static final int MAX_CHAIN = 8;
+
+	/**
+	 * The PostgreSQL administrator shutdown states
+	 */
+	private static final String[] SHUTDOWN_STATES = { "57P01", "57P02", "57P03" };
+
+	private final String[] fatalStates;
+
+	/**
+	 * Classify the standard SQLStates only.
+	 */
+	public SQLStateExceptionClassifier() {
+		this(new String[0]);
+	}
+
+	/**
+	 * @param fatalStates further SQLStates that are fatal. A two character entry is an SQLState class.
+	 */
+	public SQLStateExceptionClassifier(String... fatalStates) {
+		this.fatalStates = fatalStates.clone();
+	}
+
+	@Override
+	public boolean isConnectionFatal(SQLException e) {
+		Throwable t = e;
+		for (int i = 0; i < MAX_CHAIN && t != null; i++) {
+			if (t instanceof SQLException) {
+				final SQLException sqlException = (SQLException) t;
+				if (isFatal(sqlException.getSQLState())) {
+					return true;
+				}
+				t = sqlException.getNextException() != null ? sqlException.getNextException() : sqlException.getCause();
+			}
+			else {
+				t = t.getCause();
+			}
+		}
+		return false;
+	}
+
+	private boolean isFatal(String sqlState) {
+		if (sqlState == null) {
+			return false;
+		}
+		if (sqlState.startsWith("08")) {
+			return true;
+		}
+		for (String shutdownState : SHUTDOWN_STATES) {
+			if (sqlState.equals(shutdownState)) {
+				return true;
+			}
+		}
+		for (String fatalState : fatalStates) {
+			if (fatalState.length() == 2 ? sqlState.startsWith(fatalState) : sqlState.equals(fatalState)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,203 @@
+package com.nbaradwaj.connectionpool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a pool learned about its load, kept in a file so the next start of the pool can open
+ * the connections it is going to need before it takes traffic, instead of ramping up from the
+ * minimum idle while the first borrowers time out.
+ * <p>
+ * The profile holds the peak number of connections in use, the peak in use for every hour of
+ * the day and the average time it takes to open a connection. What is observed while the pool
+ * runs is blended with what was loaded, weighted towards the new observations, so the profile
+ * follows a changing load without forgetting hours the pool did not run through this time.
+ */
+public class WarmStartProfile {
+
+	private static final int HOURS = 24;
+
+	/**
+	 * Weight, out of 4, of this run's observations when blended with the loaded profile
+	 */
+	private static final int OBSERVED_WEIGHT = 3;
+
+	/**
+	 * The profile as loaded from the file
+	 */
+	private final int loadedPeak;
+	private final int[] loadedHours = new int[HOURS];
+	private final long loadedConnectNanos;
+
+	/**
+	 * What this run observed. The current peak is raised by borrowers without locking and folded
+	 * into the hour it was seen in by {@link #rollUp(int)}.
+	 */
+	private volatile int currentPeak;
+	private final int[] observedHours = new int[HOURS];
+	private final boolean[] observedHour = new boolean[HOURS];
+	private int observedPeak;
+	private long connectNanos;
+	private long connects;
+
+	/**
+	 * Create an empty profile.
+	 */
+	public WarmStartProfile() {
+		this(new Properties());
+	}
+
+	private WarmStartProfile(Properties properties) {
+		this.loadedPeak = intProperty(properties, "peakInUse");
+		for (int hour = 0; hour < HOURS; hour++) {
+			this.loadedHours[hour] = intProperty(properties, "hour." + hour);
+		}
+		this.loadedConnectNanos = TimeUnit.MICROSECONDS.toNanos(intProperty(properties, "connectLatencyMicros"));
+	}
+
+	private static int intProperty(Properties properties, String name) {
+		final String value = properties.getProperty(name);
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Integer.parseInt(value.trim()));
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Load a profile, or return an empty profile if the file does not exist yet.
+	 *
+	 * @param file the warm-start file
+	 * @return the profile
+	 * @throws IOException if the file exists but cannot be read
+	 */
+	public static WarmStartProfile load(File file) throws IOException {
+		final Properties properties = new Properties();
+		if (file.exists()) {
+			try (final InputStream stream = new FileInputStream(file)) {
+				properties.load(stream);
+			}
+		}
+		return new WarmStartProfile(properties);
+	}
+
+	/**
+	 * Write the blended profile, replacing the file in one step so a crash never leaves a
+	 * partly written profile behind.
+	 *
+	 * @param file the warm-start file
+	 * @throws IOException if the file cannot be written
+	 */
+	public synchronized void store(File file) throws IOException {
+		final Properties properties = new Properties();
+		properties.setProperty("peakInUse", Integer.toString(getPeakInUse()));
+		for (int hour = 0; hour < HOURS; hour++) {
+			properties.setProperty("hour." + hour, Integer.toString(getPeakInUse(hour)));
+		}
+		properties.setProperty("connectLatencyMicros", Long.toString(TimeUnit.NANOSECONDS.toMicros(getConnectLatencyNanos())));
+
+		final File directory = file.getAbsoluteFile().getParentFile();
+		final File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			try (final OutputStream stream = new FileOutputStream(temporary)) {
+				properties.store(stream, "Connection pool warm-start profile");
+			}
+			try {
+				Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Record the number of connections in use after a borrow.
+	 */
+	public void recordInUse(int inUse) {
+		if (inUse > currentPeak) {
+			currentPeak = inUse; // A racing borrower may lower it slightly, the peak is approximate
+		}
+	}
+
+	/**
+	 * Record the time it took to open a connection.
+	 */
+	public synchronized void recordConnect(long nanos) {
+		connectNanos += nanos;
+		connects++;
+	}
+
+	/**
+	 * Fold the peak seen since the last call into the given hour of the day.
+	 *
+	 * @param hour the hour of the day, 0 to 23
+	 */
+	public synchronized void rollUp(int hour) {
+		final int peak = currentPeak;
+		currentPeak = 0;
+		observedHours[hour] = Math.max(observedHours[hour], peak);
+		observedHour[hour] = true;
+		observedPeak = Math.max(observedPeak, peak);
+	}
+
+	private static int blend(int loaded, int observed) {
+		if (loaded == 0) {
+			return observed;
+		}
+		return (loaded * (4 - OBSERVED_WEIGHT) + observed * OBSERVED_WEIGHT + 3) / 4;
+	}
+
+	/**
+	 * @return the peak number of connections in use
+	 */
+	public synchronized int getPeakInUse() {
+		return observedPeak > 0 ? blend(loadedPeak, observedPeak) : loadedPeak;
+	}
+
+	/**
+	 * @param hour the hour of the day, 0 to 23
+	 * @return the peak number of connections in use during that hour
+	 */
+	public synchronized int getPeakInUse(int hour) {
+		return observedHour[hour] ? blend(loadedHours[hour], observedHours[hour]) : loadedHours[hour];
+	}
+
+	/**
+	 * @return the average time to open a connection in nanoseconds, or 0 if unknown
+	 */
+	public synchronized long getConnectLatencyNanos() {
+		if (connects == 0) {
+			return loadedConnectNanos;
+		}
+		final long observed = connectNanos / connects;
+		return loadedConnectNanos == 0 ? observed : (loadedConnectNanos + observed * OBSERVED_WEIGHT) / 4;
+	}
+
+	/**
+	 * Predict how many connections will be in use in the coming hour: the busier of the given hour
+	 * and the next one, so a pool started just before a busy hour is ready for it.
+	 *
+	 * @param hour the current hour of the day, 0 to 23
+	 * @return the predicted demand, or 0 if the profile knows nothing about these hours
+	 */
+	public synchronized int predictDemand(int hour) {
+		return Math.max(getPeakInUse(hour), getPeakInUse((hour + 1) % HOURS));
+	}
+}
@@ -0,0 +1,331 @@
+package com.nbaradwaj.connectionpool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group commit for small writes. Callers submit parameterized statements and get a future back;
+ * a few writer threads drain the submissions, run statements with the same SQL as one JDBC
+ * batch, commit everything they drained in a single transaction and complete each future with
+ * its own update count. Throughput is then bounded by batches per commit rather than by the
+ * pool size times the commit latency.
+ *
+ * <pre>
+ *   WriteCoalescer coalescer = new WriteCoalescer(pool, config);
+ *   coalescer.setMaxBatchSize(200);
+ *   coalescer.start();
+ *   coalescer.submit("INSERT INTO events (id, body) VALUES (?, ?)", id, body).get();
+ * </pre>
+ */
+public class WriteCoalescer {
+
+	protected static final Logger LOGGER = LoggerFactory.getLogger("ConnectionPool");
+
+	private static final int MAX_BATCH_SIZE = 100;
+	private static final long LINGER_TIME = 2L;
+
+	private final ConnectionPool pool;
+	private final ConnectionConfig config;
+	private final LinkedBlockingQueue<WriteRequest> queue = new LinkedBlockingQueue<WriteRequest>();
+	private final List<Thread> writerThreads = new ArrayList<Thread>();
+	private volatile boolean running;
+
+	private int writers = 1;
+	private int maxBatchSize = MAX_BATCH_SIZE;
+	private long lingerTime = LINGER_TIME;
+
+	/**
+	 * @param pool the pool the writers borrow their connections from
+	 * @param config the configuration of the pool, used to name and create the writer threads
+	 */
+	public WriteCoalescer(ConnectionPool pool, ConnectionConfig config) {
+		this.pool = pool;
+		this.config = config;
+	}
+
+	/**
+	 * Set the number of writer threads, each holding at most one pooled connection at a time.
+	 */
+	public void setWriters(int writers) {
+		if (writers < 1) {
+			throw new IllegalArgumentException("writers cannot be less than 1");
+		}
+		this.writers = writers;
+	}
+
+	/**
+	 * Set the most statements a writer commits in one transaction.
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize cannot be less than 1");
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Set how long a writer waits for more statements to join a batch that is not yet full.
+	 *
+	 * @param lingerTimeMs the linger time in milliseconds, 0 to send whatever is queued at once
+	 */
+	public void setLingerTime(long lingerTimeMs) {
+		if (lingerTimeMs < 0) {
+			throw new IllegalArgumentException("lingerTime cannot be negative");
+		}
+		this.lingerTime = lingerTimeMs;
+	}
+
+	/**
+	 * Start the writer threads.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int i = 0; i < writers; i++) {
+			final Thread thread = ConnectionPoolHelper.newThread(config, new Writer(), "write coalescer");
+			writerThreads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stop accepting statements, write everything already submitted and stop the writer threads.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the writers to finish
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized (this) {
+			running = false;
+		}
+		for (Thread thread : writerThreads) {
+			thread.join();
+		}
+		// Anything submitted while we were stopping
+		WriteRequest request;
+		while ((request = queue.poll()) != null) {
+			request.result.completeExceptionally(new SQLException("Write coalescer has been shut down"));
+		}
+	}
+
+	/**
+	 * Submit a statement to be executed in the next batch.
+	 *
+	 * @param sql the SQL of the statement, with ? placeholders
+	 * @param parameters the values bound to the placeholders, in order
+	 * @return a future completed with the update count of the statement, or with its error
+	 */
+	public CompletableFuture<Integer> submit(String sql, Object... parameters) {
+		final WriteRequest request = new WriteRequest(sql, parameters);
+		// Under the lock of shutdown, so a request is either queued before the writers are told
+		// to stop, and written by them, or refused
+		synchronized (this) {
+			if (running) {
+				queue.add(request);
+				return request.result;
+			}
+		}
+		request.result.completeExceptionally(new SQLException("Write coalescer is not running"));
+		return request.result;
+	}
+
+	/**
+	 * @return the number of statements waiting for a writer
+	 */
+	public int getQueueLength() {
+		return queue.size();
+	}
+
+	/**
+	 * A submitted statement and the future of its caller.
+	 */
+	private static final class WriteRequest {
+		final String sql;
+		final Object[] parameters;
+		final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+
+		WriteRequest(String sql, Object[] parameters) {
+			this.sql = sql;
+			this.parameters = parameters;
+		}
+	}
+
+	/**
+	 * Drains the queue into batches until the coalescer is stopped and the queue is empty.
+	 */
+	private final class Writer implements Runnable {
+		@Override
+		public void run() {
+			final List<WriteRequest> batch = new ArrayList<WriteRequest>(maxBatchSize);
+			try {
+				while (running || !queue.isEmpty()) {
+					final WriteRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerTime);
+					while (batch.size() < maxBatchSize) {
+						if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+							continue;
+						}
+						final long remaining = deadline - System.nanoTime();
+						final WriteRequest next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+						if (next == null) {
+							break;
+						}
+						batch.add(next);
+					}
+					try {
+						write(batch);
+					}
+					catch (RuntimeException e) {
+						// Fail the batch rather than the writer, which would leave the queue to the others
+						LOGGER.warn("Exception writing a batch of {} statements for pool {}", batch.size(), config.getPoolName(), e);
+						for (WriteRequest request : batch) {
+							request.result.completeExceptionally(new SQLException("Exception writing batch", e));
+						}
+					}
+					batch.clear();
+				}
+			}
+			catch (InterruptedException e) {
+				for (WriteRequest request : batch) {
+					request.result.completeExceptionally(new SQLException("Interrupted while writing", e));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a batch in a single transaction, falling back to one transaction per statement if
+	 * the batch fails, so that each caller gets its own result or error.
+	 */
+	private void write(final List<WriteRequest> batch) {
+		final Map<String, List<WriteRequest>> bySql = new LinkedHashMap<String, List<WriteRequest>>();
+		for (WriteRequest request : batch) {
+			List<WriteRequest> requests = bySql.get(request.sql);
+			if (requests == null) {
+				requests = new ArrayList<WriteRequest>();
+				bySql.put(request.sql, requests);
+			}
+			requests.add(request);
+		}
+
+		final Connection connection;
+		try {
+			connection = pool.getConnection();
+		}
+		catch (SQLException e) {
+			for (WriteRequest request : batch) {
+				request.result.completeExceptionally(e);
+			}
+			return;
+		}
+
+		try {
+			final boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				if (!writeBatch(connection, bySql)) {
+					for (WriteRequest request : batch) {
+						writeAlone(connection, request);
+					}
+				}
+			}
+			finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		}
+		catch (SQLException e) {
+			for (WriteRequest request : batch) {
+				request.result.completeExceptionally(e);
+			}
+		}
+		finally {
+			try {
+				pool.releaseConnection(connection);
+			}
+			catch (SQLException e) {
+				LOGGER.debug("Exception releasing connection to pool {}", config.getPoolName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Run every group as a JDBC batch and commit them together.
+	 *
+	 * @return true if the batch was committed and every future completed, false if it was rolled back
+	 */
+	private boolean writeBatch(final Connection connection, final Map<String, List<WriteRequest>> bySql) throws SQLException {
+		final Map<WriteRequest, Integer> counts = new LinkedHashMap<WriteRequest, Integer>();
+		try {
+			for (Map.Entry<String, List<WriteRequest>> group : bySql.entrySet()) {
+				final PreparedStatement statement = connection.prepareStatement(group.getKey());
+				try {
+					for (WriteRequest request : group.getValue()) {
+						bind(statement, request);
+						statement.addBatch();
+					}
+					final int[] updateCounts = statement.executeBatch();
+					for (int i = 0; i < group.getValue().size(); i++) {
+						counts.put(group.getValue().get(i), i < updateCounts.length ? updateCounts[i] : PreparedStatement.SUCCESS_NO_INFO);
+					}
+				}
+				finally {
+					statement.close();
+				}
+			}
+			connection.commit();
+		}
+		catch (SQLException e) {
+			LOGGER.debug("Batch of {} statements failed on pool {}, retrying them one by one: {}", counts.size(), config.getPoolName(), e.getMessage());
+			connection.rollback();
+			return false;
+		}
+		for (Map.Entry<WriteRequest, Integer> count : counts.entrySet()) {
+			count.getKey().result.complete(count.getValue());
+		}
+		return true;
+	}
+
+	/**
+	 * Run a single statement in its own transaction and complete its future.
+	 */
+	private void writeAlone(final Connection connection, final WriteRequest request) throws SQLException {
+		try {
+			final PreparedStatement statement = connection.prepareStatement(request.sql);
+			try {
+				bind(statement, request);
+				final int count = statement.executeUpdate();
+				connection.commit();
+				request.result.complete(count);
+			}
+			finally {
+				statement.close();
+			}
+		}
+		catch (SQLException e) {
+			connection.rollback();
+			request.result.completeExceptionally(e);
+		}
+	}
+
+	private static void bind(final PreparedStatement statement, final WriteRequest request) throws SQLException {
+		for (int i = 0; i < request.parameters.length; i++) {
+			statement.setObject(i + 1, request.parameters[i]);
+		}
+	}
+}
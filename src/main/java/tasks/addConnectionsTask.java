@@ -1,11 +1,29 @@
 package tasks;
 
+import java.sql.SQLException;
+
+import com.nbaradwaj.connectionpool.PoolManager;
+
+/**
+ * Creates one connection for the pool in the background.
+ */
 public class addConnectionsTask implements Runnable {
 
+	private final PoolManager poolManager;
+
+	public addConnectionsTask(PoolManager poolManager) {
+		this.poolManager = poolManager;
+	}
+
 	@Override
 	public void run() {
-		// TODO Auto-generated method stub
-
+		try {
+			poolManager.addConnection();
+		} catch (SQLException e) {
+			// addConnection logs failed attempts itself
+		} finally {
+			poolManager.addConnectionCompleted();
+		}
 	}
 
 }
@@ -0,0 +1,55 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class AllocationTest {
+
+	private static final int WARMUP = 20000;
+	private static final int CYCLES = 100000;
+
+	/**
+	 * Once warmed up, borrowing and returning an idle connection must not allocate per call when
+	 * the connection is recent enough to skip validation.
+	 */
+	@Test
+	public void testBorrowAndReturnDoNotAllocate() throws SQLException, InterruptedException {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("allocation");
+		config.setDataSource(new SimulatedDataSource());
+		config.setMaximumPoolSize(2);
+		// Skip validation: isValid on the simulated connection goes through a proxy, which allocates
+		config.setAliveBypassWindow(1000);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+		try {
+			cycle(pool, WARMUP);
+			final long threadId = Thread.currentThread().getId();
+			final long before = threads.getThreadAllocatedBytes(threadId);
+			cycle(pool, CYCLES);
+			final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+			assertTrue("Allocated " + allocated + " bytes over " + CYCLES + " borrow/return cycles", allocated < CYCLES);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void cycle(ConnectionPoolImpl pool, int cycles) throws SQLException {
+		for (int i = 0; i < cycles; i++) {
+			Connection connection = pool.getConnection();
+			pool.releaseConnection(connection);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.LatencyDistribution;
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class AsyncCloseTest {
+
+	private static void await(ConnectionPoolImpl pool, SimulatedDataSource dataSource, int open) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((pool.totalConnections() != open || dataSource.getOpenConnections() != open) && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(open, pool.totalConnections());
+		assertEquals(open, dataSource.getOpenConnections());
+	}
+
+	/**
+	 * Releasing a broken connection returns at once even though closing it is slow, and closes
+	 * that overflow the closer's queue still happen without blocking: every connection is closed.
+	 */
+	@Test
+	public void testSlowCloseDoesNotBlock() throws SQLException, InterruptedException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		dataSource.setCloseLatency(LatencyDistribution.fixed(300));
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("async-close");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(2);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+
+		Connection connection = pool.getConnection();
+		((ConnectionItem) connection).evict();
+		long start = System.nanoTime();
+		pool.releaseConnection(connection);
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+		assertEquals(1, pool.getMetrics().getPendingCloses());
+
+		// Two closer threads and a queue of two: later rounds overflow, and the closers drain all of it
+		for (int round = 0; round < 6; round++) {
+			start = System.nanoTime();
+			pool.softEvictConnections();
+			assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+			while (pool.totalConnections() < 2) {
+				Thread.sleep(5);
+			}
+		}
+		assertTrue(pool.getMetrics().getCloseOverflows() > 0);
+
+		await(pool, dataSource, 2);
+		assertEquals(0, pool.getMetrics().getPendingCloses());
+		pool.shutdown();
+		assertEquals(0, dataSource.getOpenConnections());
+	}
+}
@@ -0,0 +1,103 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class BatchBorrowTest {
+
+	private static ConnectionPoolImpl newPool(int size) {
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("batch");
+		config.setDataSource(new SimulatedDataSource());
+		config.setMaximumPoolSize(size);
+		config.setConnectionTimeout(TimeUnit.SECONDS.toMillis(2));
+		return new ConnectionPoolImpl(config);
+	}
+
+	/**
+	 * A batch is borrowed in full and released in one call.
+	 */
+	@Test
+	public void testBorrowAndReleaseBatch() throws SQLException {
+		ConnectionPoolImpl pool = newPool(4);
+		List<Connection> connections = pool.getConnections(3);
+		assertEquals(3, connections.size());
+		assertEquals(1, pool.idleConnectionsCount());
+		for (Connection connection : connections) {
+			assertEquals(ConnectionItem.STATE_IN_USE, ((ConnectionItem) connection).getState());
+		}
+		pool.releaseConnections(connections);
+		assertEquals(4, pool.idleConnectionsCount());
+		for (Connection connection : connections) {
+			assertEquals(ConnectionItem.STATE_NOT_IN_USE, ((ConnectionItem) connection).getState());
+		}
+	}
+
+	/**
+	 * Two jobs that each need most of the pool take turns instead of deadlocking on halves.
+	 */
+	@Test
+	public void testCompetingBatchesDoNotDeadlock() throws Exception {
+		final ConnectionPoolImpl pool = newPool(4);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		Callable<Integer> job = new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				List<Connection> connections = pool.getConnections(3);
+				Thread.sleep(50);
+				pool.releaseConnections(connections);
+				return connections.size();
+			}
+		};
+		Future<?>[] results = new Future<?>[8];
+		for (int i = 0; i < results.length; i++) {
+			results[i] = executor.submit(job);
+		}
+		for (Future<?> result : results) {
+			assertEquals(3, result.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(4, pool.totalConnections());
+		executor.shutdown();
+	}
+
+	/**
+	 * When the whole batch is not available in time, nothing is kept.
+	 */
+	@Test
+	public void testBatchIsAllOrNothing() throws SQLException {
+		ConnectionPoolImpl pool = newPool(4);
+		Connection held = pool.getConnection();
+		Connection alsoHeld = pool.getConnection();
+		try {
+			pool.getConnections(3, TimeUnit.SECONDS.toMillis(1));
+			fail("Expected the batch to time out");
+		} catch (SQLTimeoutException e) {
+			// expected
+		}
+		assertEquals(2, pool.idleConnectionsCount());
+		pool.releaseConnection(held);
+		pool.releaseConnection(alsoHeld);
+		assertEquals(3, pool.getConnections(3).size());
+	}
+
+	/**
+	 * A batch larger than the pool can never succeed and is rejected at once.
+	 */
+	@Test(expected = SQLException.class)
+	public void testBatchLargerThanPool() throws SQLException {
+		newPool(2).getConnections(3);
+	}
+}
@@ -0,0 +1,100 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class ConfigurationWatcherTest {
+
+	private File file;
+
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("connection-pool", ".properties");
+		file.deleteOnExit();
+		write("maximumPoolSize=4\nminimumIdle=2\nconnectionTimeout=2000\n");
+	}
+
+	private void write(String properties) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		writer.write(properties);
+		writer.close();
+	}
+
+	private ConnectionConfig newConfig(boolean watch) throws SQLException {
+		ConnectionConfig config = new ConnectionConfig(file.getPath());
+		config.setWatchConfigurationFile(watch);
+		config.setDataSource(Mockito.mock(DataSource.class));
+		Connection connection = Mockito.mock(Connection.class);
+		Mockito.when(config.getDataSource().getConnection()).thenReturn(connection);
+		Mockito.when(connection.isValid(Mockito.anyInt())).thenReturn(true);
+		return config;
+	}
+
+	/**
+	 * A valid change is applied to the live configuration and the pool is resized to match.
+	 */
+	@Test
+	public void testReloadAppliesChanges() throws Exception {
+		ConnectionConfig config = newConfig(false);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+		assertEquals(2, pool.totalConnections());
+
+		write("maximumPoolSize=6\nminimumIdle=5\nconnectionTimeout=3000\nleakDetectionThreshold=5000\n");
+		assertTrue(new ConfigurationWatcher(config, pool).reload());
+		assertEquals(6, config.getMaximumPoolSize());
+		assertEquals(5, config.getMinimumIdleConnections());
+		assertEquals(3000, config.getConnectionTimeout());
+		assertEquals(5000, config.getLeakDetectionThreshold());
+		assertEquals(5, pool.totalConnections());
+		assertEquals(1, pool.getMetrics().getConfigurationReloads());
+
+		write("maximumPoolSize=3\nminimumIdle=1\n");
+		assertTrue(new ConfigurationWatcher(config, pool).reload());
+		assertEquals(3, pool.totalConnections());
+	}
+
+	/**
+	 * An invalid change is rejected as a whole and the live pool keeps its configuration.
+	 */
+	@Test
+	public void testInvalidChangeIsRejected() throws Exception {
+		ConnectionConfig config = newConfig(false);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+
+		write("minimumIdle=3\nmaximumPoolSize=0\n");
+		assertFalse(new ConfigurationWatcher(config, pool).reload());
+		assertEquals(4, config.getMaximumPoolSize());
+		assertEquals(2, config.getMinimumIdleConnections());
+		assertEquals(1, pool.getMetrics().getConfigurationReloadFailures());
+		assertEquals(0, pool.getMetrics().getConfigurationReloads());
+	}
+
+	/**
+	 * With watching enabled, editing the file is enough to retune the pool.
+	 */
+	@Test
+	public void testFileChangeIsPickedUp() throws Exception {
+		ConnectionConfig config = newConfig(true);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+
+		write("maximumPoolSize=4\nminimumIdle=3\nconnectionTimeout=2000\n");
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+		while (pool.getMetrics().getConfigurationReloads() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(3, config.getMinimumIdleConnections());
+		assertEquals(3, pool.totalConnections());
+	}
+}
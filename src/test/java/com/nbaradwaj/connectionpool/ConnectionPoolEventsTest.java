@@ -0,0 +1,88 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLTimeoutException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class ConnectionPoolEventsTest {
+
+	/**
+	 * Creating, borrowing, timing out and evicting connections should all show up in a flight recording.
+	 */
+	@Test
+	public void testPoolEventsAreRecorded() throws Exception {
+		Recording recording = new Recording();
+		recording.enable(ConnectionAcquireEvent.class).withoutThreshold();
+		recording.enable(ConnectionCreateEvent.class).withoutThreshold();
+		recording.enable(ConnectionEvictEvent.class).withoutThreshold();
+		recording.start();
+
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("events");
+		config.setMaximumPoolSize(1);
+		config.setConnectionTimeout(TimeUnit.SECONDS.toMillis(1));
+		config.setDataSource(Mockito.mock(DataSource.class));
+		Connection connection = Mockito.mock(Connection.class);
+		Mockito.when(config.getDataSource().getConnection()).thenReturn(connection);
+		Mockito.when(connection.isValid(Mockito.anyInt())).thenReturn(true);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+
+		Connection borrowed = pool.getConnection();
+		try {
+			pool.getConnection();
+			fail("Expected the second borrow to time out");
+		} catch (SQLTimeoutException e) {
+			// expected
+		}
+		((ConnectionItem) borrowed).evict();
+		pool.releaseConnection(borrowed);
+		recording.stop();
+
+		File file = File.createTempFile("connection-pool", ".jfr");
+		file.deleteOnExit();
+		Path path = file.toPath();
+		recording.dump(path);
+		recording.close();
+		List<RecordedEvent> events = RecordingFile.readAllEvents(path);
+
+		int acquired = 0, timedOut = 0, created = 0, evicted = 0;
+		for (RecordedEvent event : events) {
+			String name = event.getEventType().getName();
+			if (name.equals("com.nbaradwaj.connectionpool.ConnectionAcquire")) {
+				if (event.getBoolean("timedOut")) {
+					timedOut++;
+					assertEquals(1, event.getInt("activeAtStart"));
+				} else {
+					acquired++;
+					assertEquals(1, event.getInt("idleAtStart"));
+					assertEquals(1, event.getInt("activeAtEnd"));
+				}
+			} else if (name.equals("com.nbaradwaj.connectionpool.ConnectionCreate")) {
+				assertTrue(event.getBoolean("success"));
+				created++;
+			} else if (name.equals("com.nbaradwaj.connectionpool.ConnectionEvict")) {
+				assertEquals(PoolManager.EVICT_REASON_RELEASED_EVICTED, event.getString("reason"));
+				evicted++;
+			}
+		}
+		assertEquals(1, acquired);
+		assertEquals(1, timedOut);
+		// The evicted connection is replaced in the background, which may or may not be recorded
+		assertTrue(created >= 1);
+		assertEquals(1, evicted);
+	}
+}
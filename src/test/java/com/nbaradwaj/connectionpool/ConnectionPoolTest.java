@@ -52,7 +52,7 @@ public class ConnectionPoolTest {
 	public void testGetConnection() throws SQLException {
 		int count = pool.idleConnectionsCount();
 		Connection connection =  pool.getConnection(config.getConnectionTimeout());
-		Assert.assertEquals(((ConnectionItem) connection).state().get() , ConnectionItem.STATE_IN_USE);
+		Assert.assertEquals(((ConnectionItem) connection).getState() , ConnectionItem.STATE_IN_USE);
 		Assert.assertEquals(count - 1 , pool.idleConnectionsCount());
 	}
 	
@@ -66,7 +66,7 @@ public class ConnectionPoolTest {
 		int count = pool.idleConnectionsCount();
 		pool.releaseConnection(connection);
 		Assert.assertEquals(count + 1, pool.idleConnectionsCount());
-		Assert.assertEquals(((ConnectionItem) connection).state().get(), ConnectionItem.STATE_NOT_IN_USE);
+		Assert.assertEquals(((ConnectionItem) connection).getState(), ConnectionItem.STATE_NOT_IN_USE);
 	}
 	
 	/**
@@ -80,7 +80,7 @@ public class ConnectionPoolTest {
 		int count = pool.idleConnectionsCount();
 		connection.close();
 		Assert.assertEquals(count + 1, pool.idleConnectionsCount());
-		Assert.assertEquals(((ConnectionItem) connection).state().get(), ConnectionItem.STATE_NOT_IN_USE);
+		Assert.assertEquals(((ConnectionItem) connection).getState(), ConnectionItem.STATE_NOT_IN_USE);
 	}
 	
 	/**
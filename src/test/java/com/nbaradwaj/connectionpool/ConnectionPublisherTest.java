@@ -0,0 +1,142 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class ConnectionPublisherTest {
+
+	/**
+	 * Collects the leases and the error sent to it, counting them down on a latch.
+	 */
+	private static class CollectingSubscriber implements Flow.Subscriber<ConnectionLease> {
+		final List<ConnectionLease> leases = new CopyOnWriteArrayList<ConnectionLease>();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		volatile Flow.Subscription subscription;
+		volatile CountDownLatch latch;
+
+		CollectingSubscriber(int expected) {
+			latch = new CountDownLatch(expected);
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(ConnectionLease lease) {
+			leases.add(lease);
+			latch.countDown();
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			error.set(t);
+			latch.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+		}
+
+		boolean await() throws InterruptedException {
+			return latch.await(5, TimeUnit.SECONDS);
+		}
+	}
+
+	private static ConnectionPoolImpl newPool(SimulatedDataSource dataSource) {
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("publisher");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(2);
+		return new ConnectionPoolImpl(config);
+	}
+
+	/**
+	 * Requests beyond the pool size are filled as leases are released, without the subscriber blocking.
+	 */
+	@Test
+	public void testLeasesFollowDemandAndReleases() throws InterruptedException, SQLException {
+		ConnectionPoolImpl pool = newPool(new SimulatedDataSource());
+		ConnectionPublisher publisher = new ConnectionPublisher(pool);
+		CollectingSubscriber subscriber = new CollectingSubscriber(2);
+		publisher.subscribe(subscriber);
+		assertTrue(subscriber.leases.isEmpty());
+
+		subscriber.subscription.request(3);
+		assertTrue(subscriber.await());
+		assertEquals(2, subscriber.leases.size());
+		assertEquals(0, pool.idleConnectionsCount());
+
+		// The third reservation is filled by the first release
+		subscriber.latch = new CountDownLatch(1);
+		subscriber.leases.get(0).release();
+		subscriber.leases.get(0).release();
+		assertTrue(subscriber.await());
+		assertEquals(3, subscriber.leases.size());
+		assertSame(subscriber.leases.get(0).getConnection(), subscriber.leases.get(2).getConnection());
+
+		subscriber.leases.get(1).release();
+		subscriber.leases.get(2).release();
+		assertEquals(2, pool.idleConnectionsCount());
+		pool.shutdown();
+	}
+
+	/**
+	 * Cancelling drops the reservations that were not filled, so released connections stay idle.
+	 */
+	@Test
+	public void testCancelReturnsReservation() throws InterruptedException, SQLException {
+		ConnectionPoolImpl pool = newPool(new SimulatedDataSource());
+		CollectingSubscriber subscriber = new CollectingSubscriber(2);
+		new ConnectionPublisher(pool).subscribe(subscriber);
+		subscriber.subscription.request(5);
+		assertTrue(subscriber.await());
+
+		subscriber.subscription.cancel();
+		for (ConnectionLease lease : subscriber.leases) {
+			lease.close();
+		}
+		Thread.sleep(100);
+		assertEquals(2, subscriber.leases.size());
+		assertEquals(2, pool.idleConnectionsCount());
+		pool.releaseConnection(pool.getConnection());
+		pool.shutdown();
+	}
+
+	/**
+	 * A non-positive request and a pool shutdown are reported through onError.
+	 */
+	@Test
+	public void testErrors() throws InterruptedException, SQLException {
+		ConnectionPoolImpl pool = newPool(new SimulatedDataSource());
+		CollectingSubscriber invalid = new CollectingSubscriber(1);
+		new ConnectionPublisher(pool).subscribe(invalid);
+		invalid.subscription.request(0);
+		assertTrue(invalid.await());
+		assertTrue(invalid.error.get() instanceof IllegalArgumentException);
+
+		CollectingSubscriber waiting = new CollectingSubscriber(2);
+		new ConnectionPublisher(pool).subscribe(waiting);
+		waiting.subscription.request(3);
+		assertTrue(waiting.await());
+		assertNull(waiting.error.get());
+
+		// The third reservation is still open when the pool shuts down
+		waiting.latch = new CountDownLatch(1);
+		pool.shutdown(0);
+		assertTrue(waiting.await());
+		assertTrue(waiting.error.get() instanceof SQLException);
+	}
+}
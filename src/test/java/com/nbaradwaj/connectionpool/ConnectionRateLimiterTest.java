@@ -0,0 +1,79 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class ConnectionRateLimiterTest {
+
+	/**
+	 * After the initial burst, tokens are handed out at the configured rate.
+	 */
+	@Test
+	public void testRateIsEnforced() throws InterruptedException {
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter(20);
+		final long start = System.nanoTime();
+		for (int i = 0; i < 30; i++) {
+			limiter.acquire();
+		}
+		final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		// 20 in the burst, then 10 more at 50ms each
+		assertTrue("took " + elapsed + "ms", elapsed >= 450 && elapsed < 1500);
+	}
+
+	/**
+	 * Reservations are served in the order they were made.
+	 */
+	@Test
+	public void testReservationsAreOrdered() {
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter(10);
+		long previous = -1;
+		for (int i = 0; i < 20; i++) {
+			long wait = limiter.reserve();
+			assertTrue(wait >= previous);
+			previous = wait;
+		}
+		assertTrue(previous > TimeUnit.MILLISECONDS.toNanos(900));
+	}
+
+	/**
+	 * The initial fill and refilling the pool afterwards are both throttled, and the delay is reported.
+	 */
+	@Test
+	public void testPoolFillIsThrottled() throws SQLException, InterruptedException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("throttled");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(15);
+		config.setConnectionCreationRate(10);
+
+		// 10 in the burst, then 5 more at 100ms each, which the constructor waits for
+		long start = System.nanoTime();
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertEquals(15, pool.totalConnections());
+		assertTrue("took " + elapsed + "ms", elapsed >= 400);
+		assertEquals(5, pool.getMetrics().getThrottledConnections());
+
+		// Wait for the bucket to fill up again, and replace every connection
+		Thread.sleep(1000);
+		pool.softEvictConnections();
+		start = System.nanoTime();
+		final long deadline = start + TimeUnit.SECONDS.toNanos(10);
+		while (pool.idleConnectionsCount() < 15 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertEquals(15, pool.totalConnections());
+		assertTrue("took " + elapsed + "ms", elapsed >= 400);
+		assertEquals(10, pool.getMetrics().getThrottledConnections());
+		assertTrue(pool.getMetrics().getThrottleDelayMillis() > 0);
+		pool.shutdown();
+	}
+}
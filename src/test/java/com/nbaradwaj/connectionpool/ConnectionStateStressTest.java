@@ -0,0 +1,336 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+/**
+ * Borrowers, housekeeping validating idle connections in place, and an evictor all race on a
+ * small pool. Every state change is a compare-and-set, so no connection may be handed to two
+ * borrowers at once, and no connection may be handed out once its eviction has completed.
+ */
+public class ConnectionStateStressTest {
+
+	private static final int BORROWERS = 8;
+	private static final long DURATION_MS = 2000;
+
+	private final AtomicLong clock = new AtomicLong();
+	private final Set<Connection> inUse = ConcurrentHashMap.newKeySet();
+	private final Map<Connection, Long> evicted = new ConcurrentHashMap<Connection, Long>();
+	private final List<Connection> seen = new CopyOnWriteArrayList<Connection>();
+	private final AtomicInteger doubleBorrows = new AtomicInteger();
+	private final AtomicInteger lostEvictions = new AtomicInteger();
+	private final AtomicInteger borrows = new AtomicInteger();
+	private volatile boolean stop;
+	private volatile Throwable failure;
+
+	/**
+	 * Record an eviction, stamped after it completed.
+	 */
+	private void evict(Connection connection) {
+		if (((ConnectionItem) connection).evict()) {
+			evicted.put(connection, clock.incrementAndGet());
+		}
+	}
+
+	private Thread start(final String name, final Runnable work) {
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!stop) {
+						work.run();
+					}
+				}
+				catch (Throwable e) {
+					failure = e;
+				}
+			}
+		}, name);
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	public void testNoDoubleBorrowOrLostEviction() throws SQLException, InterruptedException {
+		final SimulatedDataSource dataSource = new SimulatedDataSource();
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("stress");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(4);
+		config.setMinimumIdle(4);
+		config.setConnectionTimeout(1000);
+		config.setAliveBypassWindow(0);
+		config.setKeepaliveTime(1);
+		config.setIdleTimeout(0);
+		final ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+
+		final List<Thread> threads = new ArrayList<Thread>();
+		try {
+			for (int i = 0; i < BORROWERS; i++) {
+				threads.add(start("borrower " + i, new Runnable() {
+					@Override
+					public void run() {
+						final long before = clock.incrementAndGet();
+						final Connection connection;
+						try {
+							connection = pool.getConnection();
+						}
+						catch (SQLTimeoutException e) {
+							return; // Starved while evicted connections were replaced
+						}
+						catch (SQLException e) {
+							throw new IllegalStateException(e);
+						}
+						borrows.incrementAndGet();
+						final Long evictedAt = evicted.get(connection);
+						if (evictedAt != null && evictedAt < before) {
+							lostEvictions.incrementAndGet();
+						}
+						if (!inUse.add(connection)) {
+							doubleBorrows.incrementAndGet();
+						}
+						if (!seen.contains(connection)) {
+							seen.add(connection);
+						}
+						Thread.yield();
+						if (ThreadLocalRandom.current().nextInt(50) == 0) {
+							evict(connection);
+						}
+						inUse.remove(connection);
+						pool.releaseConnection((ConnectionItem) connection);
+					}
+				}));
+			}
+			threads.add(start("housekeeper", new Runnable() {
+				@Override
+				public void run() {
+					pool.getPoolManager().housekeep();
+				}
+			}));
+			threads.add(start("evictor", new Runnable() {
+				@Override
+				public void run() {
+					if (!seen.isEmpty()) {
+						evict(seen.get(ThreadLocalRandom.current().nextInt(seen.size())));
+					}
+					try {
+						Thread.sleep(1);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}));
+			Thread.sleep(DURATION_MS);
+		}
+		finally {
+			stop = true;
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		}
+		assertNull(String.valueOf(failure), failure);
+		assertTrue(borrows.get() > 0);
+		assertEquals(0, doubleBorrows.get());
+		assertEquals(0, lostEvictions.get());
+
+		try {
+			// Every connection is back, and each is in the idle queue once
+			final List<Connection> all = new ArrayList<Connection>();
+			for (int i = 0; i < 4; i++) {
+				all.add(pool.getConnection());
+			}
+			assertEquals(4, new HashSet<Connection>(all).size());
+			for (Connection connection : all) {
+				assertEquals(ConnectionItem.STATE_IN_USE, ((ConnectionItem) connection).getState());
+				pool.releaseConnection(connection);
+			}
+			assertEquals(4, pool.totalConnections());
+
+			// Nothing evicted was left open
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (dataSource.getOpenConnections() != pool.totalConnections() && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(pool.totalConnections(), dataSource.getOpenConnections());
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * A connection reserved by the keepalive is out of the idle queue until its validation is done,
+	 * so borrowers wait for it rather than polling it over and over.
+	 */
+	@Test
+	public void testReservedConnectionIsNotPolled() throws SQLException, InterruptedException {
+		final Connection physical = Mockito.mock(Connection.class);
+		final AtomicBoolean block = new AtomicBoolean();
+		final CountDownLatch validating = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Mockito.when(physical.isValid(Mockito.anyInt())).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+				if (block.get()) {
+					validating.countDown();
+					release.await();
+				}
+				return true;
+			}
+		});
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("reserved");
+		config.setDataSource(Mockito.mock(DataSource.class));
+		Mockito.when(config.getDataSource().getConnection()).thenReturn(physical);
+		config.setMaximumPoolSize(1);
+		config.setMinimumIdle(1);
+		final ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+		try {
+			final Connection connection = pool.getConnection();
+			pool.releaseConnection(connection);
+			block.set(true);
+			pool.getPoolManager().keepAlive((ConnectionItem) connection);
+			assertTrue(validating.await(5, TimeUnit.SECONDS));
+			assertEquals(ConnectionItem.STATE_RESERVED, ((ConnectionItem) connection).getState());
+			assertEquals(0, pool.idleConnectionsCount());
+			assertNull(pool.pollConnection());
+			assertEquals(0, pool.idleConnectionsCount());
+
+			release.countDown();
+			assertSame(connection, pool.getConnection(5000));
+			pool.releaseConnection(connection);
+			assertEquals(1, pool.idleConnectionsCount());
+		}
+		finally {
+			release.countDown();
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * A physical connection whose validation blocks on the latch once blocking is switched on.
+	 */
+	private static Connection blockingConnection(final AtomicBoolean block, final CountDownLatch validating,
+			final CountDownLatch release) throws SQLException {
+		final Connection physical = Mockito.mock(Connection.class);
+		Mockito.when(physical.isValid(Mockito.anyInt())).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+				if (block.get()) {
+					validating.countDown();
+					release.await();
+				}
+				return true;
+			}
+		});
+		return physical;
+	}
+
+	/**
+	 * A soft eviction reaches a connection the keepalive is validating, so it is closed rather
+	 * than handed back once its validation passes.
+	 */
+	@Test
+	public void testSoftEvictionReachesReservedConnection() throws SQLException, InterruptedException {
+		final AtomicBoolean block = new AtomicBoolean();
+		final CountDownLatch validating = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Connection physical = blockingConnection(block, validating, release);
+		final Connection replacement = Mockito.mock(Connection.class);
+		Mockito.when(replacement.isValid(Mockito.anyInt())).thenReturn(true);
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("reserved-soft-evict");
+		config.setDataSource(Mockito.mock(DataSource.class));
+		Mockito.when(config.getDataSource().getConnection()).thenReturn(physical, replacement);
+		config.setMaximumPoolSize(1);
+		config.setMinimumIdle(1);
+		final ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+		try {
+			final Connection connection = pool.getConnection();
+			pool.releaseConnection(connection);
+			block.set(true);
+			pool.getPoolManager().keepAlive((ConnectionItem) connection);
+			assertTrue(validating.await(5, TimeUnit.SECONDS));
+			pool.softEvictConnections();
+			assertEquals(ConnectionItem.STATE_EVICTED, ((ConnectionItem) connection).getState());
+
+			release.countDown();
+			Mockito.verify(physical, Mockito.timeout(5000)).close();
+			assertSame(replacement, ((ConnectionItem) pool.getConnection(5000)).getConnection());
+		}
+		finally {
+			release.countDown();
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Shutting down closes connections reserved by the keepalive, both the one being validated
+	 * and the one whose validation was still waiting for a creation thread.
+	 */
+	@Test
+	public void testShutdownClosesReservedConnections() throws SQLException, InterruptedException {
+		final AtomicBoolean block = new AtomicBoolean();
+		final CountDownLatch validating = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Connection first = blockingConnection(block, validating, release);
+		final Connection second = blockingConnection(block, validating, release);
+		final PoolRegistry registry = new PoolRegistry(1, 1);
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("reserved-shutdown");
+		config.setDataSource(Mockito.mock(DataSource.class));
+		Mockito.when(config.getDataSource().getConnection()).thenReturn(first, second);
+		config.setMaximumPoolSize(2);
+		config.setMinimumIdle(2);
+		config.setPoolRegistry(registry);
+		final ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+		try {
+			final Connection one = pool.getConnection();
+			final Connection two = pool.getConnection();
+			pool.releaseConnection(one);
+			pool.releaseConnection(two);
+			block.set(true);
+			// One creation thread: the first validation blocks it, the second waits in the lane
+			pool.getPoolManager().keepAlive((ConnectionItem) one);
+			assertTrue(validating.await(5, TimeUnit.SECONDS));
+			pool.getPoolManager().keepAlive((ConnectionItem) two);
+			assertEquals(0, pool.idleConnectionsCount());
+
+			pool.shutdown(0);
+			release.countDown();
+			Mockito.verify(first, Mockito.timeout(5000)).close();
+			Mockito.verify(second, Mockito.timeout(5000)).close();
+		}
+		finally {
+			release.countDown();
+			pool.shutdown();
+			registry.shutdown();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class ConnectionTableTest {
+
+	private static ConnectionItemImpl newItem(ConnectionTable table, long id) {
+		return new ConnectionItemImpl(Mockito.mock(java.sql.Connection.class), null, id, table);
+	}
+
+	/**
+	 * A freed slot is reused, and the connection that held it before reads as evicted from then on.
+	 */
+	@Test
+	public void testFreedSlotIsReusedWithNewGeneration() {
+		ConnectionTable table = new ConnectionTable(4);
+		ConnectionItemImpl removed = newItem(table, 1);
+		assertTrue(removed.compareAndSetState(ConnectionItem.STATE_NOT_IN_USE, ConnectionItem.STATE_IN_USE));
+		removed.freeSlot();
+		assertNull(table.getItem(removed.getSlot()));
+
+		ConnectionItemImpl reused = newItem(table, 2);
+		assertEquals(removed.getSlot(), reused.getSlot());
+		assertEquals(ConnectionItem.STATE_EVICTED, removed.getState());
+		assertFalse(removed.compareAndSetState(ConnectionItem.STATE_IN_USE, ConnectionItem.STATE_NOT_IN_USE));
+		assertFalse(removed.evict());
+		assertEquals(ConnectionItem.STATE_NOT_IN_USE, reused.getState());
+		assertSame(reused, table.getItem(reused.getSlot()));
+
+		// Freeing the stale connection again must not free the slot of the new one
+		removed.freeSlot();
+		assertEquals(ConnectionItem.STATE_NOT_IN_USE, reused.getState());
+		assertEquals(1, table.size());
+	}
+
+	/**
+	 * The table grows past its initial capacity a segment at a time, keeping every slot's state.
+	 */
+	@Test
+	public void testGrowth() {
+		ConnectionTable table = new ConnectionTable(1);
+		Set<Integer> slots = new HashSet<Integer>();
+		ConnectionItemImpl first = newItem(table, 0);
+		first.borrowed(System.nanoTime());
+		assertTrue(first.compareAndSetState(ConnectionItem.STATE_NOT_IN_USE, ConnectionItem.STATE_IN_USE));
+		slots.add(first.getSlot());
+		for (int i = 1; i < 200; i++) {
+			assertTrue(slots.add(newItem(table, i).getSlot()));
+		}
+		assertEquals(200, table.size());
+		assertEquals(ConnectionItem.STATE_IN_USE, first.getState());
+		assertEquals(1, table.getBorrowCount(first.getSlot()));
+		assertEquals(ConnectionItem.STATE_NOT_IN_USE, table.getSlotState(199));
+	}
+
+	/**
+	 * A sweep retires idle connections past their lifetime or idle timeout, down to the minimum idle,
+	 * and evicts expired connections in use so they are closed when released.
+	 */
+	@Test
+	public void testHousekeeping() throws SQLException, InterruptedException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("housekeeping");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(4);
+		config.setMinimumIdle(1);
+		ConnectionQueue idle = new ConnectionQueue(4);
+		ConnectionQueue active = new ConnectionQueue(4);
+		PoolManager manager = new PoolManager(config, idle, active, null);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(manager.addConnection());
+		}
+
+		config.setIdleTimeout(1);
+		Thread.sleep(5);
+		manager.housekeep();
+		assertEquals(1, idle.size());
+		// Retired connections are closed in the background
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (dataSource.getOpenConnections() > 1 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, dataSource.getOpenConnections());
+
+		ConnectionItem borrowed = idle.poll();
+		assertTrue(borrowed.compareAndSetState(ConnectionItem.STATE_NOT_IN_USE, ConnectionItem.STATE_IN_USE));
+		active.add(borrowed);
+		config.setMaxLifetime(1);
+		Thread.sleep(5);
+		manager.housekeep();
+		assertEquals(ConnectionItem.STATE_EVICTED, borrowed.getState());
+
+		manager.shutdown();
+	}
+}
@@ -0,0 +1,171 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class DeadlineTest {
+
+	private Connection physical;
+	private Statement statement;
+	private PreparedStatement preparedStatement;
+	private ConnectionPoolImpl pool;
+
+	@Before
+	public void setup() throws SQLException {
+		physical = Mockito.mock(Connection.class);
+		statement = Mockito.mock(Statement.class);
+		preparedStatement = Mockito.mock(PreparedStatement.class);
+		Mockito.when(physical.isValid(Mockito.anyInt())).thenReturn(true);
+		Mockito.when(physical.createStatement()).thenReturn(statement);
+		Mockito.when(physical.prepareStatement(Mockito.anyString())).thenReturn(preparedStatement);
+
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("deadline");
+		config.setDataSource(Mockito.mock(DataSource.class));
+		Mockito.when(config.getDataSource().getConnection()).thenReturn(physical);
+		config.setMaximumPoolSize(1);
+		config.setMinimumIdle(1);
+		pool = new ConnectionPoolImpl(config);
+	}
+
+	@After
+	public void cleanup() throws InterruptedException {
+		pool.shutdown();
+	}
+
+	private static long in(long millis) {
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * Statements get the time left before the deadline as their query timeout, rounded up to whole seconds.
+	 */
+	@Test
+	public void testQueryTimeoutIsTimeLeft() throws SQLException {
+		Connection connection = pool.getConnectionWithDeadline(in(2500));
+		connection.createStatement();
+		connection.prepareStatement("SELECT 1");
+		ArgumentCaptor<Integer> timeout = ArgumentCaptor.forClass(Integer.class);
+		Mockito.verify(statement).setQueryTimeout(timeout.capture());
+		assertTrue(timeout.getValue() >= 1 && timeout.getValue() <= 3);
+		Mockito.verify(preparedStatement).setQueryTimeout(Mockito.anyInt());
+		pool.releaseConnection(connection);
+
+		// The deadline belongs to one checkout only
+		connection = pool.getConnection(1000);
+		connection.createStatement();
+		Mockito.verify(statement, Mockito.times(1)).setQueryTimeout(Mockito.anyInt());
+		pool.releaseConnection(connection);
+	}
+
+	/**
+	 * Once the deadline has passed no statement is started, and a deadline passed before the request fails at once.
+	 */
+	@Test
+	public void testFailFastAfterDeadline() throws SQLException, InterruptedException {
+		Connection connection = pool.getConnectionWithDeadline(in(20));
+		Thread.sleep(50);
+		try {
+			connection.prepareStatement("SELECT 1");
+			fail("Expected the deadline to have passed");
+		}
+		catch (SQLTimeoutException e) {
+			// expected
+		}
+		Mockito.verify(physical, Mockito.never()).prepareStatement(Mockito.anyString());
+		assertFalse(connection.isClosed());
+		pool.releaseConnection(connection);
+		assertEquals(1, pool.idleConnectionsCount());
+
+		try {
+			pool.getConnectionWithDeadline(in(-1));
+			fail("Expected the deadline to have passed");
+		}
+		catch (SQLTimeoutException e) {
+			assertEquals(1, pool.getMetrics().getAcquireTimeouts());
+		}
+	}
+
+	/**
+	 * Each execution gets the time then left as its query timeout, and commits and rollbacks are
+	 * bounded by the time left as their network timeout, which is restored afterwards.
+	 */
+	@Test
+	public void testDeadlineBoundsEachExecuteAndCommit() throws SQLException, InterruptedException {
+		Connection connection = pool.getConnectionWithDeadline(in(200));
+		Statement created = connection.createStatement();
+		created.execute("SELECT 1");
+		Mockito.verify(statement, Mockito.times(2)).setQueryTimeout(1);
+		Mockito.verify(statement).execute("SELECT 1");
+
+		connection.commit();
+		ArgumentCaptor<Integer> networkTimeout = ArgumentCaptor.forClass(Integer.class);
+		Mockito.verify(physical, Mockito.times(2)).setNetworkTimeout(Mockito.any(Executor.class), networkTimeout.capture());
+		assertTrue(networkTimeout.getAllValues().get(0) > 0 && networkTimeout.getAllValues().get(0) <= 200);
+		assertEquals(0, networkTimeout.getAllValues().get(1).intValue());
+		Mockito.verify(physical).commit();
+
+		Thread.sleep(250);
+		try {
+			created.execute("SELECT 2");
+			fail("Expected the deadline to have passed");
+		}
+		catch (SQLTimeoutException e) {
+			// expected
+		}
+		Mockito.verify(statement, Mockito.never()).execute("SELECT 2");
+		try {
+			connection.commit();
+			fail("Expected the deadline to have passed");
+		}
+		catch (SQLTimeoutException e) {
+			// expected
+		}
+		Mockito.verify(physical, Mockito.times(1)).commit();
+
+		// A rollback after the deadline still runs, within the grace
+		connection.rollback();
+		Mockito.verify(physical).setNetworkTimeout(Mockito.any(Executor.class), Mockito.eq(ConnectionItemImpl.ROLLBACK_GRACE_MS));
+		Mockito.verify(physical).rollback();
+		pool.releaseConnection(connection);
+
+		// Without a deadline nothing is bounded, and the earlier query timeout is cleared
+		connection = pool.getConnection(1000);
+		created.execute("SELECT 3");
+		Mockito.verify(statement).setQueryTimeout(0);
+		connection.commit();
+		Mockito.verify(physical, Mockito.times(4)).setNetworkTimeout(Mockito.any(Executor.class), Mockito.anyInt());
+		pool.releaseConnection(connection);
+	}
+
+	/**
+	 * Callable statements get the deadline too, and keep the result set type, concurrency and holdability asked for.
+	 */
+	@Test
+	public void testPrepareCallKeepsItsArguments() throws SQLException {
+		final CallableStatement call = Mockito.mock(CallableStatement.class);
+		Mockito.when(physical.prepareCall(Mockito.anyString(), Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt())).thenReturn(call);
+		Connection connection = pool.getConnectionWithDeadline(in(2500));
+		connection.prepareCall("{call p()}", ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY, ResultSet.CLOSE_CURSORS_AT_COMMIT);
+		Mockito.verify(physical).prepareCall("{call p()}", ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY, ResultSet.CLOSE_CURSORS_AT_COMMIT);
+		Mockito.verify(call).setQueryTimeout(Mockito.anyInt());
+		pool.releaseConnection(connection);
+	}
+}
@@ -0,0 +1,144 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class ExceptionClassifierTest {
+
+	/**
+	 * The default classifier knows the standard states, follows chained exceptions and takes extra states.
+	 */
+	@Test
+	public void testSQLStateClassifier() {
+		SQLStateExceptionClassifier classifier = new SQLStateExceptionClassifier();
+		assertTrue(classifier.isConnectionFatal(new SQLException("Connection failure", "08006")));
+		assertTrue(classifier.isConnectionFatal(new SQLException("Admin shutdown", "57P01")));
+		assertFalse(classifier.isConnectionFatal(new SQLException("Unique violation", "23505")));
+		assertFalse(classifier.isConnectionFatal(new SQLException("No state")));
+
+		SQLException chained = new SQLException("Batch failed", "HY000");
+		chained.setNextException(new SQLException("Connection reset", "08S01"));
+		assertTrue(classifier.isConnectionFatal(chained));
+		assertTrue(classifier.isConnectionFatal(new SQLException("Wrapped", null, new SQLException("Reset", "08S01"))));
+
+		SQLStateExceptionClassifier custom = new SQLStateExceptionClassifier("HY", "42000");
+		assertTrue(custom.isConnectionFatal(new SQLException("General error", "HY000")));
+		assertTrue(custom.isConnectionFatal(new SQLException("Syntax", "42000")));
+		assertFalse(custom.isConnectionFatal(new SQLException("Syntax", "42001")));
+	}
+
+	/**
+	 * A fatal error thrown through a connection evicts it at once and is counted, so the
+	 * connection is closed on release and replaced. Other errors leave the connection alone.
+	 */
+	@Test
+	public void testFatalErrorEvictsConnection() throws SQLException, InterruptedException {
+		DataSource dataSource = Mockito.mock(DataSource.class);
+		Connection broken = Mockito.mock(Connection.class);
+		Connection healthy = Mockito.mock(Connection.class);
+		Mockito.when(dataSource.getConnection()).thenReturn(broken, healthy);
+		Mockito.when(broken.isValid(Mockito.anyInt())).thenReturn(true);
+		Mockito.when(healthy.isValid(Mockito.anyInt())).thenReturn(true);
+		Mockito.doThrow(new SQLException("Duplicate key", "23505")).doThrow(new SQLException("Connection reset", "08S01")).when(broken).commit();
+
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("classifier");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(1);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+
+		Connection connection = pool.getConnection();
+		try {
+			connection.commit();
+			fail("Expected the commit to fail");
+		}
+		catch (SQLException e) {
+			assertEquals("23505", e.getSQLState());
+		}
+		assertEquals(ConnectionItem.STATE_IN_USE, ((ConnectionItem) connection).getState());
+		assertEquals(0, pool.getMetrics().getFatalErrors());
+
+		try {
+			connection.commit();
+			fail("Expected the commit to fail");
+		}
+		catch (SQLException e) {
+			assertEquals("08S01", e.getSQLState());
+		}
+		assertEquals(ConnectionItem.STATE_EVICTED, ((ConnectionItem) connection).getState());
+		assertEquals(1, pool.getMetrics().getFatalErrors());
+
+		pool.releaseConnection(connection);
+		Mockito.verify(broken, Mockito.timeout(5000)).close();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (pool.idleConnectionsCount() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertSame(healthy, ((ConnectionItem) pool.getConnection()).getConnection());
+	}
+
+	/**
+	 * Errors thrown by statements and result sets go through the pool like those of the connection.
+	 */
+	@Test
+	public void testFatalStatementErrorEvictsConnection() throws SQLException, InterruptedException {
+		DataSource dataSource = Mockito.mock(DataSource.class);
+		Connection broken = Mockito.mock(Connection.class);
+		Statement statement = Mockito.mock(Statement.class);
+		PreparedStatement preparedStatement = Mockito.mock(PreparedStatement.class);
+		ResultSet resultSet = Mockito.mock(ResultSet.class);
+		Mockito.when(dataSource.getConnection()).thenReturn(broken);
+		Mockito.when(broken.isValid(Mockito.anyInt())).thenReturn(true);
+		Mockito.when(broken.createStatement()).thenReturn(statement);
+		Mockito.when(broken.prepareStatement(Mockito.anyString())).thenReturn(preparedStatement);
+		Mockito.when(preparedStatement.executeQuery()).thenReturn(resultSet);
+		Mockito.when(resultSet.next()).thenThrow(new SQLException("Duplicate key", "23505"));
+		Mockito.when(statement.execute(Mockito.anyString())).thenThrow(new SQLException("Connection reset", "08S01"));
+
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("classifier-statement");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(1);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+		try {
+			Connection connection = pool.getConnection();
+			PreparedStatement prepared = connection.prepareStatement("SELECT 1");
+			ResultSet result = prepared.executeQuery();
+			assertSame(connection, prepared.getConnection());
+			assertSame(prepared, result.getStatement());
+			try {
+				result.next();
+				fail("Expected the result set to fail");
+			}
+			catch (SQLException e) {
+				assertEquals("23505", e.getSQLState());
+			}
+			assertEquals(ConnectionItem.STATE_IN_USE, ((ConnectionItem) connection).getState());
+
+			try {
+				connection.createStatement().execute("UPDATE t SET x = 1");
+				fail("Expected the statement to fail");
+			}
+			catch (SQLException e) {
+				assertEquals("08S01", e.getSQLState());
+			}
+			assertEquals(ConnectionItem.STATE_EVICTED, ((ConnectionItem) connection).getState());
+			assertEquals(1, pool.getMetrics().getFatalErrors());
+			pool.releaseConnection(connection);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class FailoverConnectionPoolTest {
+
+	private SimulatedDataSource primaryDatabase;
+	private SimulatedDataSource standbyDatabase;
+	private PoolRegistry registry;
+	private FailoverConnectionPool pool;
+
+	private FailoverConnectionPool newPool(FailoverConnectionPool.FailbackPolicy policy) {
+		primaryDatabase = new SimulatedDataSource();
+		standbyDatabase = new SimulatedDataSource();
+		registry = new PoolRegistry(1, 1);
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("failover");
+		config.setDataSource(primaryDatabase);
+		config.setStandbyDataSource(standbyDatabase);
+		config.setMaximumPoolSize(4);
+		config.setMinimumIdle(3);
+		config.setConnectionTimeout(1000);
+		config.setAliveBypassWindow(0);
+		config.setFailoverThreshold(2);
+		config.setFailbackPolicy(policy);
+		config.setFailbackDelay(100);
+		config.setPoolRegistry(registry);
+		pool = new FailoverConnectionPool(config);
+		return pool;
+	}
+
+	@After
+	public void cleanup() throws InterruptedException {
+		pool.shutdown();
+		registry.shutdown();
+	}
+
+	private static int inUse(ConnectionPoolImpl pool) {
+		return pool.totalConnections() - pool.idleConnectionsCount();
+	}
+
+	private static void await(String what, Condition condition) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!condition.holds()) {
+			assertTrue("Timed out waiting for " + what, System.nanoTime() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	/**
+	 * The standby keeps a warm connection while borrowers use the primary. Once enough borrows
+	 * in a row fail, borrowers are switched to the standby, which grows to the primary's minimum idle.
+	 */
+	@Test
+	public void testFailoverOnConsecutiveFailures() throws SQLException, InterruptedException {
+		newPool(FailoverConnectionPool.FailbackPolicy.MANUAL);
+		assertEquals(1, pool.getStandbyPool().totalConnections());
+		Connection connection = pool.getConnection();
+		assertEquals(1, inUse(pool.getPrimaryPool()));
+		pool.releaseConnection(connection);
+		assertEquals(0, inUse(pool.getPrimaryPool()));
+
+		// The primary's idle connections die and it cannot open new ones
+		primaryDatabase.scheduleOutage(0, TimeUnit.MINUTES.toMillis(1));
+		try {
+			pool.getConnection();
+			fail("Expected the first failure to be thrown");
+		}
+		catch (SQLTimeoutException e) {
+			assertTrue(pool.getPrimaryPool().getPoolManager().isFailingToConnect());
+			assertFalse(pool.isFailedOver());
+		}
+		assertTrue(primaryDatabase.getConnectionsRefused() > 0);
+		connection = pool.getConnection();
+		assertTrue(pool.isFailedOver());
+		assertEquals(1, pool.getFailovers());
+		assertEquals(1, inUse(pool.getStandbyPool()));
+		pool.releaseConnection(connection);
+
+		final long start = System.nanoTime();
+		pool.releaseConnection(pool.getConnection());
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+		await("the standby to grow", new Condition() {
+			@Override
+			public boolean holds() {
+				return pool.getStandbyPool().idleConnectionsCount() >= 3;
+			}
+		});
+	}
+
+	/**
+	 * Borrows that time out because every primary connection is in use do not open the circuit.
+	 */
+	@Test
+	public void testBusyPrimaryDoesNotFailOver() throws SQLException {
+		newPool(FailoverConnectionPool.FailbackPolicy.MANUAL);
+		final List<Connection> held = new ArrayList<Connection>();
+		for (int i = 0; i < 4; i++) {
+			held.add(pool.getConnection());
+		}
+		for (int i = 0; i < 3; i++) {
+			try {
+				pool.getConnection();
+				fail("Expected the borrow to time out");
+			}
+			catch (SQLTimeoutException e) {
+				assertFalse(pool.getPrimaryPool().getPoolManager().isFailingToConnect());
+			}
+		}
+		assertFalse(pool.isFailedOver());
+		assertEquals(0, pool.getFailovers());
+		for (Connection connection : held) {
+			pool.releaseConnection(connection);
+		}
+		pool.releaseConnection(pool.getConnection());
+		assertEquals(0, inUse(pool.getStandbyPool()));
+	}
+
+	/**
+	 * With the automatic policy the pool goes back to the primary once it hands out connections again.
+	 */
+	@Test
+	public void testAutomaticFailback() throws SQLException, InterruptedException {
+		newPool(FailoverConnectionPool.FailbackPolicy.AUTOMATIC);
+		pool.failover();
+		pool.releaseConnection(pool.getConnection());
+		assertEquals(1, pool.getFailovers());
+		await("the failback", new Condition() {
+			@Override
+			public boolean holds() {
+				return !pool.isFailedOver();
+			}
+		});
+		Connection connection = pool.getConnection();
+		assertEquals(1, inUse(pool.getPrimaryPool()));
+		pool.releaseConnection(connection);
+	}
+
+	/**
+	 * With the manual policy the pool stays on the standby, however healthy the primary is, until told to fail back.
+	 */
+	@Test
+	public void testManualFailback() throws SQLException, InterruptedException {
+		newPool(FailoverConnectionPool.FailbackPolicy.MANUAL);
+		pool.failover();
+		Thread.sleep(300);
+		assertTrue(pool.isFailedOver());
+		Connection connection = pool.getConnection();
+		assertEquals(0, inUse(pool.getPrimaryPool()));
+		pool.releaseConnection(connection);
+
+		pool.failback();
+		assertFalse(pool.isFailedOver());
+		connection = pool.getConnection();
+		assertEquals(1, inUse(pool.getPrimaryPool()));
+		pool.releaseConnection(connection);
+	}
+}
@@ -0,0 +1,121 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class HostConnectionLimiterTest {
+
+	private File file;
+
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("connection-pool", ".limit");
+		file.deleteOnExit();
+	}
+
+	@After
+	public void cleanup() {
+		file.delete();
+	}
+
+	/**
+	 * Limiters mapping the same file share one host count.
+	 */
+	@Test
+	public void testLimitIsShared() throws IOException {
+		HostConnectionLimiter first = new HostConnectionLimiter(file, 3);
+		HostConnectionLimiter second = new HostConnectionLimiter(file, 3);
+		assertTrue(first.tryAcquire());
+		assertTrue(second.tryAcquire());
+		assertTrue(first.tryAcquire());
+		assertFalse(second.tryAcquire());
+		assertEquals(3, second.getHostConnections());
+
+		first.release();
+		assertTrue(second.tryAcquire());
+		assertEquals(1, first.getLeases());
+	}
+
+	/**
+	 * The connections of a process that died without releasing them are given back when the limit is reached.
+	 */
+	@Test
+	public void testDeadProcessIsReclaimed() throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-version").redirectErrorStream(true).start();
+		process.getInputStream().transferTo(java.io.OutputStream.nullOutputStream());
+		process.waitFor();
+		final long deadPid = process.pid();
+
+		HostConnectionLimiter limiter = new HostConnectionLimiter(file, 3);
+		assertTrue(limiter.tryAcquire());
+
+		// Forge the lease of the dead process holding two connections
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+			buffer.order(ByteOrder.nativeOrder());
+			final int lease = 64 + (HostConnectionLimiter.MAX_LEASES - 1) * 32;
+			buffer.putLong(lease, deadPid);
+			buffer.putInt(lease + 16, 2);
+			buffer.putInt(8, buffer.getInt(8) + 2);
+		}
+		assertEquals(3, limiter.getHostConnections());
+		assertEquals(2, limiter.getLeases());
+
+		assertTrue(limiter.tryAcquire());
+		assertEquals(2, limiter.getHostConnections());
+		assertEquals(2, limiter.getProcessConnections());
+		assertEquals(1, limiter.getLeases());
+	}
+
+	/**
+	 * A pool stops growing at the host limit, and gives its permits back when it shuts down.
+	 */
+	@Test
+	public void testPoolRespectsHostLimit() throws SQLException, InterruptedException, IOException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("host-limit");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(4);
+		config.setMinimumIdle(1);
+		config.setConnectionTimeout(TimeUnit.SECONDS.toMillis(1));
+		config.setHostConnectionLimit(2);
+		config.setHostConnectionLimitFile(file.getPath());
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+		HostConnectionLimiter limiter = HostConnectionLimiter.forFile(file.getPath(), 2);
+
+		Connection first = pool.getConnection();
+		Connection second = pool.getConnection();
+		try {
+			pool.getConnection();
+			fail("Expected the host limit to stop the pool at two connections");
+		}
+		catch (SQLTimeoutException e) {
+			// expected
+		}
+		assertEquals(2, dataSource.getOpenConnections());
+		assertEquals(2, limiter.getHostConnections());
+		assertTrue(pool.getMetrics().getLimitedConnections() > 0);
+
+		pool.releaseConnection(first);
+		pool.releaseConnection(second);
+		pool.shutdown();
+		assertEquals(0, limiter.getHostConnections());
+	}
+}
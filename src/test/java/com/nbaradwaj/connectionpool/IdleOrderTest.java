@@ -0,0 +1,94 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class IdleOrderTest {
+
+	private static final long IDLE_TIMEOUT = 50;
+
+	/**
+	 * In last in, first out mode the connection released last is borrowed next, in the default mode it goes to the back.
+	 */
+	@Test
+	public void testBorrowOrder() throws SQLException, InterruptedException {
+		final Connection[] lifo = reborrow(true);
+		assertSame(lifo[0], lifo[1]);
+		final Connection[] fifo = reborrow(false);
+		assertNotSame(fifo[0], fifo[1]);
+	}
+
+	private static Connection[] reborrow(boolean lifo) throws SQLException, InterruptedException {
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName(lifo ? "lifo" : "fifo");
+		config.setDataSource(new SimulatedDataSource());
+		config.setMaximumPoolSize(4);
+		config.setMinimumIdle(4);
+		config.setLifo(lifo);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+		try {
+			Connection first = pool.getConnection();
+			pool.releaseConnection(first);
+			Connection second = pool.getConnection();
+			pool.releaseConnection(second);
+			return new Connection[] { first, second };
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Under a light load a last in, first out pool keeps reusing one connection, and the idle timeout
+	 * closes the others. A first in, first out pool touches every connection and never shrinks.
+	 */
+	@Test
+	public void testSurplusAgesOut() throws SQLException, InterruptedException {
+		assertEquals(1, idleAfterLightLoad(true));
+		assertEquals(4, idleAfterLightLoad(false));
+	}
+
+	private static int idleAfterLightLoad(boolean lifo) throws SQLException, InterruptedException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName(lifo ? "lifo-idle" : "fifo-idle");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(4);
+		config.setMinimumIdle(1);
+		ConnectionQueue idle = new ConnectionQueue(4, lifo);
+		ConnectionQueue active = new ConnectionQueue(4);
+		PoolManager manager = new PoolManager(config, idle, active, null);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(manager.addConnection());
+		}
+		config.setIdleTimeout(IDLE_TIMEOUT);
+
+		ConnectionItem hot = null;
+		final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT * 3);
+		while (System.nanoTime() < end) {
+			hot = idle.poll();
+			assertTrue(hot.compareAndSetState(ConnectionItem.STATE_NOT_IN_USE, ConnectionItem.STATE_IN_USE));
+			Thread.sleep(1);
+			hot.setLastAccessed(System.nanoTime());
+			assertTrue(hot.compareAndSetState(ConnectionItem.STATE_IN_USE, ConnectionItem.STATE_NOT_IN_USE));
+			idle.offer(hot);
+		}
+		manager.housekeep();
+		try {
+			if (lifo) {
+				assertSame(hot, idle.peek());
+			}
+			return idle.size();
+		}
+		finally {
+			manager.shutdown();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class LazyConnectionTest {
+
+	private ConnectionPoolImpl pool;
+
+	private ConnectionPoolImpl newPool(boolean releaseOnCommit) {
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("lazy");
+		config.setDataSource(new SimulatedDataSource());
+		config.setMaximumPoolSize(2);
+		config.setMinimumIdle(2);
+		config.setLazyConnection(true);
+		config.setLazyReleaseOnCommit(releaseOnCommit);
+		pool = new ConnectionPoolImpl(config);
+		return pool;
+	}
+
+	@After
+	public void cleanup() throws InterruptedException {
+		pool.shutdown();
+	}
+
+	private int inUse() {
+		return pool.totalConnections() - pool.idleConnectionsCount();
+	}
+
+	/**
+	 * A lazy connection that never reaches the database never holds a pooled connection, even with settings made on it.
+	 */
+	@Test
+	public void testUnusedConnectionBorrowsNothing() throws SQLException {
+		newPool(false);
+		Connection first = pool.getConnection();
+		Connection second = pool.getConnection();
+		Connection third = pool.getConnection();
+		first.setAutoCommit(false);
+		first.setReadOnly(true);
+		assertFalse(first.getAutoCommit());
+		assertTrue(first.isReadOnly());
+		first.commit();
+		first.rollback();
+		assertEquals(0, inUse());
+		assertFalse(((LazyConnection) first).isBound());
+
+		first.close();
+		pool.releaseConnection(second);
+		third.close();
+		assertTrue(first.isClosed());
+		assertEquals(0, inUse());
+		assertEquals(2, pool.idleConnectionsCount());
+	}
+
+	/**
+	 * The first statement binds a pooled connection with the recorded settings, and closing gives it back.
+	 */
+	@Test
+	public void testSettingsAreReplayedOnBind() throws SQLException {
+		newPool(false);
+		Connection connection = pool.getConnection();
+		connection.setAutoCommit(false);
+		connection.setReadOnly(true);
+		connection.createStatement();
+		assertTrue(((LazyConnection) connection).isBound());
+		assertEquals(1, inUse());
+		// Bound, the getters read the pooled connection
+		assertFalse(connection.getAutoCommit());
+		assertTrue(connection.isReadOnly());
+
+		connection.commit();
+		assertTrue(((LazyConnection) connection).isBound());
+		connection.close();
+		assertEquals(0, inUse());
+		try {
+			connection.createStatement();
+			fail("Expected a closed connection");
+		}
+		catch (SQLException e) {
+			assertEquals("08003", e.getSQLState());
+		}
+	}
+
+	/**
+	 * Configured to, a lazy connection gives its pooled connection back at the end of every transaction.
+	 */
+	@Test
+	public void testReleaseOnCommit() throws SQLException {
+		newPool(true);
+		Connection connection = pool.getConnection();
+		connection.setAutoCommit(false);
+		connection.createStatement();
+		assertEquals(1, inUse());
+		connection.commit();
+		assertFalse(((LazyConnection) connection).isBound());
+		assertEquals(0, inUse());
+
+		connection.createStatement();
+		assertEquals(1, inUse());
+		assertFalse(connection.getAutoCommit());
+		connection.rollback();
+		assertEquals(0, inUse());
+		connection.close();
+	}
+
+	/**
+	 * Work run with a callback is handed a pooled connection, lazy mode or not.
+	 */
+	@Test
+	public void testCallbacksGetPooledConnections() throws SQLException {
+		newPool(false);
+		assertEquals(Boolean.TRUE, pool.withConnection(new ConnectionCallback<Boolean>() {
+			@Override
+			public Boolean doInConnection(Connection connection) {
+				return connection instanceof ConnectionItem;
+			}
+		}));
+		assertEquals(0, inUse());
+	}
+}
@@ -0,0 +1,227 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class PoolRegistryTest {
+
+	private PoolRegistry registry;
+
+	@Before
+	public void setup() {
+		registry = new PoolRegistry(1, 2);
+	}
+
+	@After
+	public void cleanup() {
+		registry.shutdown();
+	}
+
+	private ConnectionConfig newConfig(String poolName) {
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName(poolName);
+		config.setDataSource(new SimulatedDataSource());
+		config.setMaximumPoolSize(4);
+		config.setMinimumIdle(2);
+		config.setPoolRegistry(registry);
+		return config;
+	}
+
+	/**
+	 * Pools are registered by name while they run, and a name is taken by one pool at a time.
+	 */
+	@Test
+	public void testPoolsAreRegisteredByName() throws InterruptedException {
+		ConnectionPoolImpl first = new ConnectionPoolImpl(newConfig("shard-1"));
+		ConnectionPoolImpl second = new ConnectionPoolImpl(newConfig("shard-2"));
+		assertSame(first, registry.getPool("shard-1"));
+		assertSame(second, registry.getPool("shard-2"));
+		try {
+			new ConnectionPoolImpl(newConfig("shard-1"));
+			fail("Expected the name to be taken");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+
+		first.shutdown();
+		assertNull(registry.getPool("shard-1"));
+		assertEquals(1, registry.getPoolNames().size());
+		ConnectionPoolImpl replacement = new ConnectionPoolImpl(newConfig("shard-1"));
+		assertSame(replacement, registry.getPool("shard-1"));
+		replacement.shutdown();
+		second.shutdown();
+	}
+
+	/**
+	 * A pool that fails to start gives its name back.
+	 */
+	@Test
+	public void testFailedPoolIsUnregistered() throws InterruptedException {
+		ConnectionConfig config = newConfig("broken");
+		config.setHostConnectionLimit(4);
+		config.setHostConnectionLimitFile(new File("no-such-directory", "limit").getPath());
+		try {
+			new ConnectionPoolImpl(config);
+			fail("Expected the host connection limit file not to open");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertNull(registry.getPool("broken"));
+		ConnectionPoolImpl replacement = new ConnectionPoolImpl(newConfig("broken"));
+		assertSame(replacement, registry.getPool("broken"));
+		replacement.shutdown();
+	}
+
+	/**
+	 * Pools with a registry fill up and grow without starting threads of their own.
+	 */
+	@Test
+	public void testPoolsStartNoThreads() throws SQLException, InterruptedException {
+		List<ConnectionPoolImpl> pools = new ArrayList<ConnectionPoolImpl>();
+		for (int i = 0; i < 20; i++) {
+			pools.add(new ConnectionPoolImpl(newConfig("threadless-" + i)));
+		}
+		Connection connection = pools.get(0).getConnection();
+		pools.get(0).releaseConnection(connection);
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			assertFalse(thread.getName(), thread.getName().startsWith("threadless-"));
+		}
+		for (ConnectionPoolImpl pool : pools) {
+			assertEquals(2, pool.idleConnectionsCount());
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * A pool with a lot of connections to create does not hold back the others: turns go round the pools.
+	 */
+	@Test
+	public void testCreationIsRoundRobin() throws InterruptedException {
+		PoolRegistry single = new PoolRegistry(1, 1);
+		try {
+			final CountDownLatch blocked = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			final List<String> order = new ArrayList<String>();
+			PoolRegistry.CreationLane busy = single.newCreationLane(1);
+			PoolRegistry.CreationLane quiet = single.newCreationLane(1);
+			busy.execute(new Runnable() {
+				@Override
+				public void run() {
+					blocked.countDown();
+					try {
+						release.await();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			final CountDownLatch done = new CountDownLatch(6);
+			for (int i = 0; i < 5; i++) {
+				busy.execute(record(order, "busy", done));
+			}
+			quiet.execute(record(order, "quiet", done));
+			release.countDown();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			synchronized (order) {
+				assertEquals("quiet", order.get(0));
+				assertEquals(6, order.size());
+			}
+		}
+		finally {
+			single.shutdown();
+		}
+	}
+
+	/**
+	 * A cancelled lane hands back the tasks it had not started and rejects new ones, like a shut down executor.
+	 */
+	@Test
+	public void testCancelledLaneRejectsTasks() throws InterruptedException {
+		PoolRegistry single = new PoolRegistry(1, 1);
+		try {
+			final CountDownLatch blocked = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			final List<String> order = new ArrayList<String>();
+			PoolRegistry.CreationLane lane = single.newCreationLane(1);
+			lane.execute(new Runnable() {
+				@Override
+				public void run() {
+					blocked.countDown();
+					try {
+						release.await();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			assertTrue(blocked.await(5, TimeUnit.SECONDS));
+			final Runnable queued = record(order, "queued", new CountDownLatch(1));
+			lane.execute(queued);
+			final List<Runnable> dropped = lane.cancel();
+			assertEquals(1, dropped.size());
+			assertSame(queued, dropped.get(0));
+			try {
+				lane.execute(record(order, "late", new CountDownLatch(1)));
+				fail("Expected the cancelled lane to reject the task");
+			}
+			catch (RejectedExecutionException e) {
+				// expected
+			}
+			release.countDown();
+			Thread.sleep(50);
+			synchronized (order) {
+				assertTrue(order.isEmpty());
+			}
+		}
+		finally {
+			single.shutdown();
+		}
+	}
+
+	private static Runnable record(final List<String> order, final String name, final CountDownLatch done) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				synchronized (order) {
+					order.add(name);
+				}
+				done.countDown();
+			}
+		};
+	}
+
+	/**
+	 * The first housekeeping ticks of pools are spread over the period.
+	 */
+	@Test
+	public void testTicksAreSpread() {
+		Set<Long> delays = new HashSet<Long>();
+		for (int i = 0; i < 120; i++) {
+			final long delay = registry.initialDelay(30000);
+			assertTrue(delay > 0 && delay <= 30000);
+			delays.add((delay - 1) / 1000);
+		}
+		assertEquals(30, delays.size());
+	}
+}
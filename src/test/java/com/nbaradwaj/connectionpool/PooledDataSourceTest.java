@@ -0,0 +1,168 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.LatencyDistribution;
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class PooledDataSourceTest {
+
+	private SimulatedDataSource database;
+	private PooledDataSource dataSource;
+
+	private PooledDataSource newDataSource(int maxTotalConnections) {
+		database = new SimulatedDataSource();
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("facade");
+		config.setDataSource(database);
+		config.setMaximumPoolSize(4);
+		config.setMinimumIdle(1);
+		config.setConnectionTimeout(1000);
+		dataSource = new PooledDataSource(config, maxTotalConnections);
+		return dataSource;
+	}
+
+	@After
+	public void cleanup() throws InterruptedException {
+		dataSource.shutdown();
+	}
+
+	private static long later() {
+		return System.nanoTime() + TimeUnit.HOURS.toNanos(1);
+	}
+
+	/**
+	 * Connections without credentials come from the default pool, and every set of credentials gets a pool of its own.
+	 */
+	@Test
+	public void testPoolPerCredentials() throws SQLException {
+		DataSource facade = newDataSource(0);
+		Connection connection = facade.getConnection();
+		connection.close();
+		assertEquals(0, dataSource.getSubPoolCount());
+		assertEquals(1, dataSource.getDefaultPool().idleConnectionsCount());
+
+		facade.getConnection("alice", "secret").close();
+		facade.getConnection("alice", "secret").close();
+		assertEquals(1, dataSource.getSubPoolCount());
+		facade.getConnection("alice", "rotated").close();
+		facade.getConnection("bob", "secret").close();
+		assertEquals(3, dataSource.getSubPoolCount());
+		assertTrue(facade.isWrapperFor(PooledDataSource.class));
+	}
+
+	/**
+	 * Pools of other credentials are shut down once idle for the idle timeout, but not while a connection is in use.
+	 */
+	@Test
+	public void testIdleSubPoolsAreEvicted() throws SQLException {
+		newDataSource(0);
+		Connection held = dataSource.getConnection("alice", "secret");
+		dataSource.getConnection("bob", "secret").close();
+		assertEquals(2, dataSource.getSubPoolCount());
+
+		dataSource.evictIdleSubPools(later(), TimeUnit.MINUTES.toMillis(10));
+		assertEquals(1, dataSource.getSubPoolCount());
+		held.close();
+		dataSource.evictIdleSubPools(later(), TimeUnit.MINUTES.toMillis(10));
+		assertEquals(0, dataSource.getSubPoolCount());
+		assertEquals(1, dataSource.getDefaultPool().totalConnections());
+
+		// Created again on demand
+		dataSource.getConnection("bob", "secret").close();
+		assertEquals(1, dataSource.getSubPoolCount());
+	}
+
+	/**
+	 * The idle timeout of a pool runs from the last time a connection came back, not from the
+	 * last borrow, so a connection held for longer than the timeout does not get its pool shut down.
+	 */
+	@Test
+	public void testIdleTimeoutRunsFromRelease() throws SQLException, InterruptedException {
+		newDataSource(0);
+		Connection held = dataSource.getConnection("alice", "secret");
+		Thread.sleep(200);
+		held.close();
+		dataSource.evictIdleSubPools(System.nanoTime(), 100);
+		assertEquals(1, dataSource.getSubPoolCount());
+		Thread.sleep(200);
+		dataSource.evictIdleSubPools(System.nanoTime(), 100);
+		assertEquals(0, dataSource.getSubPoolCount());
+	}
+
+	/**
+	 * The cap holds across every pool of the data source, and evicting an idle pool makes room for another.
+	 */
+	@Test
+	public void testCapAcrossPools() throws SQLException, InterruptedException {
+		newDataSource(2);
+		dataSource.getConnection("alice", "secret").close();
+		assertEquals(2, database.getOpenConnections());
+		try {
+			dataSource.getConnection("bob", "secret");
+			fail("Expected the cap to leave no connection for a third user");
+		}
+		catch (SQLTimeoutException e) {
+			// expected
+		}
+		assertEquals(2, database.getOpenConnections());
+
+		dataSource.evictIdleSubPools(later(), TimeUnit.MINUTES.toMillis(10));
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (database.getOpenConnections() > 1 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		dataSource.getConnection("bob", "secret").close();
+		assertEquals(2, database.getOpenConnections());
+	}
+
+	/**
+	 * Borrowers arriving together with new credentials share the one pool created for them.
+	 */
+	@Test
+	public void testConcurrentFirstUseCreatesOnePool() throws InterruptedException {
+		final DataSource facade = newDataSource(0);
+		database.setConnectLatency(LatencyDistribution.fixed(50));
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger borrowed = new AtomicInteger();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						final Connection connection = facade.getConnection("alice", "secret");
+						borrowed.incrementAndGet();
+						connection.close();
+					}
+					catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(4, borrowed.get());
+		assertEquals(1, dataSource.getSubPoolCount());
+	}
+}
@@ -0,0 +1,99 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class PrometheusExporterTest {
+
+	private PoolRegistry registry;
+	private ConnectionPoolImpl pool;
+	private PrometheusExporter exporter;
+
+	@Before
+	public void setup() throws IOException {
+		registry = new PoolRegistry(1, 1);
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("exported");
+		config.setDataSource(new SimulatedDataSource());
+		config.setMaximumPoolSize(3);
+		config.setMinimumIdle(2);
+		config.setPoolRegistry(registry);
+		pool = new ConnectionPoolImpl(config);
+		exporter = new PrometheusExporter(registry, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		exporter.start();
+	}
+
+	@After
+	public void cleanup() throws InterruptedException {
+		exporter.stop();
+		pool.shutdown();
+		registry.shutdown();
+	}
+
+	private HttpURLConnection open() throws IOException {
+		final InetSocketAddress address = exporter.getAddress();
+		return (HttpURLConnection) new URL("http", address.getHostString(), address.getPort(), PrometheusExporter.PATH).openConnection();
+	}
+
+	/**
+	 * A scrape serves the gauges, counters and histograms of every registered pool, labelled by pool name.
+	 */
+	@Test
+	public void testScrape() throws IOException, SQLException {
+		Connection connection = pool.getConnection();
+		pool.releaseConnection(connection);
+
+		HttpURLConnection http = open();
+		assertEquals(200, http.getResponseCode());
+		assertEquals(PrometheusExporter.CONTENT_TYPE, http.getContentType());
+		final String body;
+		try (final InputStream stream = http.getInputStream()) {
+			body = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		assertTrue(body, body.contains("# TYPE connectionpool_connections_idle gauge\n"));
+		assertTrue(body, body.contains("connectionpool_connections_idle{poolName=\"exported\"} 2\n"));
+		assertTrue(body, body.contains("connectionpool_connections_active{poolName=\"exported\"} 0\n"));
+		assertTrue(body, body.contains("connectionpool_connections_max{poolName=\"exported\"} 3\n"));
+		assertTrue(body, body.contains("# TYPE connectionpool_acquire_seconds histogram\n"));
+		assertTrue(body, body.contains("connectionpool_acquire_seconds_bucket{poolName=\"exported\",le=\"0.0001\"} "));
+		assertTrue(body, body.contains("connectionpool_acquire_seconds_bucket{poolName=\"exported\",le=\"+Inf\"} 1\n"));
+		assertTrue(body, body.contains("connectionpool_acquire_seconds_count{poolName=\"exported\"} 1\n"));
+		assertTrue(body, body.contains("connectionpool_hold_seconds_count{poolName=\"exported\"} 1\n"));
+		assertTrue(body, body.contains("connectionpool_acquire_timeouts_total{poolName=\"exported\"} 0\n"));
+	}
+
+	/**
+	 * Only reads are served.
+	 */
+	@Test
+	public void testOnlyGetIsAllowed() throws IOException {
+		HttpURLConnection http = open();
+		http.setRequestMethod("POST");
+		http.setDoOutput(true);
+		http.getOutputStream().close();
+		assertEquals(405, http.getResponseCode());
+	}
+
+	/**
+	 * Label values are escaped.
+	 */
+	@Test
+	public void testEscape() {
+		assertEquals("a\\\"b\\\\c\\nd", PrometheusExporter.escape("a\"b\\c\nd"));
+	}
+}
@@ -0,0 +1,278 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import javax.sql.DataSource;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class QueryResultCacheTest {
+
+	private static final String SQL = "SELECT name FROM country WHERE code = ?";
+
+	private ConnectionPoolImpl pool;
+	private QueryResultCache cache;
+	private int executions;
+
+	/**
+	 * Run by the database while it answers a query, if set
+	 */
+	private Runnable duringQuery;
+
+	private ConnectionPoolImpl newPool(boolean lazy, int maxEntries, long ttlMs) throws SQLException {
+		cache = new QueryResultCache(maxEntries, 10);
+		cache.cache(SQL, ttlMs, "country");
+
+		final Connection physical = physical("row ");
+
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("cached");
+		config.setDataSource(Mockito.mock(DataSource.class));
+		Mockito.when(config.getDataSource().getConnection()).thenReturn(physical);
+		config.setMaximumPoolSize(1);
+		config.setMinimumIdle(1);
+		config.setLazyConnection(lazy);
+		config.setResultCache(cache);
+		pool = new ConnectionPoolImpl(config);
+		return pool;
+	}
+
+	/**
+	 * @return a connection whose query results are the prefix followed by the number of queries run so far
+	 */
+	private Connection physical(final String prefix) throws SQLException {
+		final Connection physical = Mockito.mock(Connection.class);
+		Mockito.when(physical.isValid(Mockito.anyInt())).thenReturn(true);
+		Mockito.when(physical.prepareStatement(SQL)).thenAnswer(new Answer<PreparedStatement>() {
+			@Override
+			public PreparedStatement answer(InvocationOnMock invocation) throws SQLException {
+				final PreparedStatement statement = Mockito.mock(PreparedStatement.class);
+				Mockito.when(statement.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+					@Override
+					public ResultSet answer(InvocationOnMock invocation) throws SQLException {
+						executions++;
+						if (duringQuery != null) {
+							duringQuery.run();
+						}
+						return rows(prefix + executions);
+					}
+				});
+				return statement;
+			}
+		});
+		return physical;
+	}
+
+	@After
+	public void cleanup() throws InterruptedException {
+		pool.shutdown();
+	}
+
+	private static ResultSet rows(String name) throws SQLException {
+		final RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+		metaData.setColumnCount(1);
+		metaData.setColumnName(1, "name");
+		metaData.setColumnType(1, Types.VARCHAR);
+		final CachedRowSet rows = RowSetProvider.newFactory().createCachedRowSet();
+		rows.setMetaData(metaData);
+		rows.moveToInsertRow();
+		rows.updateString(1, name);
+		rows.insertRow();
+		rows.moveToCurrentRow();
+		rows.beforeFirst();
+		return rows;
+	}
+
+	private static String query(Connection connection, String code) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(SQL)) {
+			statement.setString(1, code);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				assertTrue(resultSet.next());
+				return resultSet.getString(1);
+			}
+		}
+	}
+
+	private int inUse() {
+		return pool.totalConnections() - pool.idleConnectionsCount();
+	}
+
+	/**
+	 * A hit is served without preparing a statement, and on a lazy connection without borrowing one.
+	 */
+	@Test
+	public void testHitBorrowsNoConnection() throws SQLException {
+		newPool(true, 10, 60000);
+		Connection connection = pool.getConnection();
+		assertEquals("row 1", query(connection, "NL"));
+		assertTrue(((LazyConnection) connection).isBound());
+		connection.close();
+
+		connection = pool.getConnection();
+		assertEquals("row 1", query(connection, "NL"));
+		assertFalse(((LazyConnection) connection).isBound());
+		assertEquals(0, inUse());
+		assertEquals("row 2", query(connection, "BE"));
+		connection.close();
+
+		assertEquals(2, executions);
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	/**
+	 * Results expire after their time to live, and the least recently used is dropped when the cache is full.
+	 */
+	@Test
+	public void testEviction() throws SQLException, InterruptedException {
+		newPool(false, 2, 50);
+		Connection connection = pool.getConnection();
+		assertEquals("row 1", query(connection, "NL"));
+		Thread.sleep(100);
+		assertEquals("row 2", query(connection, "NL"));
+
+		assertEquals("row 3", query(connection, "BE"));
+		assertEquals("row 2", query(connection, "NL"));
+		assertEquals("row 4", query(connection, "DE"));
+		assertEquals(2, cache.size());
+		assertEquals("row 2", query(connection, "NL"));
+		assertEquals("row 5", query(connection, "BE"));
+		pool.releaseConnection(connection);
+	}
+
+	/**
+	 * Invalidating a table drops the results read from it, and other statements are not cached.
+	 */
+	@Test
+	public void testInvalidation() throws SQLException {
+		newPool(false, 10, 60000);
+		Connection connection = pool.getConnection();
+		assertEquals("row 1", query(connection, "NL"));
+		cache.invalidate("other");
+		assertEquals("row 1", query(connection, "NL"));
+		cache.invalidate("Country");
+		assertEquals(0, cache.size());
+		assertEquals("row 2", query(connection, "NL"));
+
+		assertFalse(cache.isCacheable("SELECT 1"));
+		pool.releaseConnection(connection);
+	}
+
+	/**
+	 * A miss whose table is invalidated while it reads the rows does not keep them, so the rows
+	 * from before the write are never served after it.
+	 */
+	@Test
+	public void testInvalidationDuringMissIsNotLost() throws SQLException {
+		newPool(false, 10, 60000);
+		Connection connection = pool.getConnection();
+		duringQuery = new Runnable() {
+			@Override
+			public void run() {
+				cache.invalidate("country");
+			}
+		};
+		assertEquals("row 1", query(connection, "NL"));
+		assertEquals(0, cache.size());
+		duringQuery = null;
+		assertEquals("row 2", query(connection, "NL"));
+		assertEquals("row 2", query(connection, "NL"));
+		assertEquals(1, cache.size());
+
+		duringQuery = new Runnable() {
+			@Override
+			public void run() {
+				cache.invalidateAll();
+			}
+		};
+		assertEquals("row 3", query(connection, "BE"));
+		assertEquals(0, cache.size());
+		pool.releaseConnection(connection);
+	}
+
+	/**
+	 * Changing a date after using it as a parameter does not change the key it was cached under.
+	 */
+	@Test
+	public void testDateParameterIsCopied() throws SQLException {
+		newPool(false, 10, 60000);
+		Connection connection = pool.getConnection();
+		final Timestamp at = new Timestamp(1000000L);
+		assertEquals("row 1", queryAt(connection, at));
+		at.setTime(2000000L);
+		assertEquals("row 1", queryAt(connection, new Timestamp(1000000L)));
+		assertEquals("row 2", queryAt(connection, at));
+		pool.releaseConnection(connection);
+	}
+
+	private static String queryAt(Connection connection, Timestamp at) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(SQL)) {
+			statement.setTimestamp(1, at);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				assertTrue(resultSet.next());
+				return resultSet.getString(1);
+			}
+		}
+	}
+
+	/**
+	 * Pools of other credentials sharing the cache, and connections switched to another schema,
+	 * never get each other's results.
+	 */
+	@Test
+	public void testResultsAreScopedToUserAndSchema() throws SQLException, InterruptedException {
+		cache = new QueryResultCache(10, 10);
+		cache.cache(SQL, 60000, "country");
+		final DataSource database = Mockito.mock(DataSource.class);
+		Mockito.when(database.getConnection(Mockito.anyString(), Mockito.anyString())).thenAnswer(new Answer<Connection>() {
+			@Override
+			public Connection answer(InvocationOnMock invocation) throws SQLException {
+				return physical(invocation.getArguments()[0] + " ");
+			}
+		});
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("cached");
+		config.setDataSource(database);
+		config.setUsername("alice");
+		config.setPassword("alice-secret");
+		config.setMaximumPoolSize(1);
+		config.setMinimumIdle(1);
+		config.setResultCache(cache);
+		PooledDataSource dataSource = new PooledDataSource(config);
+		pool = dataSource.getDefaultPool();
+		try {
+			Connection connection = dataSource.getConnection();
+			assertEquals("alice 1", query(connection, "NL"));
+			connection.close();
+
+			connection = dataSource.getConnection("bob", "bob-secret");
+			assertEquals("bob 2", query(connection, "NL"));
+			assertEquals("bob 2", query(connection, "NL"));
+			connection.setSchema("archive");
+			assertEquals("bob 3", query(connection, "NL"));
+			connection.close();
+
+			connection = dataSource.getConnection();
+			assertEquals("alice 1", query(connection, "NL"));
+			connection.close();
+			assertEquals(2, cache.getHits());
+		}
+		finally {
+			dataSource.shutdown();
+		}
+	}
+}
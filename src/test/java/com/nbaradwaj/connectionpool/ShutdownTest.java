@@ -0,0 +1,115 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.LatencyDistribution;
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class ShutdownTest {
+
+	private static ConnectionPoolImpl newPool(SimulatedDataSource dataSource, int size) {
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("shutdown");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(size);
+		config.setConnectionTimeout(TimeUnit.SECONDS.toMillis(5));
+		return new ConnectionPoolImpl(config);
+	}
+
+	/**
+	 * Closing many connections should take about one close, not one close per connection.
+	 */
+	@Test
+	public void testShutdownClosesConnectionsInParallel() throws InterruptedException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		ConnectionPoolImpl pool = newPool(dataSource, 40);
+		assertEquals(40, dataSource.getOpenConnections());
+		dataSource.setCloseLatency(LatencyDistribution.fixed(200));
+
+		final long start = System.nanoTime();
+		pool.shutdown();
+		final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertEquals(0, dataSource.getOpenConnections());
+		assertEquals(0, pool.totalConnections());
+		assertTrue("shutdown took " + elapsed + "ms", elapsed < 2000);
+		assertTrue(pool.isShutdown());
+	}
+
+	/**
+	 * New borrowers are rejected, waiting borrowers are woken, and a connection in use is
+	 * closed once it is released within the drain timeout.
+	 */
+	@Test
+	public void testShutdownDrainsBorrowers() throws Exception {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		final ConnectionPoolImpl pool = newPool(dataSource, 1);
+		final Connection borrowed = pool.getConnection();
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		Future<Object> waiter = executor.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws SQLException {
+				return pool.getConnection();
+			}
+		});
+		Thread.sleep(100);
+		executor.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				Thread.sleep(300);
+				pool.releaseConnection(borrowed);
+				return null;
+			}
+		});
+
+		final long start = System.nanoTime();
+		pool.shutdown(TimeUnit.SECONDS.toMillis(5));
+		// Woken by the release, not by the drain timeout
+		final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("shutdown took " + elapsed + "ms", elapsed < 2000);
+		assertTrue(borrowed.isClosed());
+		assertEquals(0, dataSource.getOpenConnections());
+		try {
+			waiter.get(1, TimeUnit.SECONDS);
+			fail("Expected the waiting borrower to be rejected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SQLException);
+			assertFalse(e.getCause() instanceof SQLTimeoutException);
+		}
+		try {
+			pool.getConnection();
+			fail("Expected new borrowers to be rejected");
+		} catch (SQLException e) {
+			assertFalse(e instanceof SQLTimeoutException);
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Connections still in use when the drain timeout expires are closed anyway.
+	 */
+	@Test
+	public void testShutdownClosesUnreleasedConnections() throws SQLException, InterruptedException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		ConnectionPoolImpl pool = newPool(dataSource, 2);
+		Connection leaked = pool.getConnection();
+		pool.shutdown(100);
+		assertTrue(leaked.isClosed());
+		assertEquals(0, dataSource.getOpenConnections());
+		// Releasing it late is harmless
+		pool.releaseConnection(leaked);
+		assertEquals(0, pool.totalConnections());
+	}
+}
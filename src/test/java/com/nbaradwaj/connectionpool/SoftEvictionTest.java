@@ -0,0 +1,101 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.LatencyDistribution;
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class SoftEvictionTest {
+
+	private static ConnectionConfig newConfig(SimulatedDataSource dataSource) {
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("soft-eviction");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(4);
+		return config;
+	}
+
+	private static void awaitOpen(SimulatedDataSource dataSource, int open) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (dataSource.getOpenConnections() != open && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(open, dataSource.getOpenConnections());
+	}
+
+	private static void awaitTotal(ConnectionPoolImpl pool, int total) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (pool.totalConnections() != total && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(total, pool.totalConnections());
+	}
+
+	/**
+	 * Idle connections are closed at once, the borrowed one when it comes back, and the pool refills.
+	 */
+	@Test
+	public void testSoftEvictConnections() throws SQLException, InterruptedException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(newConfig(dataSource));
+		Connection borrowed = pool.getConnection();
+		assertEquals(4, dataSource.getOpenConnections());
+
+		dataSource.setConnectLatency(LatencyDistribution.fixed(200));
+		pool.softEvictConnections();
+		awaitOpen(dataSource, 1);
+		assertEquals(ConnectionItem.STATE_EVICTED, ((ConnectionItem) borrowed).getState());
+		assertEquals(1, pool.getMetrics().getSoftEvictions());
+
+		awaitTotal(pool, 4);
+		pool.releaseConnection(borrowed);
+		awaitTotal(pool, 4);
+		awaitOpen(dataSource, 4);
+		assertTrue(((ConnectionItem) borrowed).getConnection().isClosed());
+		assertEquals(8, dataSource.getConnectionsCreated());
+	}
+
+	/**
+	 * A connection-fatal SQLState seen on any connection soft evicts the whole pool when enabled.
+	 */
+	@Test
+	public void testFatalErrorTriggersSoftEviction() throws SQLException, InterruptedException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		ConnectionConfig config = newConfig(dataSource);
+		config.setSoftEvictOnFatalError(true);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+
+		Connection connection = pool.getConnection();
+		dataSource.scheduleOutage(0, 100);
+		try {
+			connection.commit();
+			fail("Expected the commit to fail during the outage");
+		} catch (SQLException e) {
+			assertEquals(SimulatedDataSource.SQLSTATE_CONNECTION_FAILURE, e.getSQLState());
+		}
+		assertEquals(1, pool.getMetrics().getSoftEvictions());
+		assertEquals(ConnectionItem.STATE_EVICTED, ((ConnectionItem) connection).getState());
+
+		// Errors from connections that are already evicted do not evict the pool again
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			// expected
+		}
+		assertEquals(1, pool.getMetrics().getSoftEvictions());
+		pool.releaseConnection(connection);
+
+		Thread.sleep(150);
+		pool.softEvictConnections();
+		awaitTotal(pool, 4);
+		Connection fresh = pool.getConnection();
+		assertTrue(fresh.isValid(1));
+		pool.releaseConnection(fresh);
+	}
+}
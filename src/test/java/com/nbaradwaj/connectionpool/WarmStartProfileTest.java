@@ -0,0 +1,100 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class WarmStartProfileTest {
+
+	private File file;
+
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("connection-pool", ".warmstart");
+		file.delete();
+	}
+
+	@After
+	public void cleanup() {
+		file.delete();
+	}
+
+	/**
+	 * A stored profile loads back with the observed peaks, blended with what it was loaded from.
+	 */
+	@Test
+	public void testStoreAndLoad() throws IOException {
+		WarmStartProfile profile = WarmStartProfile.load(file);
+		assertEquals(0, profile.predictDemand(10));
+		profile.recordInUse(3);
+		profile.recordInUse(5);
+		profile.recordInUse(2);
+		profile.rollUp(10);
+		profile.recordConnect(TimeUnit.MILLISECONDS.toNanos(4));
+		profile.store(file);
+
+		WarmStartProfile loaded = WarmStartProfile.load(file);
+		assertEquals(5, loaded.getPeakInUse());
+		assertEquals(5, loaded.getPeakInUse(10));
+		assertEquals(5, loaded.predictDemand(9));
+		assertEquals(0, loaded.predictDemand(11));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(4), loaded.getConnectLatencyNanos());
+
+		// A quieter run pulls the hour down gradually
+		loaded.recordInUse(1);
+		loaded.rollUp(10);
+		assertEquals(2, loaded.getPeakInUse(10));
+	}
+
+	/**
+	 * A pool with a profile opens the predicted connections before it takes traffic, and records its load on shutdown.
+	 */
+	@Test
+	public void testPoolPrefillsFromProfile() throws IOException, SQLException, InterruptedException {
+		Properties properties = new Properties();
+		properties.setProperty("peakInUse", "6");
+		for (int hour = 0; hour < 24; hour++) {
+			properties.setProperty("hour." + hour, "6");
+		}
+		try (final OutputStream stream = new FileOutputStream(file)) {
+			properties.store(stream, null);
+		}
+
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("warm-start");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(8);
+		config.setMinimumIdle(1);
+		config.setWarmStartFile(file.getPath());
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+		assertEquals(6, pool.totalConnections());
+		assertEquals(6, dataSource.getOpenConnections());
+
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int i = 0; i < 3; i++) {
+			connections.add(pool.getConnection());
+		}
+		pool.releaseConnections(connections);
+		pool.shutdown();
+
+		WarmStartProfile saved = WarmStartProfile.load(file);
+		assertEquals(4, saved.getPeakInUse());
+		assertTrue(saved.getConnectLatencyNanos() > 0);
+	}
+}
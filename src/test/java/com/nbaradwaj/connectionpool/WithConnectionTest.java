@@ -0,0 +1,212 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class WithConnectionTest {
+
+	private SimulatedDataSource dataSource;
+	private ConnectionPoolImpl pool;
+
+	@Before
+	public void setup() {
+		dataSource = new SimulatedDataSource();
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("with-connection");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(2);
+		pool = new ConnectionPoolImpl(config);
+	}
+
+	@After
+	public void cleanup() throws InterruptedException {
+		pool.shutdown();
+	}
+
+	/**
+	 * The connection is released whether the work succeeds or throws.
+	 */
+	@Test
+	public void testConnectionIsAlwaysReleased() throws SQLException {
+		assertEquals("done", pool.withConnection(new ConnectionCallback<String>() {
+			@Override
+			public String doInConnection(Connection connection) {
+				assertEquals(1, pool.idleConnectionsCount());
+				return "done";
+			}
+		}));
+		assertEquals(2, pool.idleConnectionsCount());
+
+		try {
+			pool.withConnection(new ConnectionCallback<Void>() {
+				@Override
+				public Void doInConnection(Connection connection) {
+					throw new IllegalStateException("failed");
+				}
+			});
+			fail("Expected the work's exception");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(2, pool.idleConnectionsCount());
+		assertEquals(2, dataSource.getOpenConnections());
+	}
+
+	/**
+	 * A connection the work found broken is evicted rather than returned.
+	 */
+	@Test
+	public void testFatalFailureEvictsConnection() throws SQLException, InterruptedException {
+		final AtomicReference<Connection> used = new AtomicReference<Connection>();
+		try {
+			pool.withConnection(new ConnectionCallback<Void>() {
+				@Override
+				public Void doInConnection(Connection connection) throws SQLException {
+					used.set(connection);
+					throw new SQLException("Connection reset", "08006");
+				}
+			});
+			fail("Expected the work's exception");
+		}
+		catch (SQLException e) {
+			assertEquals("08006", e.getSQLState());
+		}
+		assertEquals(ConnectionItem.STATE_EVICTED, ((ConnectionItem) used.get()).getState());
+		// Evicted connections are closed in the background
+		final Connection physical = ((ConnectionItem) used.get()).getConnection();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!physical.isClosed() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(physical.isClosed());
+	}
+
+	/**
+	 * Transient failures are retried until the work succeeds.
+	 */
+	@Test
+	public void testTransientFailureIsRetried() throws SQLException {
+		final AtomicInteger attempts = new AtomicInteger();
+		assertEquals(Integer.valueOf(3), pool.withConnection(new ConnectionCallback<Integer>() {
+			@Override
+			public Integer doInConnection(Connection connection) throws SQLException {
+				if (attempts.incrementAndGet() < 3) {
+					throw new SQLTransientException("Lock wait timeout");
+				}
+				return attempts.get();
+			}
+		}, TimeUnit.SECONDS.toMillis(5)));
+		assertEquals(2, pool.idleConnectionsCount());
+	}
+
+	/**
+	 * Retries stop at the deadline, and failures that cannot succeed on a retry are not retried.
+	 */
+	@Test
+	public void testRetriesAreBounded() {
+		final AtomicInteger attempts = new AtomicInteger();
+		final long start = System.nanoTime();
+		try {
+			pool.withConnection(new ConnectionCallback<Void>() {
+				@Override
+				public Void doInConnection(Connection connection) throws SQLException {
+					attempts.incrementAndGet();
+					throw new SQLTransientException("Lock wait timeout");
+				}
+			}, 300);
+			fail("Expected the work's exception");
+		}
+		catch (SQLException e) {
+			assertTrue(e instanceof SQLTransientException);
+		}
+		assertTrue(attempts.get() > 1);
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+		attempts.set(0);
+		try {
+			pool.withConnection(new ConnectionCallback<Void>() {
+				@Override
+				public Void doInConnection(Connection connection) throws SQLException {
+					attempts.incrementAndGet();
+					throw new SQLSyntaxErrorException("Syntax error");
+				}
+			}, TimeUnit.SECONDS.toMillis(5));
+			fail("Expected the work's exception");
+		}
+		catch (SQLException e) {
+			assertTrue(e instanceof SQLSyntaxErrorException);
+		}
+		assertEquals(1, attempts.get());
+	}
+
+	/**
+	 * Work that broke its connection may have partly run: it is not retried, and the connection is evicted.
+	 */
+	@Test
+	public void testFatalFailureIsNotRetried() {
+		final AtomicInteger attempts = new AtomicInteger();
+		final AtomicReference<Connection> used = new AtomicReference<Connection>();
+		try {
+			pool.withConnection(new ConnectionCallback<Void>() {
+				@Override
+				public Void doInConnection(Connection connection) throws SQLException {
+					attempts.incrementAndGet();
+					used.set(connection);
+					throw new SQLException("Connection reset", "08S01");
+				}
+			}, TimeUnit.SECONDS.toMillis(5));
+			fail("Expected the work's exception");
+		}
+		catch (SQLException e) {
+			assertEquals("08S01", e.getSQLState());
+		}
+		assertEquals(1, attempts.get());
+		assertEquals(ConnectionItem.STATE_EVICTED, ((ConnectionItem) used.get()).getState());
+	}
+
+	/**
+	 * Borrowing is retried when it times out, since the work has not run yet.
+	 */
+	@Test
+	public void testBorrowIsRetried() throws SQLException, InterruptedException {
+		final Connection first = pool.getConnection();
+		final Connection second = pool.getConnection();
+		final Thread releaser = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(1500);
+					pool.releaseConnection(first);
+				}
+				catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		releaser.start();
+		final long start = System.nanoTime();
+		assertEquals("done", pool.withConnection(new ConnectionCallback<String>() {
+			@Override
+			public String doInConnection(Connection connection) {
+				return "done";
+			}
+		}, TimeUnit.SECONDS.toMillis(5)));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1000);
+		releaser.join();
+		pool.releaseConnection(second);
+	}
+}
@@ -0,0 +1,134 @@
+package com.nbaradwaj.connectionpool;
+
+import static org.junit.Assert.*;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.nbaradwaj.connectionpool.simulation.LatencyDistribution;
+import com.nbaradwaj.connectionpool.simulation.SimulatedDataSource;
+
+public class WriteCoalescerTest {
+
+	/**
+	 * Many small writes are committed in far fewer round trips than one per write.
+	 */
+	@Test
+	public void testWritesAreCoalesced() throws Exception {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		dataSource.setStatementLatency(LatencyDistribution.fixed(20));
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("coalescer");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(2);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+
+		WriteCoalescer coalescer = new WriteCoalescer(pool, config);
+		coalescer.setWriters(2);
+		coalescer.setMaxBatchSize(50);
+		coalescer.setLingerTime(5);
+		coalescer.start();
+
+		final long start = System.nanoTime();
+		List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < 200; i++) {
+			results.add(coalescer.submit("INSERT INTO events (id) VALUES (?)", i));
+		}
+		for (CompletableFuture<Integer> result : results) {
+			assertEquals(Integer.valueOf(1), result.get(10, TimeUnit.SECONDS));
+		}
+		final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		// One at a time this would take 200 * (execute + commit) = 8 seconds
+		assertTrue("took " + elapsed + "ms", elapsed < 2000);
+		coalescer.shutdown();
+		assertEquals(2, pool.idleConnectionsCount());
+	}
+
+	/**
+	 * When a batch fails, each statement is retried alone so only the bad one fails.
+	 */
+	@Test
+	public void testFailuresAreAttributedToTheirStatement() throws Exception {
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("coalescer-errors");
+		config.setMaximumPoolSize(1);
+		config.setDataSource(Mockito.mock(DataSource.class));
+		Connection connection = Mockito.mock(Connection.class);
+		PreparedStatement statement = Mockito.mock(PreparedStatement.class);
+		Mockito.when(config.getDataSource().getConnection()).thenReturn(connection);
+		Mockito.when(connection.isValid(Mockito.anyInt())).thenReturn(true);
+		Mockito.when(connection.getAutoCommit()).thenReturn(true);
+		Mockito.when(connection.prepareStatement(Mockito.anyString())).thenReturn(statement);
+		Mockito.when(statement.executeBatch()).thenThrow(new BatchUpdateException());
+		Mockito.when(statement.executeUpdate()).thenReturn(1).thenThrow(new SQLException("duplicate key", "23505")).thenReturn(1);
+		ConnectionPoolImpl pool = new ConnectionPoolImpl(config);
+
+		WriteCoalescer coalescer = new WriteCoalescer(pool, config);
+		coalescer.setLingerTime(200);
+		coalescer.start();
+		CompletableFuture<Integer> first = coalescer.submit("INSERT INTO t VALUES (?)", 1);
+		CompletableFuture<Integer> second = coalescer.submit("INSERT INTO t VALUES (?)", 2);
+		CompletableFuture<Integer> third = coalescer.submit("INSERT INTO t VALUES (?)", 3);
+
+		assertEquals(Integer.valueOf(1), first.get(5, TimeUnit.SECONDS));
+		try {
+			second.get(5, TimeUnit.SECONDS);
+			fail("Expected the second write to fail");
+		} catch (ExecutionException e) {
+			assertEquals("23505", ((SQLException) e.getCause()).getSQLState());
+		}
+		assertEquals(Integer.valueOf(1), third.get(5, TimeUnit.SECONDS));
+		Mockito.verify(connection, Mockito.atLeastOnce()).rollback();
+		coalescer.shutdown();
+	}
+
+	/**
+	 * Statements submitted to a coalescer that is not running fail at once.
+	 */
+	@Test
+	public void testSubmitWhenNotRunning() throws Exception {
+		ConnectionConfig config = new ConnectionConfig();
+		WriteCoalescer coalescer = new WriteCoalescer(Mockito.mock(ConnectionPool.class), config);
+		assertTrue(coalescer.submit("INSERT INTO t VALUES (1)").isCompletedExceptionally());
+	}
+
+	/**
+	 * A runtime exception while writing fails that batch only, and the writer goes on with the next.
+	 */
+	@Test
+	public void testRuntimeExceptionFailsBatch() throws Exception {
+		ConnectionConfig config = new ConnectionConfig();
+		ConnectionPool pool = Mockito.mock(ConnectionPool.class);
+		Mockito.when(pool.getConnection()).thenThrow(new IllegalStateException("broken pool")).thenThrow(new SQLException("no connection"));
+		WriteCoalescer coalescer = new WriteCoalescer(pool, config);
+		coalescer.setWriters(1);
+		coalescer.setLingerTime(0);
+		coalescer.start();
+
+		try {
+			coalescer.submit("INSERT INTO t VALUES (1)").get(5, TimeUnit.SECONDS);
+			fail("Expected the write to fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+		}
+		try {
+			coalescer.submit("INSERT INTO t VALUES (2)").get(5, TimeUnit.SECONDS);
+			fail("Expected the write to fail");
+		} catch (ExecutionException e) {
+			assertEquals("no connection", e.getCause().getMessage());
+		}
+		coalescer.shutdown();
+	}
+}
@@ -0,0 +1,111 @@
+package com.nbaradwaj.connectionpool.simulation;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A source of simulated latencies, used for connect, validation, query and hold times.
+ */
+public abstract class LatencyDistribution {
+
+	/**
+	 * Draw the next latency.
+	 *
+	 * @param random the random source of the calling thread
+	 * @return the latency in nanoseconds, never negative
+	 */
+	public abstract long sampleNanos(Random random);
+
+	/**
+	 * No latency at all.
+	 */
+	public static LatencyDistribution none() {
+		return fixed(0);
+	}
+
+	/**
+	 * The same latency every time.
+	 */
+	public static LatencyDistribution fixed(final long millis) {
+		final long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		return new LatencyDistribution() {
+			@Override
+			public long sampleNanos(Random random) {
+				return nanos;
+			}
+
+			@Override
+			public String toString() {
+				return "fixed(" + millis + "ms)";
+			}
+		};
+	}
+
+	/**
+	 * A latency drawn uniformly between the two bounds.
+	 */
+	public static LatencyDistribution uniform(final long minMillis, final long maxMillis) {
+		final long min = TimeUnit.MILLISECONDS.toNanos(minMillis);
+		final long range = TimeUnit.MILLISECONDS.toNanos(maxMillis) - min;
+		return new LatencyDistribution() {
+			@Override
+			public long sampleNanos(Random random) {
+				return min + (long) (random.nextDouble() * range);
+			}
+
+			@Override
+			public String toString() {
+				return "uniform(" + minMillis + "ms.." + maxMillis + "ms)";
+			}
+		};
+	}
+
+	/**
+	 * An exponentially distributed latency with the given mean, which gives the long tail
+	 * typical of network round trips.
+	 */
+	public static LatencyDistribution exponential(final long meanMillis) {
+		final double mean = TimeUnit.MILLISECONDS.toNanos(meanMillis);
+		return new LatencyDistribution() {
+			@Override
+			public long sampleNanos(Random random) {
+				return (long) (-mean * Math.log(1.0 - random.nextDouble()));
+			}
+
+			@Override
+			public String toString() {
+				return "exponential(mean=" + meanMillis + "ms)";
+			}
+		};
+	}
+
+	/**
+	 * Mostly the <code>normal</code> latency, but with the given probability a <code>stall</code>
+	 * latency instead, to simulate network stalls.
+	 */
+	public static LatencyDistribution withStalls(final LatencyDistribution normal, final double stallProbability, final LatencyDistribution stall) {
+		return new LatencyDistribution() {
+			@Override
+			public long sampleNanos(Random random) {
+				return random.nextDouble() < stallProbability ? stall.sampleNanos(random) : normal.sampleNanos(random);
+			}
+
+			@Override
+			public String toString() {
+				return normal + " with " + stallProbability + " stalls of " + stall;
+			}
+		};
+	}
+
+	/**
+	 * Sleep for a latency drawn from this distribution.
+	 *
+	 * @param random the random source of the calling thread
+	 */
+	public void sleep(Random random) throws InterruptedException {
+		final long nanos = sampleNanos(random);
+		if (nanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package com.nbaradwaj.connectionpool.simulation;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.nbaradwaj.connectionpool.ConnectionConfig;
+import com.nbaradwaj.connectionpool.ConnectionPool;
+import com.nbaradwaj.connectionpool.ConnectionPoolImpl;
+
+/**
+ * Drives a {@link ConnectionPool} from a number of borrower threads for a fixed duration and
+ * reports throughput, acquisition latency percentiles and timeout rates. Combined with a
+ * {@link SimulatedDataSource} this reproduces slow connects, stalls and outages locally.
+ *
+ * <pre>
+ *   LoadGenerator load = new LoadGenerator(pool);
+ *   load.setThreads(50);
+ *   load.setHoldTime(LatencyDistribution.exponential(5));
+ *   LoadReport report = load.run(TimeUnit.SECONDS.toMillis(10));
+ * </pre>
+ */
+public class LoadGenerator {
+
+	private final ConnectionPool pool;
+	private int threads = 8;
+	private LatencyDistribution holdTime = LatencyDistribution.fixed(1);
+	private LatencyDistribution thinkTime = LatencyDistribution.none();
+	private boolean executeStatement;
+
+	public LoadGenerator(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Set the number of concurrent borrower threads.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads cannot be less than 1");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Set how long each borrower holds a connection before releasing it.
+	 */
+	public void setHoldTime(LatencyDistribution holdTime) {
+		this.holdTime = holdTime;
+	}
+
+	/**
+	 * Set how long each borrower waits between releasing a connection and borrowing the next.
+	 */
+	public void setThinkTime(LatencyDistribution thinkTime) {
+		this.thinkTime = thinkTime;
+	}
+
+	/**
+	 * Set whether each borrower executes a statement on the borrowed connection, so that
+	 * dead connections surface as errors.
+	 */
+	public void setExecuteStatement(boolean executeStatement) {
+		this.executeStatement = executeStatement;
+	}
+
+	/**
+	 * Run the load for the given duration and wait for every borrower to finish.
+	 *
+	 * @param durationMs how long to generate load
+	 * @return the aggregated results
+	 */
+	public LoadReport run(long durationMs) throws InterruptedException {
+		final Borrower[] borrowers = new Borrower[threads];
+		final CountDownLatch startGate = new CountDownLatch(1);
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+		final Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			borrowers[i] = new Borrower(startGate, deadline);
+			workers[i] = new Thread(borrowers[i], "load-generator-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		startGate.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return new LoadReport(borrowers, System.nanoTime() - start);
+	}
+
+	/**
+	 * One borrower thread and the measurements it took.
+	 */
+	final class Borrower implements Runnable {
+		private final CountDownLatch startGate;
+		private final long deadline;
+		long[] acquisitionNanos = new long[1024];
+		int borrowed;
+		int timeouts;
+		int errors;
+
+		Borrower(CountDownLatch startGate, long deadline) {
+			this.startGate = startGate;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void run() {
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+			try {
+				startGate.await();
+				while (System.nanoTime() - deadline < 0) {
+					final long start = System.nanoTime();
+					Connection connection;
+					try {
+						connection = pool.getConnection();
+					} catch (SQLTimeoutException e) {
+						timeouts++;
+						continue;
+					} catch (SQLException e) {
+						errors++;
+						continue;
+					}
+					record(System.nanoTime() - start);
+					try {
+						if (executeStatement) {
+							Statement statement = connection.createStatement();
+							statement.execute("SELECT 1");
+							statement.close();
+						}
+						holdTime.sleep(random);
+					} catch (SQLException e) {
+						errors++;
+					} finally {
+						try {
+							pool.releaseConnection(connection);
+						} catch (SQLException e) {
+							errors++;
+						}
+					}
+					thinkTime.sleep(random);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void record(long nanos) {
+			if (borrowed == acquisitionNanos.length) {
+				acquisitionNanos = Arrays.copyOf(acquisitionNanos, borrowed * 2);
+			}
+			acquisitionNanos[borrowed++] = nanos;
+		}
+	}
+
+	/**
+	 * Run a load test against a simulated database from the command line.
+	 *
+	 * <pre>
+	 *   LoadGenerator [threads] [durationSeconds] [maximumPoolSize] [meanHoldMs] [meanConnectMs]
+	 * </pre>
+	 */
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		final long durationMs = TimeUnit.SECONDS.toMillis(args.length > 1 ? Long.parseLong(args[1]) : 10);
+		final int poolSize = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		final long holdMs = args.length > 3 ? Long.parseLong(args[3]) : 5;
+		final long connectMs = args.length > 4 ? Long.parseLong(args[4]) : 50;
+
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		dataSource.setConnectLatency(LatencyDistribution.exponential(connectMs));
+		dataSource.setValidationLatency(LatencyDistribution.uniform(0, 1));
+
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("load-generator");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(poolSize);
+
+		LoadGenerator load = new LoadGenerator(new ConnectionPoolImpl(config));
+		load.setThreads(threads);
+		load.setHoldTime(LatencyDistribution.exponential(holdMs));
+		System.out.println(load.run(durationMs));
+	}
+}
@@ -0,0 +1,81 @@
+package com.nbaradwaj.connectionpool.simulation;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.nbaradwaj.connectionpool.ConnectionConfig;
+import com.nbaradwaj.connectionpool.ConnectionPoolImpl;
+
+public class LoadGeneratorTest {
+
+	private static ConnectionPoolImpl newPool(SimulatedDataSource dataSource, int size) {
+		ConnectionConfig config = new ConnectionConfig();
+		config.setPoolName("simulation");
+		config.setDataSource(dataSource);
+		config.setMaximumPoolSize(size);
+		config.setConnectionTimeout(TimeUnit.SECONDS.toMillis(1));
+		return new ConnectionPoolImpl(config);
+	}
+
+	/**
+	 * With no more borrowers than connections nobody should ever time out.
+	 */
+	@Test
+	public void testLoadWithinPoolCapacity() throws InterruptedException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		dataSource.setConnectLatency(LatencyDistribution.fixed(5));
+		LoadGenerator load = new LoadGenerator(newPool(dataSource, 4));
+		load.setThreads(4);
+		load.setHoldTime(LatencyDistribution.uniform(0, 2));
+		load.setExecuteStatement(true);
+
+		LoadReport report = load.run(500);
+		assertTrue(report.getBorrowed() > 0);
+		assertEquals(0, report.getTimeouts());
+		assertEquals(0, report.getErrors());
+		assertTrue(report.getThroughput() > 0);
+		assertTrue(report.getAcquisitionPercentileMicros(50) <= report.getAcquisitionPercentileMicros(99));
+	}
+
+	/**
+	 * Borrowers that hold connections longer than the connection timeout starve the others.
+	 */
+	@Test
+	public void testOverloadReportsTimeouts() throws InterruptedException {
+		LoadGenerator load = new LoadGenerator(newPool(new SimulatedDataSource(), 1));
+		load.setThreads(3);
+		load.setHoldTime(LatencyDistribution.fixed(1500));
+
+		LoadReport report = load.run(1000);
+		assertTrue(report.getTimeouts() > 0);
+		assertTrue(report.getTimeoutRate() > 0.0);
+	}
+
+	/**
+	 * Connections opened before an outage are broken by it, and new connections are refused during it.
+	 */
+	@Test
+	public void testOutageBreaksConnections() throws SQLException, InterruptedException {
+		SimulatedDataSource dataSource = new SimulatedDataSource();
+		Connection connection = dataSource.getConnection();
+		assertTrue(connection.isValid(1));
+		dataSource.scheduleOutage(0, 200);
+		assertFalse(connection.isValid(1));
+		try {
+			dataSource.getConnection();
+			fail("Expected the connection to be refused during the outage");
+		} catch (SQLException e) {
+			assertEquals(SimulatedDataSource.SQLSTATE_CONNECTION_REFUSED, e.getSQLState());
+		}
+		Thread.sleep(250);
+		assertFalse(connection.isValid(1));
+		assertTrue(dataSource.getConnection().isValid(1));
+		connection.close();
+		assertEquals(1, dataSource.getOpenConnections());
+	}
+}
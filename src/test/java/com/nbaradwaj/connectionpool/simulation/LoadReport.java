@@ -0,0 +1,87 @@
+package com.nbaradwaj.connectionpool.simulation;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The aggregated result of a {@link LoadGenerator} run.
+ */
+public class LoadReport {
+
+	private final long elapsedNanos;
+	private final long borrowed;
+	private final long timeouts;
+	private final long errors;
+	private final long[] acquisitionNanos;
+
+	LoadReport(LoadGenerator.Borrower[] borrowers, long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+		long borrowed = 0, timeouts = 0, errors = 0;
+		for (LoadGenerator.Borrower borrower : borrowers) {
+			borrowed += borrower.borrowed;
+			timeouts += borrower.timeouts;
+			errors += borrower.errors;
+		}
+		this.borrowed = borrowed;
+		this.timeouts = timeouts;
+		this.errors = errors;
+
+		this.acquisitionNanos = new long[(int) borrowed];
+		int offset = 0;
+		for (LoadGenerator.Borrower borrower : borrowers) {
+			System.arraycopy(borrower.acquisitionNanos, 0, acquisitionNanos, offset, borrower.borrowed);
+			offset += borrower.borrowed;
+		}
+		Arrays.sort(acquisitionNanos);
+	}
+
+	public long getBorrowed() {
+		return borrowed;
+	}
+
+	public long getTimeouts() {
+		return timeouts;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return successful borrows per second
+	 */
+	public double getThroughput() {
+		return borrowed / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+	}
+
+	/**
+	 * @return the fraction of borrow attempts that timed out
+	 */
+	public double getTimeoutRate() {
+		final long attempts = borrowed + timeouts;
+		return attempts == 0 ? 0.0 : timeouts / (double) attempts;
+	}
+
+	/**
+	 * Get a percentile of the time borrowers waited for a connection.
+	 *
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the acquisition time in microseconds, or 0 if nothing was borrowed
+	 */
+	public long getAcquisitionPercentileMicros(double percentile) {
+		if (acquisitionNanos.length == 0) {
+			return 0;
+		}
+		final int index = (int) Math.ceil(percentile / 100.0 * acquisitionNanos.length) - 1;
+		return TimeUnit.NANOSECONDS.toMicros(acquisitionNanos[Math.max(0, Math.min(index, acquisitionNanos.length - 1))]);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("elapsed=%dms borrowed=%d throughput=%.1f/s timeouts=%d (%.2f%%) errors=%d "
+				+ "acquisition p50=%dus p90=%dus p99=%dus max=%dus",
+				TimeUnit.NANOSECONDS.toMillis(elapsedNanos), borrowed, getThroughput(), timeouts, getTimeoutRate() * 100, errors,
+				getAcquisitionPercentileMicros(50), getAcquisitionPercentileMicros(90), getAcquisitionPercentileMicros(99),
+				getAcquisitionPercentileMicros(100));
+	}
+}
@@ -0,0 +1,366 @@
+package com.nbaradwaj.connectionpool.simulation;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * An in-process {@link DataSource} that simulates the behaviour of a remote database: slow
+ * connects, slow validation, statement latency, connections that die at random and outage
+ * windows during which nothing works. No real database is involved.
+ */
+public class SimulatedDataSource implements DataSource {
+
+	/**
+	 * SQLStates reported by the simulated driver
+	 */
+	public static final String SQLSTATE_CONNECTION_REFUSED = "08001";
+	public static final String SQLSTATE_CONNECTION_FAILURE = "08006";
+
+	private volatile LatencyDistribution connectLatency = LatencyDistribution.none();
+	private volatile LatencyDistribution validationLatency = LatencyDistribution.none();
+	private volatile LatencyDistribution statementLatency = LatencyDistribution.none();
+	private volatile LatencyDistribution closeLatency = LatencyDistribution.none();
+	private volatile double deathProbability;
+
+	/**
+	 * Start and end of the current or next outage, in System.nanoTime() terms
+	 */
+	private volatile long outageStart;
+	private volatile long outageEnd;
+
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicLong connectionsCreated = new AtomicLong();
+	private final AtomicLong connectionsRefused = new AtomicLong();
+	private final AtomicLong connectionsDied = new AtomicLong();
+
+	private PrintWriter logWriter;
+	private int loginTimeout;
+
+	public void setConnectLatency(LatencyDistribution connectLatency) {
+		this.connectLatency = connectLatency;
+	}
+
+	public void setValidationLatency(LatencyDistribution validationLatency) {
+		this.validationLatency = validationLatency;
+	}
+
+	public void setStatementLatency(LatencyDistribution statementLatency) {
+		this.statementLatency = statementLatency;
+	}
+
+	public void setCloseLatency(LatencyDistribution closeLatency) {
+		this.closeLatency = closeLatency;
+	}
+
+	/**
+	 * Set the probability that any single operation on a connection finds it dead.
+	 *
+	 * @param deathProbability a probability between 0 and 1
+	 */
+	public void setDeathProbability(double deathProbability) {
+		this.deathProbability = deathProbability;
+	}
+
+	/**
+	 * Schedule an outage window. While it lasts new connections are refused and every
+	 * connection opened before it starts fails, including after the outage ends.
+	 *
+	 * @param delayMs time from now until the outage starts
+	 * @param durationMs length of the outage
+	 */
+	public void scheduleOutage(long delayMs, long durationMs) {
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+		this.outageEnd = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+		this.outageStart = start;
+	}
+
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	public long getConnectionsCreated() {
+		return connectionsCreated.get();
+	}
+
+	public long getConnectionsRefused() {
+		return connectionsRefused.get();
+	}
+
+	public long getConnectionsDied() {
+		return connectionsDied.get();
+	}
+
+	/**
+	 * @return true if an outage window is in progress
+	 */
+	public boolean isInOutage() {
+		final long now = System.nanoTime();
+		final long start = outageStart;
+		return start != 0 && now - start >= 0 && now - outageEnd < 0;
+	}
+
+	/**
+	 * @return true if an outage has started since the given time, which cuts off every
+	 * connection opened before it
+	 */
+	private boolean outageSince(long createdAt) {
+		final long start = outageStart;
+		return start != 0 && start - createdAt > 0 && System.nanoTime() - start >= 0;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		try {
+			connectLatency.sleep(ThreadLocalRandom.current());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLNonTransientConnectionException("Interrupted while connecting", SQLSTATE_CONNECTION_REFUSED, e);
+		}
+		if (isInOutage()) {
+			connectionsRefused.incrementAndGet();
+			throw new SQLNonTransientConnectionException("Simulated database is unavailable", SQLSTATE_CONNECTION_REFUSED);
+		}
+		connectionsCreated.incrementAndGet();
+		openConnections.incrementAndGet();
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+				new SimulatedConnection(System.nanoTime()));
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return getConnection();
+	}
+
+	@Override
+	public PrintWriter getLogWriter() {
+		return logWriter;
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) {
+		this.logWriter = out;
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) {
+		this.loginTimeout = seconds;
+	}
+
+	@Override
+	public int getLoginTimeout() {
+		return loginTimeout;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		throw new SQLException("Not a wrapper for " + iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) {
+		return iface.isInstance(this);
+	}
+
+	/**
+	 * Default return value for a method we do not simulate.
+	 */
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		}
+		else if (type == int.class) {
+			return 0;
+		}
+		else if (type == long.class) {
+			return 0L;
+		}
+		else if (type.isPrimitive() && type != void.class) {
+			return 0;
+		}
+		return null;
+	}
+
+	/**
+	 * The state of one simulated physical connection.
+	 */
+	private final class SimulatedConnection implements InvocationHandler {
+		private final long createdAt;
+		private volatile boolean closed;
+		private volatile boolean dead;
+		private volatile boolean autoCommit = true;
+		private volatile boolean readOnly;
+
+		SimulatedConnection(long createdAt) {
+			this.createdAt = createdAt;
+		}
+
+		/**
+		 * @return true if the connection still reaches the database
+		 */
+		boolean isAlive() {
+			if (dead) {
+				return false;
+			}
+			if (outageSince(createdAt) || ThreadLocalRandom.current().nextDouble() < deathProbability) {
+				dead = true;
+				connectionsDied.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		void checkAlive() throws SQLException {
+			if (closed) {
+				throw new SQLNonTransientConnectionException("Connection is closed", SQLSTATE_CONNECTION_FAILURE);
+			}
+			if (!isAlive()) {
+				throw new SQLRecoverableException("Simulated connection failure", SQLSTATE_CONNECTION_FAILURE);
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			if (name.equals("close")) {
+				if (!closed) {
+					closeLatency.sleep(ThreadLocalRandom.current());
+					closed = true;
+					openConnections.decrementAndGet();
+				}
+				return null;
+			}
+			else if (name.equals("isClosed")) {
+				return closed;
+			}
+			else if (name.equals("isValid")) {
+				final long timeoutNanos = TimeUnit.SECONDS.toNanos((Integer) args[0]);
+				final long latency = validationLatency.sampleNanos(ThreadLocalRandom.current());
+				if (timeoutNanos > 0 && latency > timeoutNanos) {
+					TimeUnit.NANOSECONDS.sleep(timeoutNanos);
+					return false;
+				}
+				TimeUnit.NANOSECONDS.sleep(latency);
+				return !closed && isAlive();
+			}
+			else if (name.equals("toString")) {
+				return "SimulatedConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+			}
+			else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			else if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			else if (name.equals("getAutoCommit")) {
+				return autoCommit;
+			}
+			else if (name.equals("isReadOnly")) {
+				return readOnly;
+			}
+			else if (name.equals("unwrap") || name.equals("isWrapperFor")) {
+				return name.equals("isWrapperFor") ? Boolean.FALSE : null;
+			}
+
+			checkAlive();
+			if (name.equals("setAutoCommit")) {
+				autoCommit = (Boolean) args[0];
+			}
+			else if (name.equals("setReadOnly")) {
+				readOnly = (Boolean) args[0];
+			}
+			else if (name.equals("commit") || name.equals("rollback")) {
+				statementLatency.sleep(ThreadLocalRandom.current());
+				checkAlive();
+			}
+			else if (name.equals("createStatement")) {
+				return newStatement(Statement.class);
+			}
+			else if (name.equals("prepareStatement")) {
+				return newStatement(PreparedStatement.class);
+			}
+			return defaultValue(method.getReturnType());
+		}
+
+		private Object newStatement(Class<? extends Statement> type) {
+			return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, new SimulatedStatement(this));
+		}
+	}
+
+	/**
+	 * A statement whose executions take the configured statement latency and fail when the
+	 * connection dies.
+	 */
+	private final class SimulatedStatement implements InvocationHandler {
+		private final SimulatedConnection connection;
+		private int batchSize;
+
+		SimulatedStatement(SimulatedConnection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			if (name.equals("addBatch")) {
+				batchSize++;
+				return null;
+			}
+			else if (name.equals("executeBatch")) {
+				connection.checkAlive();
+				statementLatency.sleep(ThreadLocalRandom.current());
+				connection.checkAlive();
+				final int[] counts = new int[batchSize];
+				Arrays.fill(counts, 1);
+				batchSize = 0;
+				return counts;
+			}
+			else if (name.startsWith("execute")) {
+				connection.checkAlive();
+				statementLatency.sleep(ThreadLocalRandom.current());
+				connection.checkAlive();
+				if (name.equals("executeUpdate") || name.equals("executeLargeUpdate")) {
+					return name.equals("executeLargeUpdate") ? (Object) 1L : (Object) 1;
+				}
+				return defaultValue(method.getReturnType());
+			}
+			else if (name.equals("getConnection")) {
+				return null;
+			}
+			else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			else if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			else if (name.equals("toString")) {
+				return "SimulatedStatement@" + Integer.toHexString(System.identityHashCode(proxy));
+			}
+			return defaultValue(method.getReturnType());
+		}
+	}
+}